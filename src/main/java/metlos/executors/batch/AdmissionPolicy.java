@@ -0,0 +1,63 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+/**
+ * Determines what the {@link BatchExecutor} does with a batch that, according to what the executor has observed
+ * so far, can't finish within its duration.
+ * <p>
+ * The executor estimates the time the elements of the batch need to run from the execution times of the previously
+ * run elements (or from the {@link TaskCostModel cost model} of the batch) and compares it, together with the work
+ * of the batches it has already accepted and that didn't finish yet, to the processing capacity it has during
+ * the duration of the batch. Until the executor has observed any execution, every batch is considered feasible.
+ * <p>
+ * The batches pulling their elements from an iterator are not subject to the admission control, because their 
+ * elements are not known up front.
+ *
+ * @see BatchExecutor#setAdmissionPolicy(AdmissionPolicy)
+ * @see BatchExecutor#checkAdmission(java.util.Collection, long, java.util.concurrent.TimeUnit)
+ * @author Lukas Krejci
+ */
+public enum AdmissionPolicy {
+
+    /**
+     * Every batch is accepted as is and simply runs late if it has to. This is the default.
+     */
+    ACCEPT,
+
+    /**
+     * The batch is rejected with a {@link BatchAdmissionException}. The repetitions of a repeated batch after
+     * the first one are never rejected, they're accepted as is instead.
+     */
+    REJECT,
+
+    /**
+     * The duration of the batch is extended to the shortest duration the batch is estimated to be able to finish in.
+     */
+    EXTEND_DEADLINE,
+
+    /**
+     * The elements with the lowest {@link PrioritizedTask priority} are dropped from the batch until the rest of it
+     * is estimated to be able to finish in time. Among the elements with the same priority, the ones at the end of
+     * the batch are dropped first. At least one element is always kept.
+     */
+    SHED
+}
@@ -0,0 +1,103 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of the feasibility check of a batch, i.e. whether the batch is estimated to be able to finish
+ * within its duration given the work the executor has already accepted.
+ *
+ * @see BatchExecutor#checkAdmission(java.util.Collection, long, TimeUnit)
+ * @author Lukas Krejci
+ */
+public final class AdmissionVerdict {
+
+    private final boolean feasible;
+    private final long estimatedWorkNanos;
+    private final long committedWorkNanos;
+    private final double capacity;
+    private final long durationNanos;
+    private final long requiredDurationNanos;
+
+    public AdmissionVerdict(long estimatedWorkNanos, long committedWorkNanos, double capacity, long durationNanos) {
+        this.estimatedWorkNanos = estimatedWorkNanos;
+        this.committedWorkNanos = committedWorkNanos;
+        this.capacity = capacity;
+        this.durationNanos = durationNanos;
+        this.requiredDurationNanos = (long) Math.ceil((committedWorkNanos + estimatedWorkNanos) / capacity);
+        this.feasible = estimatedWorkNanos == 0 || requiredDurationNanos <= durationNanos;
+    }
+
+    /**
+     * @return true if the batch is estimated to finish within its duration. This is always true if the work 
+     * of the batch can't be estimated yet.
+     */
+    public boolean isFeasible() {
+        return feasible;
+    }
+
+    /**
+     * @param unit the time unit to return the work in
+     * @return the estimated time the elements of the batch need to run or 0 if it can't be estimated yet
+     */
+    public long getEstimatedWork(TimeUnit unit) {
+        return unit.convert(estimatedWorkNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit the time unit to return the work in
+     * @return the estimated time the elements of the batches already accepted by the executor still need to run
+     */
+    public long getCommittedWork(TimeUnit unit) {
+        return unit.convert(committedWorkNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of elements the executor is able to run in parallel
+     */
+    public double getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param unit the time unit to return the duration in
+     * @return the duration the batch was checked against
+     */
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit the time unit to return the duration in
+     * @return the shortest duration the batch is estimated to be able to finish in
+     */
+    public long getRequiredDuration(TimeUnit unit) {
+        return unit.convert(requiredDurationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionVerdict[feasible=" + feasible + ", estimatedWork=" + estimatedWorkNanos + "ns, committedWork="
+            + committedWorkNanos + "ns, capacity=" + capacity + ", duration=" + durationNanos + "ns, requiredDuration="
+            + requiredDurationNanos + "ns]";
+    }
+}
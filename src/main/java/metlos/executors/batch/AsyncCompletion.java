@@ -0,0 +1,44 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+/**
+ * The callback an {@link AsyncTask} reports its outcome to. Only the first report counts, the subsequent ones
+ * are ignored.
+ *
+ * @author Lukas Krejci
+ */
+public interface AsyncCompletion<T> {
+
+    /**
+     * The task finished successfully.
+     * 
+     * @param result the result of the task
+     */
+    void completed(T result);
+
+    /**
+     * The task failed.
+     * 
+     * @param cause the reason of the failure
+     */
+    void failed(Throwable cause);
+}
@@ -0,0 +1,45 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+/**
+ * A task that only starts its work when run and finishes it later, e.g. once an asynchronous I/O operation
+ * completes. The worker of the {@link BatchExecutor} is released as soon as the task started, yet the element
+ * of the batch is considered running until the task reports its completion. The pacing of the batch therefore
+ * reflects the time the work really took.
+ *
+ * @see BatchExecutor#invokeAllAsyncWithin(java.util.Collection, long, java.util.concurrent.TimeUnit)
+ *
+ * @author Lukas Krejci
+ */
+public interface AsyncTask<T> {
+
+    /**
+     * Starts the work of the task. This should not block.
+     * <p>
+     * The task must report its outcome to the provided completion exactly once, either from within this method
+     * or from any other thread later on. Throwing an exception from this method counts as a failure of the task.
+     * 
+     * @param completion the completion to report the outcome of the task to
+     * @throws Exception if the task fails to start
+     */
+    void start(AsyncCompletion<? super T> completion) throws Exception;
+}
@@ -0,0 +1,48 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown by the {@link BatchExecutor} using the {@link AdmissionPolicy#REJECT} admission policy when a batch
+ * can't finish within its duration.
+ *
+ * @author Lukas Krejci
+ */
+public class BatchAdmissionException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AdmissionVerdict verdict;
+
+    public BatchAdmissionException(AdmissionVerdict verdict) {
+        super("The batch can't finish in time: " + verdict);
+        this.verdict = verdict;
+    }
+
+    /**
+     * @return the verdict the batch was rejected based on
+     */
+    public AdmissionVerdict getVerdict() {
+        return verdict;
+    }
+}
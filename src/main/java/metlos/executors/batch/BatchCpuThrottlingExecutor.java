@@ -22,16 +22,31 @@ package metlos.executors.batch;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * 
+ * A batch executor that keeps the CPU usage of its tasks under a limit.
+ * <p>
+ * Apart from the limit for the whole executor, the CPU usage of the batches of individual 
+ * {@link BatchHandle#setTenant(String) tenants} can be limited using 
+ * {@link #setTenantMaximumCpuUsage(String, float)}. Unlike the limit of the executor, which is enforced by 
+ * parking the worker after each execution, the batches of a tenant that used up its budget are simply not handed
+ * out until the budget renews, so that the workers can run the batches of the other tenants in the meantime.
+ * <p>
+ * The limit of the executor can be enforced the same way by {@link #setParkingWorkers(boolean) not parking 
+ * the workers}. The batches are then held back once the executor used up its CPU budget and the workers are free
+ * to pick up other tasks, e.g. the ones of the batches that became ready in the meantime. This is what to use
+ * with a lot of mostly idle paced batches, where parking the workers would need many more of them to keep up
+ * with the pacing.
  *
  * @author Lukas Krejci
  */
@@ -44,6 +59,63 @@ public class BatchCpuThrottlingExecutor extends BatchExecutor {
         public long startTime;
     }
 
+    /**
+     * The CPU budget of a tenant. The budget renews continuously - a tenant limited to 0.2 CPUs can run
+     * its batches again 5ms after they used 1ms of CPU time. A tenant that didn't use its budget can save up
+     * at most {@link BatchCpuThrottlingExecutor#TENANT_BURST_NANOS} worth of it.
+     */
+    private static class TenantBudget implements ReadinessGate {
+        /**
+         * The gate the tenant needs to pass on top of its own budget, can be null.
+         */
+        final ReadinessGate parent;
+        
+        /**
+         * The maximum CPU usage of the tenant or NaN if the tenant is not limited.
+         */
+        volatile float maximumCpuUsage = Float.NaN;
+        
+        /**
+         * The time the budget of the tenant is going to be positive again.
+         */
+        final AtomicLong readyTime = new AtomicLong();
+        
+        final AtomicLong cpuTime = new AtomicLong();
+        
+        TenantBudget(ReadinessGate parent) {
+            this.parent = parent;
+        }
+        
+        @Override
+        public long getReadyTime() {
+            long ret = readyTime.get();
+            return parent == null ? ret : Math.max(ret, parent.getReadyTime());
+        }
+        
+        void charge(long cpuTimeNanos, long now) {
+            cpuTime.addAndGet(cpuTimeNanos);
+            
+            float usage = maximumCpuUsage;
+            if (!Float.isNaN(usage)) {
+                BatchCpuThrottlingExecutor.charge(readyTime, cpuTimeNanos, usage, now);
+            }
+        }
+    }
+    
+    /**
+     * How much of its unused budget a tenant can save up, expressed as the time during which the budget accrued.
+     */
+    private static final long TENANT_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    
+    private final ConcurrentMap<String, TenantBudget> tenantBudgets = new ConcurrentHashMap<String, TenantBudget>();
+    
+    /**
+     * The CPU budget of the whole executor. It only holds the batches back if the workers are not parked.
+     */
+    private final TenantBudget executorBudget = new TenantBudget(null);
+    
+    private volatile boolean parkingWorkers = true;
+    
     private ThreadLocal<ThreadUsageRecord> threadUsageRecord = new ThreadLocal<ThreadUsageRecord>();
 
     private ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
@@ -72,7 +144,7 @@ public class BatchCpuThrottlingExecutor extends BatchExecutor {
     
     protected <T extends BatchReferringRunnable<?>> BatchCpuThrottlingExecutor(int corePoolSize, int maximumPoolSize,
         long keepAliveTime, TimeUnit unit, ThreadFactory threadFactory, RejectedExecutionHandler handler,
-        TaskQueue<T> queue, float maximumCpuUsage) {
+        BatchTaskQueue<T> queue, float maximumCpuUsage) {
         super(corePoolSize, maximumPoolSize, keepAliveTime, unit, threadFactory, handler, queue);
         this.maximumCpuUsage = maximumCpuUsage;
     }
@@ -84,8 +156,125 @@ public class BatchCpuThrottlingExecutor extends BatchExecutor {
         return maximumCpuUsage;
     }
 
+    /**
+     * @return true if the workers are parked after each execution to keep the CPU usage under the limit (the default),
+     * false if the batches are held back instead
+     */
+    public boolean isParkingWorkers() {
+        return parkingWorkers;
+    }
+
+    /**
+     * Changes how the limit of the executor is enforced.
+     * <p>
+     * By default, a worker that executed a task is parked for as long as needed for the CPU usage to get 
+     * under the limit, so the worker is of no use to the other batches in the meantime.
+     * <p>
+     * If the workers are not parked, the CPU time used by the tasks is charged to the budget of the executor 
+     * and the batches are not handed out while the budget is used up. The budget renews continuously, same as
+     * the {@link #setTenantMaximumCpuUsage(String, float) budgets of the tenants}. The CPU limits of the individual
+     * batches hold back only the batches themselves. Note that the tasks submitted outside of any batch are charged
+     * but never held back.
+     * 
+     * @param parkingWorkers whether to park the workers
+     */
+    public void setParkingWorkers(boolean parkingWorkers) {
+        this.parkingWorkers = parkingWorkers;
+        if (parkingWorkers) {
+            executorBudget.maximumCpuUsage = Float.NaN;
+            executorBudget.readyTime.set(0);
+        } else {
+            executorBudget.maximumCpuUsage = maximumCpuUsage;
+        }
+    }
+    
+    /**
+     * Limits the CPU usage of the batches of the tenant. The limit of the executor still applies on top of it.
+     * 
+     * @param tenant the tenant
+     * @param maximumCpuUsage the maximum CPU usage of all the batches of the tenant (in the same units as
+     * the limit of the executor) or {@link Float#NaN} to only use the limit of the executor
+     */
+    public void setTenantMaximumCpuUsage(String tenant, float maximumCpuUsage) {
+        if (maximumCpuUsage <= 0) {
+            throw new IllegalArgumentException("The maximum CPU usage must be positive.");
+        }
+        
+        TenantBudget budget = getTenantBudget(tenant);
+        budget.maximumCpuUsage = maximumCpuUsage;
+        if (Float.isNaN(maximumCpuUsage)) {
+            budget.readyTime.set(0);
+        }
+    }
+    
+    /**
+     * @param tenant the tenant
+     * @return the maximum CPU usage of the batches of the tenant or {@link Float#NaN} if the tenant is not limited
+     */
+    public float getTenantMaximumCpuUsage(String tenant) {
+        TenantBudget budget = tenantBudgets.get(tenant);
+        return budget == null ? Float.NaN : budget.maximumCpuUsage;
+    }
+    
+    /**
+     * @param tenant the tenant
+     * @param unit the time unit to return the CPU time in
+     * @return the CPU time the batches of the tenant have used so far
+     */
+    public long getTenantCpuTime(String tenant, TimeUnit unit) {
+        TenantBudget budget = tenantBudgets.get(tenant);
+        return budget == null ? 0 : unit.convert(budget.cpuTime.get(), TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    protected ReadinessGate getReadinessGate(String tenant) {
+        return tenant == null ? executorBudget : getTenantBudget(tenant);
+    }
+    
+    private TenantBudget getTenantBudget(String tenant) {
+        if (tenant == null) {
+            throw new NullPointerException("tenant");
+        }
+        
+        TenantBudget ret = tenantBudgets.get(tenant);
+        if (ret == null) {
+            ret = new TenantBudget(executorBudget);
+            TenantBudget existing = tenantBudgets.putIfAbsent(tenant, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * @param r the task that just executed
+     * @return the maximum CPU usage applicable to the task, which can be limited further by its batch
+     */
+    private float getMaximumCpuUsage(Runnable r) {
+        float ret = getMaximumCpuUsage();
+        if (r instanceof BatchReferringRunnable) {
+            BatchRecord batchRecord = ((BatchReferringRunnable<?>) r).getBatchRecord();
+            if (batchRecord != null && batchRecord.maximumCpuUsage < ret) {
+                ret = batchRecord.maximumCpuUsage;
+            }
+        }
+        
+        return ret;
+    }
+    
+    /**
+     * The elements can't use more CPUs than the maximum CPU usage allows.
+     */
+    @Override
+    protected double getProcessingCapacity() {
+        return Math.min(super.getProcessingCapacity(), getMaximumCpuUsage());
+    }
+    
     @Override
     protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
         currentlyExecutingTasks.incrementAndGet();
         
         ThreadUsageRecord threadRecord = getThreadUsageRecord();
@@ -99,6 +288,8 @@ public class BatchCpuThrottlingExecutor extends BatchExecutor {
     
     @Override
     protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        
         ThreadUsageRecord rec = getThreadUsageRecord();
 
         //compute the CPU usage for the execution that just happened
@@ -118,11 +309,22 @@ public class BatchCpuThrottlingExecutor extends BatchExecutor {
         
         long duration = now - startTime;
         
+        chargeTenant(r, cpuTime);
+        
+        if (!parkingWorkers) {
+            executorBudget.charge(cpuTime, getClock().nanoTime());
+            throttleBatch(r, cpuTime);
+            
+            rec.startTime = 0;
+            currentlyExecutingTasks.decrementAndGet();
+            return;
+        }
+        
         //now figure out how long to wait so that the overall CPU usage gets into
         //the limit
         
         //we know what is the allowed usage we must fit into
-        float allowedUsage = getMaximumCpuUsage() / getPoolSize();
+        float allowedUsage = getMaximumCpuUsage(r) / getPoolSize();
         
         //and we know an alternative expression for allowed usage:
         //allowedUsage = cpuTime / (duration + correction);
@@ -149,6 +351,43 @@ public class BatchCpuThrottlingExecutor extends BatchExecutor {
         }
     }
 
+    private void chargeTenant(Runnable r, long cpuTime) {
+        if (r instanceof BatchReferringRunnable) {
+            BatchRecord batchRecord = ((BatchReferringRunnable<?>) r).getBatchRecord();
+            ReadinessGate gate = batchRecord == null ? null : batchRecord.gate;
+            if (gate instanceof TenantBudget && gate != executorBudget) {
+                ((TenantBudget) gate).charge(cpuTime, getClock().nanoTime());
+            }
+        }
+    }
+    
+    /**
+     * Holds back the batch of the task if it has a stricter CPU limit than the executor.
+     */
+    private void throttleBatch(Runnable r, long cpuTime) {
+        if (r instanceof BatchReferringRunnable) {
+            BatchRecord batchRecord = ((BatchReferringRunnable<?>) r).getBatchRecord();
+            if (batchRecord != null && batchRecord.maximumCpuUsage < getMaximumCpuUsage()) {
+                charge(batchRecord.throttledUntil, cpuTime, batchRecord.maximumCpuUsage, batchRecord.now());
+            }
+        }
+    }
+    
+    /**
+     * Moves the time the budget is positive again by the time it takes to renew the used CPU time, never letting 
+     * the unused budget accrue for longer than {@link #TENANT_BURST_NANOS}.
+     */
+    private static void charge(AtomicLong readyTime, long cpuTimeNanos, float usage, long now) {
+        long cost = (long) (cpuTimeNanos / usage);
+        while (true) {
+            long current = readyTime.get();
+            long next = Math.max(current, now - TENANT_BURST_NANOS) + cost;
+            if (readyTime.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+    
     private ThreadUsageRecord getThreadUsageRecord() {
         ThreadUsageRecord r = threadUsageRecord.get();
         if (r == null) {
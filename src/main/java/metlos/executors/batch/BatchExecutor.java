@@ -20,63 +20,470 @@
 package metlos.executors.batch;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import metlos.executors.batch.pacing.AveragePacingStrategy;
+import metlos.executors.batch.pacing.BatchProgress;
+import metlos.executors.batch.pacing.Pacer;
+import metlos.executors.batch.pacing.PacingStrategy;
+import metlos.executors.batch.pacing.ResettablePacer;
 import metlos.executors.support.QueueBlockingDecorator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * This is an extension of the {@link ThreadPoolExecutor} that add 4 new methods:
+ * This is an extension of the {@link ThreadPoolExecutor} that adds the following methods:
  * <ul>
  * <li> {@link #invokeAllWithin(Collection, long, TimeUnit)}
+ * <li> {@link #invokeAllAsyncWithin(Collection, long, TimeUnit)}
  * <li> {@link #executeAllWithin(Collection, long, TimeUnit)}
  * <li> {@link #submitWithPreferedDuration(Collection, long, TimeUnit)}
+ * <li> {@link #submitWithPreferedDuration(Iterator, int, long, TimeUnit)}
  * <li> {@link #submitWithPreferedDurationAndFixedDelay(Collection, long, long, long, TimeUnit)}
+ * <li> {@link #submitWithPreferedDurationAtFixedRate(Collection, long, long, long, TimeUnit, CatchUpPolicy)}
  * </ul>
  * <p>
  * Those methods ensure that given collection of tasks is executed in a time as close as possible
- * to provided duration.
+ * to provided duration. How the tasks are spread over the duration is determined by a {@link PacingStrategy},
+ * which can be set for the whole executor or chosen for each batch.
+ * <p>
+ * The batches that are estimated to not be able to finish in time can be rejected, extended or trimmed up front,
+ * see {@link #setAdmissionPolicy(AdmissionPolicy)}.
+ * <p>
+ * The executor is also a {@link ScheduledExecutorService}. The scheduled tasks are held back in the same queue
+ * as the elements of the batches, so they share the workers (and any limits of the subclasses) with them.
  * 
  * @author Lukas Krejci
  */
-public class BatchExecutor extends ThreadPoolExecutor {
+public class BatchExecutor extends ThreadPoolExecutor implements ScheduledExecutorService {
 
     private static final Log LOG = LogFactory.getLog(BatchExecutor.class);
     
     protected static final RejectedExecutionHandler DEFAULT_REJECTED_EXECUTION_HANDLER = new AbortPolicy();
     
-    protected static class BatchRecord {
+    protected static class BatchRecord implements BatchProgress {
+        /**
+         * The clock of the executor running the batch.
+         */
+        Clock clock = SYSTEM_CLOCK;
         AtomicInteger currentlyRunningTasks = new AtomicInteger();
         AtomicInteger elementsRan = new AtomicInteger();
         AtomicLong cumulativeExecutionTime = new AtomicLong();
         AtomicLong nextElementStartTime = new AtomicLong();
-        long finishTimeNanos;
-        int nofElements;
+        AtomicInteger elementsFailed = new AtomicInteger();
+        AtomicInteger elementsStarted = new AtomicInteger();
+        volatile long startTimeNanos;
+        volatile long finishTimeNanos;
+        volatile int nofElements;
+        volatile boolean cancelled;
+        
+        /**
+         * A paused batch is never ready. The time it was paused at is kept so that the batch can be postponed
+         * by the time it was paused for once it is resumed.
+         */
+        volatile boolean paused;
+        long pausedAt;
+        
+        /**
+         * The maximum CPU usage of the tasks of the batch or NaN if only the limit of the executor applies.
+         */
+        volatile float maximumCpuUsage = Float.NaN;
+        
+        /**
+         * The time until which the batch is held back for having used more CPU time than its limit allows, if
+         * the executor enforces the limit that way. 
+         */
+        final AtomicLong throttledUntil = new AtomicLong();
+        
+        /**
+         * The pacing delays shorter than the pacing granularity of the executor, which the batch didn't wait yet.
+         */
+        final AtomicLong deferredDelay = new AtomicLong();
+        
+        /**
+         * The share of the workers the batch gets relative to the other batches ready at the same time.
+         */
+        volatile double shareWeight = 1;
+        
+        /**
+         * The tenant the batch belongs to or null. The gate, if any, can hold the batch back on top of its pacing.
+         */
+        volatile String tenant;
+        volatile ReadinessGate gate;
+        Pacer pacer;
+        
+        /**
+         * The time before which the elastic pool doesn't look at the number of its workers on behalf of this batch
+         * again. Racy updates only cause an extra check.
+         */
+        volatile long nextPoolCheckTime;
+        
+        /**
+         * The total weight of the elements or NaN if the elements of the batch are not known up front. In that case
+         * every element is considered to have the weight of 1.
+         */
+        volatile double totalWeight = Double.NaN;
+        AtomicLong finishedWeight = new AtomicLong(Double.doubleToLongBits(0));
+        
+        /**
+         * The source of the weights of the elements and the sink of their execution times, can be null.
+         */
+        TaskCostModel costModel;
+        
+        /**
+         * The number of times the next repetition of the batch has been scheduled. Used to make sure
+         * the next repetition is scheduled only once even if several elements finish at the same time.
+         */
+        final AtomicInteger repetition = new AtomicInteger();
+        
+        //the following are only used if the work of the batch has been admitted by the executor
+        /**
+         * The executor-wide estimate of the work of the accepted batches that didn't finish yet or null if the work
+         * of this batch isn't accounted for.
+         */
+        AtomicLong committedWork;
+        long admittedWork;
+        final AtomicLong releasedWork = new AtomicLong();
+
+        @Override
+        public int getNofElements() {
+            return nofElements;
+        }
+        
+        @Override
+        public int getNofFinishedElements() {
+            return elementsRan.get();
+        }
+        
+        @Override
+        public double getTotalWeight() {
+            double ret = totalWeight;
+            return Double.isNaN(ret) ? nofElements : ret;
+        }
+        
+        @Override
+        public double getFinishedWeight() {
+            return Double.longBitsToDouble(finishedWeight.get());
+        }
+        
+        @Override
+        public long getCumulativeExecutionTime() {
+            return cumulativeExecutionTime.get();
+        }
+        
+        @Override
+        public long getStartTime() {
+            return startTimeNanos;
+        }
+        
+        @Override
+        public long getFinishTime() {
+            return finishTimeNanos;
+        }
+
+        /**
+         * @return the time when the next element of the batch is ready to be executed
+         */
+        long getReadyTime() {
+            //the remaining elements of a cancelled batch are going to be skipped, so there's no point
+            //in holding them back. Note that the time is counted from the start of the epoch, so 0 is always
+            //in the past (and unlike Long.MIN_VALUE, it doesn't overflow when subtracted from).
+            if (cancelled) {
+                return 0;
+            }
+            
+            if (paused) {
+                return Long.MAX_VALUE;
+            }
+            
+            long ret = Math.max(nextElementStartTime.get(), throttledUntil.get());
+            ReadinessGate g = gate;
+            return g == null ? ret : Math.max(ret, g.getReadyTime());
+        }
+        
+        /**
+         * Moves the whole batch in time.
+         */
+        void shift(long nanos) {
+            startTimeNanos += nanos;
+            finishTimeNanos += nanos;
+            nextElementStartTime.addAndGet(nanos);
+        }
+        
+        boolean isWeighted() {
+            return !Double.isNaN(totalWeight);
+        }
+        
+        double getWeightOf(Object task) {
+            return costModel == null ? weightOf(task) : costModel.getWeight(task);
+        }
+        
+        void initWeights(Collection<?> tasks) {
+            double weight = 0;
+            for (Object task : tasks) {
+                weight += getWeightOf(task);
+            }
+            
+            totalWeight = weight;
+        }
+        
+        void initWeights(Object[] tasks) {
+            double weight = 0;
+            for (int i = 0; i < tasks.length; ++i) {
+                weight += getWeightOf(tasks[i]);
+            }
+            
+            totalWeight = weight;
+        }
+        
+        /**
+         * Resets the record in place so that it can be used for the next repetition of the batch.
+         * Must only be called when no element of the batch is running or waiting in the queue.
+         */
+        void reset(int nofElements, long durationNanos, long initialDelayNanos) {
+            currentlyRunningTasks.set(0);
+            elementsRan.set(0);
+            elementsFailed.set(0);
+            elementsStarted.set(0);
+            cumulativeExecutionTime.set(0);
+            deferredDelay.set(0);
+            finishedWeight.set(Double.doubleToLongBits(0));
+            totalWeight = Double.NaN;
+            cancelled = false;
+            paused = false;
+            if (committedWork != null) {
+                releaseWork(Long.MAX_VALUE);
+                committedWork = null;
+            }
+            admittedWork = 0;
+            releasedWork.set(0);
+            
+            this.nofElements = nofElements;
+            long start = now() + initialDelayNanos;
+            startTimeNanos = start;
+            finishTimeNanos = start + durationNanos;
+            nextElementStartTime.set(start);
+        }
+        
+        /**
+         * @return the current time of the clock the batch is paced by
+         */
+        long now() {
+            return clock.nanoTime();
+        }
+        
+        void recordCost(Object task, long durationNanos) {
+            if (costModel != null) {
+                costModel.record(task, durationNanos);
+            }
+        }
+        
+        void addFinishedWeight(double weight) {
+            while (true) {
+                long current = finishedWeight.get();
+                long next = Double.doubleToLongBits(Double.longBitsToDouble(current) + weight);
+                if (finishedWeight.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * Adds the estimated work of the batch to the work the executor has committed to.
+         */
+        void commitWork(AtomicLong committedWork, long work) {
+            if (work <= 0) {
+                return;
+            }
+            
+            admittedWork = work;
+            releasedWork.set(0);
+            this.committedWork = committedWork;
+            committedWork.addAndGet(work);
+        }
+        
+        /**
+         * Releases the share of the admitted work corresponding to the weight of a finished element.
+         */
+        void releaseWork(double weight) {
+            if (committedWork != null) {
+                releaseWork((long) (admittedWork * weight / getTotalWeight()));
+            }
+        }
+        
+        private void releaseWork(long work) {
+            while (true) {
+                long released = releasedWork.get();
+                long toRelease = Math.min(work, admittedWork - released);
+                if (toRelease <= 0) {
+                    return;
+                }
+                
+                if (releasedWork.compareAndSet(released, released + toRelease)) {
+                    committedWork.addAndGet(-toRelease);
+                    return;
+                }
+            }
+        }
+        
+        /**
+         * @return the ideal finish time of the element of the batch preceded by the elements with the given total weight
+         */
+        long getIdealFinishTime(double precedingWeight) {
+            return startTimeNanos + (long) ((finishTimeNanos - startTimeNanos) * precedingWeight / getTotalWeight());
+        }
+        
+        /**
+         * @return true if the elastic pool should check its workers on behalf of the batch, which happens at most
+         * once per the time slot of an element of the batch (but not more often than once per millisecond)
+         */
+        boolean isPoolCheckDue(long now) {
+            if (now - nextPoolCheckTime < 0) {
+                return false;
+            }
+            
+            long elementSlot = (finishTimeNanos - startTimeNanos) / Math.max(1, nofElements);
+            nextPoolCheckTime = now + Math.max(elementSlot, MIN_POOL_CHECK_INTERVAL_NANOS);
+            return true;
+        }
+        
+        boolean isDone() {
+            if (currentlyRunningTasks.get() != 0) {
+                return false;
+            }
+            
+            return cancelled || elementsRan.get() >= nofElements;
+        }
+        
+        /**
+         * Called whenever the batch might have become done. Wakes up the threads waiting for the batch.
+         */
+        void checkDone() {
+            if (isDone()) {
+                if (committedWork != null) {
+                    //whatever the estimate was, the batch no longer needs any of it
+                    releaseWork(Long.MAX_VALUE);
+                }
+                
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+        
+        synchronized boolean awaitDone(long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!isDone()) {
+                if (timeoutNanos < 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+            
+            return true;
+        }
     }
 
     protected static class RepetitionRecord {
         Collection<? extends Runnable> tasks;
-        long delayNanos;
-        long durationNanos;
+        volatile long delayNanos;
+        volatile long durationNanos;
+        PacingStrategy pacingStrategy;
+        TaskCostModel costModel;
+        volatile float maximumCpuUsage = Float.NaN;
+        volatile double shareWeight = 1;
+        volatile String tenant;
+        
+        //guarded by this
+        boolean paused;
+        volatile boolean cancelled;
+        
+        //the following are only used by the repetitions at a fixed rate
+        /**
+         * The period of the repetitions or 0 if the batch is repeated with a fixed delay.
+         */
+        volatile long periodNanos;
+        
+        /**
+         * The time the first repetition was scheduled to start at. The repetitions are scheduled relative
+         * to this time so that they don't drift. Changes when the period changes.
+         */
+        long anchorNanos;
+        
+        /**
+         * The index of the current repetition.
+         */
+        volatile long round;
+        
+        CatchUpPolicy catchUpPolicy;
+        
+        //the following are only used if the repetitions overlap
+        /**
+         * How long the next repetition waits for the stragglers of the current one or 0 if the repetitions
+         * don't overlap.
+         */
+        long overlapNanos;
+        
+        /**
+         * The tasks currently running in any of the overlapping repetitions.
+         */
+        Set<Object> runningTasks;
+        
+        //guarded by this
+        BatchRecord overlappedRecord;
+        BatchRecord postponedRecord;
+        
+        //the following are only used if the state is reused across the repetitions
+        /**
+         * Whether to reuse the batch record and the task wrappers in the next repetitions.
+         */
+        boolean reuse;
+        
+        Runnable[] snapshot;
+        
+        /**
+         * The batch record of the latest repetition.
+         */
+        BatchRecord batchRecord;
+        BatchReferringRunnable<?> batchEntry;
+        List<BatchReferringRunnable<?>> entries;
+        
+        /**
+         * The tasks wrapped by the {@link #entries}, index by index.
+         */
+        Runnable[] wrappedTasks;
     }
     
     protected interface BatchedRunnableFuture<T> extends RunnableFuture<T>, Comparable<BatchedRunnableFuture<T>> {
@@ -88,6 +495,34 @@ public class BatchExecutor extends ThreadPoolExecutor {
         long getSequenceNumber();
     }
     
+    /**
+     * Holds back the batches on top of their pacing, e.g. the batches of a tenant that exhausted its CPU budget.
+     * 
+     * @see BatchExecutor#getReadinessGate(String)
+     */
+    protected interface ReadinessGate {
+        
+        /**
+         * @return the time (as returned by the {@link BatchExecutor#getClock() clock} of the executor) until which
+         * the batches behind the gate must not run
+         */
+        long getReadyTime();
+    }
+    
+    /**
+     * The queue of the executor. Apart from being a blocking queue, it needs to be informed about the batches
+     * becoming ready sooner than previously thought so that it can wake up the threads waiting for the tasks.
+     */
+    protected interface BatchTaskQueue<T extends BatchReferringRunnable<?>> extends BlockingQueue<T> {
+        
+        /**
+         * Called when the batch is going to be ready sooner than previously computed.
+         * 
+         * @param batchRecord the batch that changed
+         */
+        void batchReadinessChanged(BatchRecord batchRecord);
+    }
+    
     protected class BatchReferringRunnable<T> extends FutureTask<T> implements
         BatchedRunnableFuture<T> {
         
@@ -95,13 +530,23 @@ public class BatchExecutor extends ThreadPoolExecutor {
 
         //these two are used for ordering purposes and bear no significance wrt
         //the actual time when the task gets executed.
-        protected final long idealFinishTimeNanos;
+        protected long idealFinishTimeNanos;
         protected final long sequenceNumber;
 
         protected final RepetitionRecord repetitionRecord;
         
+        protected double weight;
+        
+        /**
+         * The task this runnable wraps. Only kept if the batch keeps track of the execution times of its tasks
+         * or if its repetitions overlap.
+         */
+        private final Object task;
+        
         public BatchReferringRunnable(Callable<T> callable, BatchRecord batchRecord, RepetitionRecord repetitionRecord, long idealFinishTimeNanos) {
             super(callable);
+            this.weight = batchRecord == null ? 1 : batchRecord.getWeightOf(callable);
+            this.task = keepsTask(batchRecord, repetitionRecord) ? callable : null;
             this.batchRecord = batchRecord;
             this.repetitionRecord = repetitionRecord;
             this.idealFinishTimeNanos = idealFinishTimeNanos;
@@ -111,6 +556,8 @@ public class BatchExecutor extends ThreadPoolExecutor {
         public BatchReferringRunnable(Runnable runnable, T returnValue, BatchRecord batchRecord, RepetitionRecord repetitionRecord,
             long idealFinishTimeNanos) {
             super(runnable, returnValue);
+            this.weight = batchRecord == null ? 1 : batchRecord.getWeightOf(runnable);
+            this.task = keepsTask(batchRecord, repetitionRecord) ? runnable : null;
             this.batchRecord = batchRecord;
             this.repetitionRecord = repetitionRecord;
             this.idealFinishTimeNanos = idealFinishTimeNanos;
@@ -138,10 +585,10 @@ public class BatchExecutor extends ThreadPoolExecutor {
         
         @Override
         public void run() {
-            long duration = 0;
+            long startTime = 0;
             int runningTasks = 0;
             if (batchRecord != null) {
-                duration = now();
+                startTime = batchRecord.now();
                 //we need to get the number of running tasks now, before we actually run our
                 //payload. That is because at this very moment, this number reflects the reality
                 //much better than after running the payload where we get much more variance due
@@ -150,61 +597,215 @@ public class BatchExecutor extends ThreadPoolExecutor {
                 //the payloads and we need to have an exact idea about how many tasks were
                 //executing concurrently at any given time.
                 runningTasks = batchRecord.currentlyRunningTasks.incrementAndGet();
+                
+                if (elasticPoolSize) {
+                    startWorkerIfNeeded(batchRecord, startTime);
+                }
             }
 
+            double ranWeight = weight;
             try {
-                super.run();
+                if (batchRecord != null && batchRecord.cancelled) {
+                    ranWeight = 0;
+                    cancel(false);
+                } else {
+                    ranWeight = runPayload();
+                }
             } finally {
                 if (batchRecord != null) {
-                    duration = now() - duration;
-                    
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace("Task " + this + " took " + duration + "ns.");
-                    }
-                    
-                    long executionTime = batchRecord.cumulativeExecutionTime.addAndGet(duration);
-                    int elementsRan = batchRecord.elementsRan.incrementAndGet();
-    
-                    batchRecord.nextElementStartTime
-                        .set(getNextIdealStartTime(runningTasks, executionTime, elementsRan));
-                    
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace("Setting the next task execution time to " + batchRecord.nextElementStartTime.get());
-                    }
-                    
-                    batchRecord.currentlyRunningTasks.decrementAndGet();
-                    
-                    if (repetitionRecord != null) {
-                        rescheduleIfNeeded();
+                    if (ranWeight > 0) {
+                        elementFinished(startTime, runningTasks, ranWeight);
+                    } else {
+                        batchRecord.currentlyRunningTasks.decrementAndGet();
                     }
+                    batchRecord.checkDone();
                 }
-                
             }
         }
-
-        protected void rescheduleIfNeeded() {
-            if (batchRecord.nofElements <= batchRecord.elementsRan.get() && batchRecord.currentlyRunningTasks.get() == 0) {
-                BatchExecutor.this.submitWithPreferedDurationAndFixedDelay(repetitionRecord.tasks, repetitionRecord.delayNanos, repetitionRecord.durationNanos, repetitionRecord.delayNanos, TimeUnit.NANOSECONDS);
+        
+        @Override
+        protected void setException(Throwable t) {
+            if (batchRecord != null) {
+                batchRecord.elementsFailed.incrementAndGet();
             }
+            super.setException(t);
         }
         
-        protected long getNextIdealStartTime(int currentlyRunningTasks, long executionTime, int elementsRan) {
-            long now = now();
-            long time2Go = batchRecord.finishTimeNanos - now;
-            long tasks2Go = batchRecord.nofElements - elementsRan;
-
-            double avgExecutionTime = ((double) executionTime) / elementsRan;
+        /**
+         * Runs the actual payload of the task.
+         * 
+         * @return the weight of the element of the batch that was run or 0 if there was nothing to run
+         */
+        protected double runPayload() {
+            if (batchRecord != null) {
+                batchRecord.elementsStarted.incrementAndGet();
+            }
+            
+            if (task == null) {
+                runFuture();
+            } else if (acquireRun(task)) {
+                try {
+                    long start = batchRecord.now();
+                    runFuture();
+                    batchRecord.recordCost(task, batchRecord.now() - start);
+                } finally {
+                    releaseRun(task);
+                }
+            }
+            
+            return weight;
+        }
+        
+        /**
+         * If the repetitions of the batch overlap, makes sure that a task doesn't run in two repetitions
+         * at the same time. The task still running from the previous repetition stands in for the
+         * task in the current one.
+         * 
+         * @param task the task about to run
+         * @return true if the task can run, false if it should be skipped because it is still running
+         */
+        protected boolean acquireRun(Object task) {
+            Set<Object> running = repetitionRecord == null ? null : repetitionRecord.runningTasks;
+            if (running == null || running.add(task)) {
+                return true;
+            }
+            
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Task " + task + " is still running from the previous repetition. Skipping it.");
+            }
+            
+            return false;
+        }
+        
+        /**
+         * Called after a task {@link #acquireRun(Object) acquired} for the run finished.
+         */
+        protected void releaseRun(Object task) {
+            Set<Object> running = repetitionRecord == null ? null : repetitionRecord.runningTasks;
+            if (running != null) {
+                running.remove(task);
+            }
+        }
+        
+        /**
+         * Runs the task as a future. If the task is going to be reused in the next repetition of its batch,
+         * the future is left in the state it can be run again.
+         */
+        private void runFuture() {
+            if (repetitionRecord != null && repetitionRecord.reuse) {
+                runAndReset();
+            } else {
+                super.run();
+            }
+        }
+        
+        /**
+         * Prepares the task for the next repetition of its batch. Only called when the task is not in the queue.
+         * 
+         * @param idealFinishTimeNanos the ideal finish time of the task in the next repetition
+         * @param weight the weight of the task in the next repetition
+         */
+        protected void resetForNextRepetition(long idealFinishTimeNanos, double weight) {
+            this.idealFinishTimeNanos = idealFinishTimeNanos;
+            this.weight = weight;
+        }
+        
+        /**
+         * Called by the queue when this task is being handed out for execution.
+         * <p>
+         * By default, a task represents a single element of a batch and therefore this method returns false.
+         * 
+         * @return true if the task should be put back to the queue because it represents more elements
+         * of the batch that are yet to be handed out.
+         */
+        protected boolean handOut() {
+            return false;
+        }
+        
+        /**
+         * Updates the batch record with the results of the execution of a single element of the batch.
+         * 
+         * @param startTime the time the execution started
+         * @param runningTasks the number of the tasks of the batch running at the time the execution started
+         * @param elementWeight the weight of the element that finished
+         */
+        protected void elementFinished(long startTime, int runningTasks, double elementWeight) {
+            long duration = batchRecord.now() - startTime;
+            
+            //read while this element still counts as running, so that the repetition can't be rescheduled
+            //(and the batch record reset) in the meantime
+            int repetition = batchRecord.repetition.get();
+            
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Task " + this + " took " + duration + "ns.");
+            }
+            
+            batchRecord.cumulativeExecutionTime.addAndGet(duration);
+            batchRecord.addFinishedWeight(elementWeight);
+            batchRecord.elementsRan.incrementAndGet();
+            batchRecord.releaseWork(elementWeight);
+            if (!isAsync()) {
+                observeCost(duration, elementWeight);
+            }
 
-            //make the next task run after a longer delay if there is more than 1 of tasks 
-            //running at this very moment.
-            double idealExecutionTime = ((double) time2Go) / tasks2Go * currentlyRunningTasks;
+            long nextStartTime = coarsen(batchRecord, getNextIdealStartTime(runningTasks, duration, elementWeight));
+            if (elasticPoolSize) {
+                resizePool(batchRecord, nextStartTime);
+            }
+            long previousStartTime = batchRecord.nextElementStartTime.getAndSet(nextStartTime);
+            
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Setting the next task execution time to " + nextStartTime);
+            }
+            
+            batchRecord.currentlyRunningTasks.decrementAndGet();
+            
+            if (nextStartTime < previousStartTime) {
+                //the queue might be waiting for some other batch to become ready
+                //while this one is going to be ready sooner.
+                getTaskQueue().batchReadinessChanged(batchRecord);
+            }
+            
+            if (repetitionRecord != null) {
+                rescheduleIfNeeded(repetition);
+            }
+        }
 
-            //idealExecutionTime - avgExecution is the "time gap" between the tasks.
-            //note that idealExecutionTime - avgExecutionTime can be negative, which would
-            //set the next element start time in the past.
-            //but that's ok - it is a sign of the batch running late and will only make the
-            //elements further down the line run without any delay.
-            return now + (long) (idealExecutionTime - avgExecutionTime);
+        /**
+         * @return true if the element keeps running after {@link #run()} returns, without occupying the worker
+         */
+        protected boolean isAsync() {
+            return false;
+        }
+        
+        /**
+         * @param repetition the repetition of the batch the finished element belonged to
+         */
+        protected void rescheduleIfNeeded(int repetition) {
+            if (batchRecord.nofElements <= batchRecord.elementsRan.get() && batchRecord.currentlyRunningTasks.get() == 0) {
+                if (batchRecord.repetition.compareAndSet(repetition, repetition + 1)) {
+                    scheduleNextRepetition(repetitionRecord);
+                } else if (repetitionRecord.overlapNanos > 0) {
+                    //the next repetition might have been waiting for us
+                    overlappedRepetitionFinished(repetitionRecord, batchRecord);
+                }
+            } else if (repetitionRecord.overlapNanos > 0 && batchRecord.nofElements <= batchRecord.elementsStarted.get()
+                && batchRecord.repetition.compareAndSet(repetition, repetition + 1)) {
+                //only the stragglers are running, the next repetition doesn't have to wait for them
+                scheduleOverlappingRepetition(repetitionRecord, batchRecord);
+            }
+        }
+        
+        /**
+         * Asks the pacer of the batch about the time the next element should start.
+         * 
+         * @param currentlyRunningTasks the number of the tasks of the batch running at the time the just finished element started
+         * @param elementDuration the duration of the just finished element
+         * @param elementWeight the weight of the just finished element
+         * @return the time the next element of the batch should start
+         */
+        protected long getNextIdealStartTime(int currentlyRunningTasks, long elementDuration, double elementWeight) {
+            return batchRecord.pacer.getNextStartTime(batchRecord, elementDuration, elementWeight, currentlyRunningTasks, batchRecord.now());
         }
 
         @Override
@@ -212,393 +813,2881 @@ public class BatchExecutor extends ThreadPoolExecutor {
             if (this == o) {
                 return 0;
             } else {
-                int diff = (int) (idealFinishTimeNanos - o.getIdealFinishTimeNanos());
+                //only the signs of the differences matter - the differences can exceed the range of an int
+                //and comparing the difference rather than the values copes with the sequencer wrapping around
+                long diff = getIdealFinishTimeNanos() - o.getIdealFinishTimeNanos();
                 if (diff == 0) {
-                    return (int) (sequenceNumber - o.getSequenceNumber());
-                } else {
-                    return diff;
+                    diff = getSequenceNumber() - o.getSequenceNumber();
                 }
+                
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
             }
         }
     }
 
     /**
-     * System.nanoTime() is not required to be positive, so let's establish
-     * a base from which to start counting the time.
-     * (inspired by java.util.concurrent.ScheduledThreadPoolExecutor)
-     */
-    private static final long EPOCH_START = System.nanoTime();
-
-    /**
-     * In a rare case when two tasks would be scheduled to be executed at exactly the same
-     * time (in nanoseconds), they are going to have unique sequence numbers which
-     * we can base their ordering on. This "sequencer" is used to obtain such unique
-     * sequence numbers.
+     * A single queue entry representing all the elements of a batch. The entry stays in the queue until all
+     * the elements are handed out. Each execution of this task runs the next element of the batch.
+     * <p>
+     * The elements are run as they are and their exceptions are only logged. This is therefore only suitable
+     * for the batches whose results no one is interested in.
+     * <p>
+     * The position of the entry in the queue advances with each element handed out. The {@link CompactBatchRunnable}
+     * of a weighted batch spaces its elements by their {@link WeightedTask weights} (or their costs learned by
+     * the {@link TaskCostModel}), while the {@link LazyBatchRunnable} spaces them evenly because it doesn't know
+     * its elements before they run. Either way, the weights are taken into account when pacing the batch.
+     * <p>
+     * The subclasses define where the elements come from.
      */
-    private static final AtomicLong SEQUENCER = new AtomicLong();
+    protected abstract class AbstractCompactBatchRunnable extends BatchReferringRunnable<Void> {
 
-    protected static class TaskQueue<T extends BatchReferringRunnable<?>> extends QueueBlockingDecorator<T> {
+        private long increment;
 
-        public TaskQueue() {
-            this(new PriorityQueue<T>());
+        //the ideal finish time is only ever modified by the queue while the task is not in the queue, the number of
+        //the elements handed out is only modified under the lock of the queue
+        private volatile long nextIdealFinishTimeNanos;
+        private int handedOut;
+        
+        protected AbstractCompactBatchRunnable(BatchRecord batchRecord, RepetitionRecord repetitionRecord,
+            long idealFinishTimeNanos, long increment) {
+            super(NO_OP, null, batchRecord, repetitionRecord, idealFinishTimeNanos);
+            this.increment = increment;
+            this.nextIdealFinishTimeNanos = idealFinishTimeNanos;
         }
-
-        protected TaskQueue(Queue<T> q) {
-            super(q);
+        
+        @Override
+        public long getIdealFinishTimeNanos() {
+            return nextIdealFinishTimeNanos;
         }
         
         @Override
-        public T peek() {
-            getLock().lock();
-            try {
-                T ret = getDecoratedQueue().peek();
-                return getWaitingTime(ret) <= 0 ? ret : null;
-            } finally {
-                getLock().unlock();
+        protected boolean handOut() {
+            if (batchRecord.cancelled || !hasMoreToHandOut(++handedOut)) {
+                return false;
             }
+            
+            nextIdealFinishTimeNanos = getIdealFinishTimeNanos(handedOut);
+            return true;
         }
-
+        
+        /**
+         * Called by the queue (i.e. never concurrently). By default the ideal finish times of the elements
+         * are spread evenly.
+         * 
+         * @param handedOut the number of times this task has been handed out so far
+         * @return the ideal finish time of the next element to hand out
+         */
+        protected long getIdealFinishTimeNanos(int handedOut) {
+            return nextIdealFinishTimeNanos + increment;
+        }
+        
+        /**
+         * Called by the queue when one of the elements handed out didn't run and is going to be handed out again.
+         */
+        void takeBack() {
+            --handedOut;
+        }
+        
         @Override
-        public T poll() {
-            getLock().lock();
-            try {
-                Queue<T> q = getDecoratedQueue();
-                T ret = q.peek();
-                
-                if (ret == null) {
-                    //the underlying queue contains a null;
-                    return q.poll();
-                }
-                
-                long waitTimeNanos = getWaitingTime(ret);
-                if (waitTimeNanos <= 0) {
-                    ret = q.poll();
-                    if (!q.isEmpty()) {
-                        getAvailabilityCondition().signalAll();
-                    }
-
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace(" Polling task " + ret + " for execution.");
-                    }
-                    
-                    return ret;
-                } else {
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace("Task " + ret + " not ready for execution yet.");
-                    }
-                    
-                    return null;
+        protected double runPayload() {
+            Runnable element = nextElement();
+            if (element == null) {
+                return 0;
+            }
+            
+            batchRecord.elementsStarted.incrementAndGet();
+            if (acquireRun(element)) {
+                long start = batchRecord.now();
+                try {
+                    element.run();
+                } catch (Throwable t) {
+                    batchRecord.elementsFailed.incrementAndGet();
+                    LOG.warn("Element " + element + " of a batch failed.", t);
+                } finally {
+                    releaseRun(element);
                 }
-            } finally {
-                getLock().unlock();
+                batchRecord.recordCost(element, batchRecord.now() - start);
             }
+            
+            return batchRecord.isWeighted() ? batchRecord.getWeightOf(element) : 1;
         }
+        
+        /**
+         * Prepares the task for handing out the elements of the next repetition of its batch.
+         * 
+         * @param idealFinishTimeNanos the ideal finish time of the first element
+         * @param increment the increment of the ideal finish time with each element
+         */
+        protected void restart(long idealFinishTimeNanos, long increment) {
+            resetForNextRepetition(idealFinishTimeNanos, 1.0);
+            this.increment = increment;
+            this.nextIdealFinishTimeNanos = idealFinishTimeNanos;
+            this.handedOut = 0;
+        }
+        
+        /**
+         * Called by the queue (i.e. never concurrently).
+         * 
+         * @param handedOut the number of times this task has been handed out so far
+         * @return true if there are more elements to hand out, false otherwise
+         */
+        protected abstract boolean hasMoreToHandOut(int handedOut);
+        
+        /**
+         * Called by the executing threads, possibly concurrently.
+         * 
+         * @return the next element to run or null if there are no more elements in the batch
+         */
+        protected abstract Runnable nextElement();
+    }
+    
+    /**
+     * A compact batch of the elements held in an array.
+     */
+    protected class CompactBatchRunnable extends AbstractCompactBatchRunnable {
 
+        private final Runnable[] elements;
+        private final AtomicInteger runCursor = new AtomicInteger();
+        
+        //the total weight of the first weighedElements elements, only used by the queue
+        private double precedingWeight;
+        private int weighedElements;
+
+        public CompactBatchRunnable(Runnable[] elements, BatchRecord batchRecord, RepetitionRecord repetitionRecord,
+            long idealFinishTimeNanos, long increment) {
+            super(batchRecord, repetitionRecord, idealFinishTimeNanos, increment);
+            this.elements = elements;
+        }
+        
         @Override
-        public T take() throws InterruptedException {
-            getLock().lockInterruptibly();
-            try {
-                Queue<T> q = getDecoratedQueue();
-                
-                while(true) {                    
-                    if (q.isEmpty()) {
-                        getAvailabilityCondition().await();
-                    } else {
-                        
-                        T ret = q.peek();
-                        
-                        if (ret == null) {
-                            //the underlying queue contains a null;
-                            return q.poll();
-                        }
-                        
-                        long waitTimeNanos = getWaitingTime(ret);
-                        if (waitTimeNanos <= 0) {
-                            ret = q.poll();
-                            if (!q.isEmpty()) {
-                                getAvailabilityCondition().signalAll();
-                            }
+        protected boolean hasMoreToHandOut(int handedOut) {
+            return handedOut < elements.length;
+        }
+        
+        /**
+         * @return true if this task hands out the elements of the given array
+         */
+        protected boolean isBackedBy(Runnable[] elements) {
+            return this.elements == elements;
+        }
+        
+        @Override
+        protected void restart(long idealFinishTimeNanos, long increment) {
+            super.restart(idealFinishTimeNanos, increment);
+            runCursor.set(0);
+            precedingWeight = 0;
+            weighedElements = 0;
+        }
+        
+        /**
+         * The elements of a weighted batch finish at the times proportional to the weights of the elements
+         * preceding them, the same as if each of them was enqueued separately.
+         */
+        @Override
+        protected long getIdealFinishTimeNanos(int handedOut) {
+            if (!batchRecord.isWeighted()) {
+                return super.getIdealFinishTimeNanos(handedOut);
+            }
+            
+            //none of the elements from the one just handed out on has run yet, so the array still holds them
+            while (weighedElements < handedOut) {
+                precedingWeight += batchRecord.getWeightOf(elements[weighedElements++]);
+            }
+            while (weighedElements > handedOut) {
+                precedingWeight -= batchRecord.getWeightOf(elements[--weighedElements]);
+            }
+            
+            return batchRecord.getIdealFinishTime(precedingWeight);
+        }
+        
+        @Override
+        protected Runnable nextElement() {
+            int idx = runCursor.getAndIncrement();
+            if (idx >= elements.length) {
+                return null;
+            }
+            
+            Runnable element = elements[idx];
+            //let the element be garbage collected as soon as possible
+            elements[idx] = null;
+            
+            return element;
+        }
+    }
     
-                            if (LOG.isTraceEnabled()) {
-                                LOG.trace(" Polling task " + ret + " for execution.");
-                            }
-                            
-                            return ret;
+    /**
+     * A compact batch pulling its elements from an iterator only at the time they are due to run. Only the element
+     * being currently run is therefore held in memory.
+     * <p>
+     * The number of elements in the batch is only an estimate until the iterator is exhausted. If the iterator
+     * provides more elements than expected, the batch is assumed to have at least one more element than what has
+     * been pulled so far. Once the iterator is exhausted, the number of elements of the batch is fixed to 
+     * the actual number of elements pulled from it.
+     * <p>
+     * Because the elements aren't known until they run, their ideal finish times are always spread evenly
+     * regardless of their weights.
+     */
+    protected class LazyBatchRunnable extends AbstractCompactBatchRunnable {
+        
+        private final Iterator<? extends Runnable> source;
+        
+        //guarded by the source
+        private int pulled;
+        
+        private volatile boolean exhausted;
+        
+        public LazyBatchRunnable(Iterator<? extends Runnable> source, BatchRecord batchRecord, RepetitionRecord repetitionRecord,
+            long idealFinishTimeNanos, long increment) {
+            super(batchRecord, repetitionRecord, idealFinishTimeNanos, increment);
+            this.source = source;
+        }
+        
+        @Override
+        protected boolean hasMoreToHandOut(int handedOut) {
+            return !exhausted;
+        }
+        
+        @Override
+        protected Runnable nextElement() {
+            synchronized (source) {
+                if (exhausted) {
+                    return null;
+                }
+                
+                try {
+                    if (!source.hasNext()) {
+                        sourceExhausted();
+                        return null;
+                    }
+                    
+                    Runnable ret = source.next();
+                    ++pulled;
+                    
+                    if (pulled >= batchRecord.nofElements) {
+                        if (source.hasNext()) {
+                            //there's more than expected, so expect at least one more element
+                            batchRecord.nofElements = pulled + 1;
                         } else {
-                            if (LOG.isTraceEnabled()) {
-                                LOG.trace("Task " + ret + " not ready for execution yet, waiting " + waitTimeNanos + "ns.");
-                            }
-                            getAvailabilityCondition().awaitNanos(waitTimeNanos);
+                            sourceExhausted();
                         }
                     }
+                    
+                    return ret;
+                } catch (RuntimeException e) {
+                    LOG.warn("Failed to obtain the next element of a batch from " + source + ". Considering the batch finished.", e);
+                    sourceExhausted();
+                    return null;
                 }
-            } finally {
-                getLock().unlock();
             }
         }
         
-        private long getWaitingTime(T element) {
-            if (LOG.isTraceEnabled()) {
-                String message = "Checking for ready state of " + element + ": batch is " + element.getBatchRecord() + ", ";
-                if (element.getBatchRecord() != null) {
-                    message += "start time is " + element.getBatchRecord().nextElementStartTime.get() + ", ";
-                }
-                message += "now is " + now();
-                LOG.trace(message);
+        private void sourceExhausted() {
+            exhausted = true;
+            batchRecord.nofElements = pulled;
+            batchRecord.checkDone();
+        }
+    }
+    
+    /**
+     * An element of a batch that only starts an {@link AsyncTask} when run. The element counts as running until
+     * the task reports its completion, so that the pacing and the concurrency of the batch follow the work
+     * in flight rather than the time the worker spent starting it. The future completes with the outcome of the task.
+     */
+    protected class AsyncBatchRunnable<T> extends BatchReferringRunnable<T> {
+        
+        private final AsyncTask<T> task;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        
+        //the task can complete on another thread
+        private volatile long startTime;
+        private volatile int runningTasks;
+        
+        public AsyncBatchRunnable(AsyncTask<T> task, BatchRecord batchRecord, long idealFinishTimeNanos) {
+            super(NO_OP, null, batchRecord, null, idealFinishTimeNanos);
+            this.task = task;
+            this.weight = batchRecord.getWeightOf(task);
+        }
+        
+        @Override
+        public void run() {
+            startTime = batchRecord.now();
+            runningTasks = batchRecord.currentlyRunningTasks.incrementAndGet();
+            
+            if (batchRecord.cancelled) {
+                cancel(false);
+                batchRecord.currentlyRunningTasks.decrementAndGet();
+                batchRecord.checkDone();
+                return;
             }
-            return element.getBatchRecord() == null ? 0 :  element.getBatchRecord().nextElementStartTime.get() - now();
-        }        
+            
+            batchRecord.elementsStarted.incrementAndGet();
+            if (isCancelled()) {
+                //the element still counts as ran, same as the cancelled futures of the other elements
+                finish(null, null);
+                return;
+            }
+            
+            try {
+                task.start(new AsyncCompletion<T>() {
+                    @Override
+                    public void completed(T result) {
+                        finish(result, null);
+                    }
+                    
+                    @Override
+                    public void failed(Throwable cause) {
+                        finish(null, cause);
+                    }
+                });
+            } catch (Throwable t) {
+                finish(null, t);
+            }
+        }
+        
+        @Override
+        protected boolean isAsync() {
+            return true;
+        }
+        
+        private void finish(T result, Throwable cause) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            
+            if (cause == null) {
+                set(result);
+            } else {
+                setException(cause);
+            }
+            
+            batchRecord.recordCost(task, batchRecord.now() - startTime);
+            elementFinished(startTime, runningTasks, weight);
+            batchRecord.checkDone();
+        }
     }
-
-    @SuppressWarnings("unchecked")
-    protected TaskQueue<BatchReferringRunnable<?>> getTaskQueue() {
-        return (TaskQueue<BatchReferringRunnable<?>>) (BlockingQueue<?>) getQueue();
+    
+    /**
+     * The handle to the batch backed directly by its batch record.
+     */
+    protected class BatchRecordHandle implements BatchHandle {
+        
+        private final BatchRecord batchRecord;
+        
+        public BatchRecordHandle(BatchRecord batchRecord) {
+            this.batchRecord = batchRecord;
+        }
+        
+        @Override
+        public int getNofElements() {
+            return batchRecord.nofElements;
+        }
+        
+        @Override
+        public int getNofFinishedElements() {
+            return batchRecord.elementsRan.get();
+        }
+        
+        @Override
+        public int getNofFailedElements() {
+            return batchRecord.elementsFailed.get();
+        }
+        
+        @Override
+        public boolean isDone() {
+            return batchRecord.isDone();
+        }
+        
+        @Override
+        public double getShareWeight() {
+            return batchRecord.shareWeight;
+        }
+        
+        @Override
+        public void setShareWeight(double shareWeight) {
+            checkShareWeight(shareWeight);
+            batchRecord.shareWeight = shareWeight;
+        }
+        
+        @Override
+        public String getTenant() {
+            return batchRecord.tenant;
+        }
+        
+        @Override
+        public void setTenant(String tenant) {
+            BatchExecutor.this.setTenant(batchRecord, tenant);
+            getTaskQueue().batchReadinessChanged(batchRecord);
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return batchRecord.cancelled;
+        }
+        
+        @Override
+        public void cancel() {
+            if (batchRecord.cancelled) {
+                return;
+            }
+            
+            batchRecord.cancelled = true;
+            
+            //let the remaining elements be skipped without waiting for their turn
+            getTaskQueue().batchReadinessChanged(batchRecord);
+            
+            batchRecord.checkDone();
+        }
+        
+        @Override
+        public void await() throws InterruptedException {
+            batchRecord.awaitDone(-1);
+        }
+        
+        @Override
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return batchRecord.awaitDone(Math.max(0, unit.toNanos(timeout)));
+        }
     }
-
+    
     /**
-     * This enables an otherwise illegal direct cast from {@link TaskQueue} to a {@link BlockingQueue}
-     * of runnables. This is safe to do in constructors, because the queue is only ever going to be 
-     * exclusively added to by this class, which will ensure that the runnable being inserted is in fact
-     * BatchReferringRunnable.
-     * 
-     * @param q
-     * @return
+     * The handle to the repeated batch backed by its repetition record.
      */
-    @SuppressWarnings("unchecked")
-    private static BlockingQueue<Runnable> asQueueOfRunnables(TaskQueue<?> q) {
-        //let's be brutal
-        return (BlockingQueue<Runnable>) (BlockingQueue<?>) q;
+    protected class RepetitionRecordHandle implements RepetitionHandle {
+        
+        private final RepetitionRecord repetitionRecord;
+        
+        public RepetitionRecordHandle(RepetitionRecord repetitionRecord) {
+            this.repetitionRecord = repetitionRecord;
+        }
+        
+        @Override
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(repetitionRecord.durationNanos, TimeUnit.NANOSECONDS);
+        }
+        
+        @Override
+        public void setDuration(long duration, TimeUnit unit, boolean includingCurrentRepetition) {
+            if (duration < 0) {
+                throw new IllegalArgumentException("The duration must not be negative.");
+            }
+            
+            long durationNanos = unit.toNanos(duration);
+            repetitionRecord.durationNanos = durationNanos;
+            
+            if (includingCurrentRepetition) {
+                BatchRecord current = getCurrentBatchRecord();
+                current.finishTimeNanos = current.startTimeNanos + durationNanos;
+                repace(current);
+            }
+        }
+        
+        @Override
+        public long getDelay(TimeUnit unit) {
+            long period = repetitionRecord.periodNanos;
+            return unit.convert(period > 0 ? period : repetitionRecord.delayNanos, TimeUnit.NANOSECONDS);
+        }
+        
+        @Override
+        public void setDelay(long delay, TimeUnit unit) {
+            long delayNanos = unit.toNanos(delay);
+            
+            synchronized (repetitionRecord) {
+                if (repetitionRecord.periodNanos > 0) {
+                    if (delayNanos <= 0) {
+                        throw new IllegalArgumentException("The period must be positive.");
+                    }
+                    
+                    //count the new period from the start of the current repetition
+                    repetitionRecord.anchorNanos += repetitionRecord.round * repetitionRecord.periodNanos;
+                    repetitionRecord.round = 0;
+                    repetitionRecord.periodNanos = delayNanos;
+                } else {
+                    if (delayNanos < 0) {
+                        throw new IllegalArgumentException("The delay must not be negative.");
+                    }
+                    
+                    repetitionRecord.delayNanos = delayNanos;
+                }
+            }
+        }
+        
+        @Override
+        public float getMaximumCpuUsage() {
+            return repetitionRecord.maximumCpuUsage;
+        }
+        
+        @Override
+        public double getShareWeight() {
+            return repetitionRecord.shareWeight;
+        }
+        
+        @Override
+        public void setShareWeight(double shareWeight) {
+            checkShareWeight(shareWeight);
+            repetitionRecord.shareWeight = shareWeight;
+            getCurrentBatchRecord().shareWeight = shareWeight;
+        }
+        
+        @Override
+        public String getTenant() {
+            return repetitionRecord.tenant;
+        }
+        
+        @Override
+        public void setTenant(String tenant) {
+            repetitionRecord.tenant = tenant;
+            BatchRecord batchRecord = getCurrentBatchRecord();
+            BatchExecutor.this.setTenant(batchRecord, tenant);
+            getTaskQueue().batchReadinessChanged(batchRecord);
+        }
+        
+        @Override
+        public void setMaximumCpuUsage(float maximumCpuUsage, boolean includingCurrentRepetition) {
+            if (maximumCpuUsage <= 0) {
+                throw new IllegalArgumentException("The maximum CPU usage must be positive.");
+            }
+            
+            repetitionRecord.maximumCpuUsage = maximumCpuUsage;
+            if (includingCurrentRepetition) {
+                getCurrentBatchRecord().maximumCpuUsage = maximumCpuUsage;
+            }
+        }
+        
+        @Override
+        public void pause() {
+            synchronized (repetitionRecord) {
+                if (repetitionRecord.paused) {
+                    return;
+                }
+                
+                repetitionRecord.paused = true;
+                
+                BatchRecord current = repetitionRecord.batchRecord;
+                current.pausedAt = current.now();
+                current.paused = true;
+            }
+        }
+        
+        @Override
+        public void resume() {
+            BatchRecord current;
+            synchronized (repetitionRecord) {
+                if (!repetitionRecord.paused) {
+                    return;
+                }
+                
+                repetitionRecord.paused = false;
+                
+                current = repetitionRecord.batchRecord;
+                if (current.paused) {
+                    current.shift(current.now() - current.pausedAt);
+                    current.paused = false;
+                }
+            }
+            
+            getTaskQueue().batchReadinessChanged(current);
+        }
+        
+        @Override
+        public boolean isPaused() {
+            synchronized (repetitionRecord) {
+                return repetitionRecord.paused;
+            }
+        }
+        
+        @Override
+        public void cancel() {
+            BatchRecord current;
+            BatchRecord overlapped;
+            synchronized (repetitionRecord) {
+                if (repetitionRecord.cancelled) {
+                    return;
+                }
+                
+                repetitionRecord.cancelled = true;
+                current = repetitionRecord.batchRecord;
+                overlapped = repetitionRecord.overlappedRecord;
+            }
+            
+            cancelBatch(current);
+            if (overlapped != null) {
+                cancelBatch(overlapped);
+            }
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return repetitionRecord.cancelled;
+        }
+        
+        /**
+         * Recomputes the start time of the next element of the batch after its finish time changed. This is only
+         * needed while the batch waits for its next element with none of them running - the running elements
+         * recompute the start time with the new finish time once they finish.
+         */
+        private void repace(BatchRecord batchRecord) {
+            long now = batchRecord.now();
+            long nextStartTime = batchRecord.nextElementStartTime.get();
+            double finishedWeight = batchRecord.getFinishedWeight();
+            if (nextStartTime <= now || finishedWeight <= 0 || batchRecord.currentlyRunningTasks.get() > 0) {
+                //either the next element is due already, its start time doesn't depend on the finish time
+                //or it is going to be recomputed anyway
+                return;
+            }
+            
+            //the pacer only ever sees the finished elements, so let's present it with an average one
+            long averageDuration = (long) (batchRecord.getCumulativeExecutionTime() / finishedWeight);
+            long repacedStartTime = batchRecord.pacer.getNextStartTime(batchRecord, averageDuration, 1, 1, now);
+            
+            if (batchRecord.nextElementStartTime.compareAndSet(nextStartTime, repacedStartTime)) {
+                getTaskQueue().batchReadinessChanged(batchRecord);
+            }
+        }
+        
+        private BatchRecord getCurrentBatchRecord() {
+            synchronized (repetitionRecord) {
+                return repetitionRecord.batchRecord;
+            }
+        }
+        
+        private void cancelBatch(BatchRecord batchRecord) {
+            batchRecord.cancelled = true;
+            
+            //let the queue drop the elements of the batch
+            getTaskQueue().batchReadinessChanged(batchRecord);
+            
+            batchRecord.checkDone();
+        }
+    }
+    
+    /**
+     * System.nanoTime() is not required to be positive, so let's establish
+     * a base from which to start counting the time.
+     * (inspired by java.util.concurrent.ScheduledThreadPoolExecutor)
+     */
+    private static final long EPOCH_START = System.nanoTime();
+    
+    /**
+     * The clock based on the {@link System#nanoTime()}. This is the clock the executors use unless a different one
+     * is passed to the constructor.
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime() - EPOCH_START;
+        }
+    };
+    
+    private final Clock clock;
+
+    /**
+     * In a rare case when two tasks would be scheduled to be executed at exactly the same
+     * time (in nanoseconds), they are going to have unique sequence numbers which
+     * we can base their ordering on. This "sequencer" is used to obtain such unique
+     * sequence numbers.
+     */
+    private static final AtomicLong SEQUENCER = new AtomicLong();
+
+    /**
+     * The elastic pool doesn't check its workers on behalf of a batch more often than this.
+     */
+    private static final long MIN_POOL_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Runnable NO_OP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private volatile PacingStrategy pacingStrategy = AveragePacingStrategy.INSTANCE;
+    
+    private volatile boolean reusingRepetitionState;
+    
+    private volatile long repetitionOverlapNanos;
+    
+    private volatile long pacingGranularityNanos;
+    
+    private volatile boolean elasticPoolSize;
+    
+    /**
+     * The core pool size the elastic pool shrinks back to.
+     */
+    private volatile int baseCorePoolSize;
+    
+    /**
+     * The number of the workers running a task. The elastic pool consults this instead of 
+     * {@link #getActiveCount()}, which locks the whole executor.
+     */
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    
+    private volatile AdmissionPolicy admissionPolicy = AdmissionPolicy.ACCEPT;
+    
+    /**
+     * The estimate of the time the elements of the accepted batches that didn't finish yet still need to run.
+     */
+    private final AtomicLong committedWork = new AtomicLong();
+    
+    /**
+     * The exponentially weighted moving average of the execution time of an element per the unit of its weight or
+     * NaN if no element has run yet. This is updated without any synchronization - losing an update now and then 
+     * doesn't matter for an estimate.
+     */
+    private volatile double observedCostPerWeight = Double.NaN;
+    
+    private static final double OBSERVED_COST_ALPHA = 0.1;
+    
+    /**
+     * The future of a task scheduled using one of the methods of the {@link ScheduledExecutorService}. The task is 
+     * run as a batch (of a single element) or as a repeated batch, which the future cancels when cancelled.
+     */
+    protected class ScheduledBatchFuture<V> implements ScheduledFuture<V> {
+        
+        private final Future<V> future;
+        private final BatchRecord batchRecord;
+        private final RepetitionRecord repetitionRecord;
+        private final RepetitionHandle repetitionHandle;
+        
+        /**
+         * A future of a task run once.
+         */
+        public ScheduledBatchFuture(Future<V> future, BatchRecord batchRecord) {
+            this.future = future;
+            this.batchRecord = batchRecord;
+            this.repetitionRecord = null;
+            this.repetitionHandle = null;
+        }
+        
+        /**
+         * A future of a periodic task. The future is only done once the task is cancelled or fails.
+         */
+        public ScheduledBatchFuture(Future<V> future, RepetitionRecord repetitionRecord) {
+            this.future = future;
+            this.batchRecord = null;
+            this.repetitionRecord = repetitionRecord;
+            this.repetitionHandle = new RepetitionRecordHandle(repetitionRecord);
+        }
+        
+        /**
+         * For the periodic tasks, this is the delay of the current or the next execution.
+         */
+        @Override
+        public long getDelay(TimeUnit unit) {
+            BatchRecord current = repetitionRecord == null ? batchRecord : repetitionRecord.batchRecord;
+            return unit.convert(current.startTimeNanos - current.now(), TimeUnit.NANOSECONDS);
+        }
+        
+        @Override
+        public int compareTo(Delayed o) {
+            if (o == this) {
+                return 0;
+            }
+            
+            long d1 = getDelay(TimeUnit.NANOSECONDS);
+            long d2 = o.getDelay(TimeUnit.NANOSECONDS);
+            return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean ret = future.cancel(mayInterruptIfRunning);
+            if (repetitionHandle != null) {
+                repetitionHandle.cancel();
+            } else if (ret) {
+                //don't let the cancelled task wait in the queue until it is due
+                new BatchRecordHandle(batchRecord).cancel();
+            }
+            
+            return ret;
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+        
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+        
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return future.get();
+        }
+        
+        @Override
+        public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return future.get(timeout, unit);
+        }
+    }
+    
+    /**
+     * The outcome of a periodic task. It is never run, it only completes when the task fails or is cancelled.
+     */
+    private static class PeriodicOutcome extends FutureTask<Void> {
+        PeriodicOutcome() {
+            super(NO_OP, null);
+        }
+        
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+    
+    /**
+     * Runs a periodic task and suppresses its subsequent executions once it fails, as required by 
+     * the {@link ScheduledExecutorService}.
+     */
+    private static class PeriodicRunnable implements Runnable {
+        final Runnable command;
+        final PeriodicOutcome outcome = new PeriodicOutcome();
+        volatile RepetitionHandle handle;
+        
+        PeriodicRunnable(Runnable command) {
+            this.command = command;
+        }
+        
+        @Override
+        public void run() {
+            if (outcome.isDone()) {
+                return;
+            }
+            
+            try {
+                command.run();
+            } catch (Throwable t) {
+                outcome.fail(t);
+                RepetitionHandle h = handle;
+                if (h != null) {
+                    h.cancel();
+                }
+            }
+        }
+        
+        /**
+         * Called once the task has been submitted. Cancels the repetitions if the task failed already.
+         */
+        void submitted(RepetitionHandle handle) {
+            this.handle = handle;
+            if (outcome.isDone()) {
+                handle.cancel();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return command.toString();
+        }
+    }
+    
+    /**
+     * How a batch is admitted if it doesn't fit in its duration.
+     */
+    private static class Admission {
+        final long durationNanos;
+        final long work;
+        
+        /**
+         * The flags of the tasks dropped from the batch, index by index, or null if no task has been dropped.
+         */
+        final boolean[] shed;
+        final int nofShed;
+        
+        Admission(long durationNanos, long work, boolean[] shed, int nofShed) {
+            this.durationNanos = durationNanos;
+            this.work = work;
+            this.shed = shed;
+            this.nofShed = nofShed;
+        }
+        
+        boolean isShed(int index) {
+            return shed != null && shed[index];
+        }
+        
+        /**
+         * @return the tasks that haven't been dropped from the batch
+         */
+        <T> T[] admitted(T[] tasks) {
+            if (shed == null) {
+                return tasks;
+            }
+            
+            T[] ret = Arrays.copyOf(tasks, tasks.length - nofShed);
+            int j = 0;
+            for (int i = 0; i < tasks.length; ++i) {
+                if (!shed[i]) {
+                    ret[j++] = tasks[i];
+                }
+            }
+            
+            return ret;
+        }
+    }
+
+    /**
+     * The default queue of the executor. The tasks are not handed out until their batch is ready.
+     * <p>
+     * The threads waiting for the tasks follow the leader/follower pattern of the {@link java.util.concurrent.DelayQueue}.
+     * Only one thread (the leader) waits for the head of the queue to become ready, while the rest of the threads
+     * wait until they're signalled. Only a single thread is woken up when a new task arrives or a task is taken
+     * so that the waiting threads don't needlessly race each other for a single task.
+     */
+    protected static class TaskQueue<T extends BatchReferringRunnable<?>> extends QueueBlockingDecorator<T> implements BatchTaskQueue<T> {
+
+        /**
+         * The thread waiting for the head of the queue to become ready.
+         */
+        private Thread leader;
+        
+        public TaskQueue() {
+            this(new BatchReadinessQueue<T>());
+        }
+
+        protected TaskQueue(Queue<T> q) {
+            super(q);
+        }
+        
+        @Override
+        public boolean add(T e) {
+            return offer(e);
+        }
+        
+        @Override
+        public boolean offer(T e) {
+            getLock().lock();
+            try {
+                boolean ret = getDecoratedQueue().offer(e);
+                if (ret) {
+                    //the new element might be ready sooner than what the current leader is waiting for
+                    leader = null;
+                    getAvailabilityCondition().signal();
+                }
+                
+                return ret;
+            } finally {
+                getLock().unlock();
+            }
+        }
+        
+        /**
+         * Adds all the elements under a single lock acquisition and wakes up only a single waiting thread.
+         * The rest of the threads are woken up one by one as the tasks are being taken.
+         */
+        @Override
+        public boolean addAll(Collection<? extends T> c) {
+            if (c == this) {
+                throw new IllegalArgumentException();
+            }
+            
+            getLock().lock();
+            try {
+                boolean ret = getDecoratedQueue().addAll(c);
+                if (ret) {
+                    leader = null;
+                    getAvailabilityCondition().signal();
+                }
+                
+                return ret;
+            } finally {
+                getLock().unlock();
+            }
+        }
+        
+        @Override
+        public T peek() {
+            getLock().lock();
+            try {
+                T ret = getDecoratedQueue().peek();
+                return ret != null && getWaitingTime(ret) <= 0 ? ret : null;
+            } finally {
+                getLock().unlock();
+            }
+        }
+
+        @Override
+        public T poll() {
+            getLock().lock();
+            try {
+                Queue<T> q = getDecoratedQueue();
+                T ret = q.peek();
+                
+                if (ret == null) {
+                    //the underlying queue contains a null;
+                    return q.poll();
+                }
+                
+                long waitTimeNanos = getWaitingTime(ret);
+                if (waitTimeNanos <= 0) {
+                    ret = pollReady(q);
+                    if (leader == null && !q.isEmpty()) {
+                        getAvailabilityCondition().signal();
+                    }
+                    
+                    return ret;
+                } else {
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("Task " + ret + " not ready for execution yet.");
+                    }
+                    
+                    return null;
+                }
+            } finally {
+                getLock().unlock();
+            }
+        }
+
+        @Override
+        public T take() throws InterruptedException {
+            getLock().lockInterruptibly();
+            try {
+                Queue<T> q = getDecoratedQueue();
+                
+                while(true) {                    
+                    if (q.isEmpty()) {
+                        T ret = pollOutsideQueue();
+                        if (ret != null) {
+                            return ret;
+                        } else if (!q.isEmpty()) {
+                            continue;
+                        }
+                        
+                        getAvailabilityCondition().await();
+                    } else {
+                        
+                        T ret = q.peek();
+                        
+                        if (ret == null) {
+                            //the underlying queue contains a null;
+                            return q.poll();
+                        }
+                        
+                        long waitTimeNanos = getWaitingTime(ret);
+                        if (waitTimeNanos <= 0) {
+                            return pollReady(q);
+                        } else {
+                            if (LOG.isTraceEnabled()) {
+                                LOG.trace("Task " + ret + " not ready for execution yet, waiting " + waitTimeNanos + "ns.");
+                            }
+                            
+                            T outside = pollOutsideQueue();
+                            if (outside != null) {
+                                return outside;
+                            } else if (q.peek() != ret) {
+                                //the subclass returned some tasks to the queue, re-evaluate the head
+                                continue;
+                            }
+                            
+                            //don't hold on to the task while waiting
+                            ret = null;
+                            
+                            if (leader != null) {
+                                getAvailabilityCondition().await();
+                            } else {
+                                Thread thisThread = Thread.currentThread();
+                                leader = thisThread;
+                                try {
+                                    getAvailabilityCondition().awaitNanos(waitTimeNanos);
+                                } finally {
+                                    if (leader == thisThread) {
+                                        leader = null;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            } finally {
+                signalNextLeader();
+                getLock().unlock();
+            }
+        }
+
+        @Override
+        public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            getLock().lockInterruptibly();
+            try {
+                Queue<T> q = getDecoratedQueue();
+                
+                while(true) {                    
+                    if (q.isEmpty()) {
+                        T ret = pollOutsideQueue();
+                        if (ret != null || nanos <= 0) {
+                            return ret;
+                        } else if (!q.isEmpty()) {
+                            continue;
+                        }
+                        nanos = getAvailabilityCondition().awaitNanos(nanos);
+                    } else {
+                        T ret = q.peek();
+                        
+                        if (ret == null) {
+                            //the underlying queue contains a null;
+                            return q.poll();
+                        }
+                        
+                        long waitTimeNanos = getWaitingTime(ret);
+                        if (waitTimeNanos <= 0) {
+                            return pollReady(q);
+                        } 
+                        
+                        T outside = pollOutsideQueue();
+                        if (outside != null || nanos <= 0) {
+                            return outside;
+                        } else if (q.peek() != ret) {
+                            //the subclass returned some tasks to the queue, re-evaluate the head
+                            continue;
+                        }
+                        
+                        //don't hold on to the task while waiting
+                        ret = null;
+                        
+                        if (nanos < waitTimeNanos || leader != null) {
+                            nanos = getAvailabilityCondition().awaitNanos(nanos);
+                        } else {
+                            Thread thisThread = Thread.currentThread();
+                            leader = thisThread;
+                            try {
+                                long timeLeft = getAvailabilityCondition().awaitNanos(waitTimeNanos);
+                                nanos -= waitTimeNanos - timeLeft;
+                            } finally {
+                                if (leader == thisThread) {
+                                    leader = null;
+                                }
+                            }
+                        }
+                    }
+                }
+            } finally {
+                signalNextLeader();
+                getLock().unlock();
+            }
+        }
+        
+        /**
+         * This wakes up the threads waiting for the elements so that they can re-evaluate
+         * how long they need to wait.
+         */
+        @Override
+        public void batchReadinessChanged(BatchRecord batchRecord) {
+            getLock().lock();
+            try {
+                Queue<T> q = getDecoratedQueue();
+                if (q instanceof BatchReadinessQueue) {
+                    ((BatchReadinessQueue<?>) q).update(batchRecord);
+                }
+                
+                //the current leader might be waiting for a later time
+                leader = null;
+                getAvailabilityCondition().signal();
+            } finally {
+                getLock().unlock();
+            }
+        }
+        
+        /**
+         * Moves up to the given number of the ready tasks of the batch to the collection under a single lock
+         * acquisition. Nothing is moved if some thread is waiting for a task, so that the waiting threads are
+         * not deprived of the tasks they would have gotten otherwise.
+         * <p>
+         * A task representing several elements of its batch is moved once for each element handed out, so it can
+         * end up in the collection several times while staying in the queue for its remaining elements.
+         * 
+         * @param batchRecord the batch to move the tasks of
+         * @param c the collection to move the tasks to
+         * @param maxElements the maximum number of the tasks to move
+         * @return the number of the tasks moved
+         */
+        protected int drainReady(BatchRecord batchRecord, Collection<? super T> c, int maxElements) {
+            getLock().lock();
+            try {
+                if (getLock().hasWaiters(getAvailabilityCondition())) {
+                    return 0;
+                }
+                
+                Queue<T> q = getDecoratedQueue();
+                int n = 0;
+                while (n < maxElements) {
+                    T head = q.peek();
+                    if (head == null || head.getBatchRecord() != batchRecord || getWaitingTime(head) > 0) {
+                        break;
+                    }
+                    
+                    c.add(pollReady(q));
+                    ++n;
+                }
+                
+                return n;
+            } finally {
+                getLock().unlock();
+            }
+        }
+        
+        /**
+         * Returns a task that has been handed out but didn't run to the queue. A task representing several elements
+         * of its batch only takes back the single element it has been handed out for.
+         * 
+         * @param task the task to return
+         */
+        protected void giveBack(T task) {
+            if (!(task instanceof AbstractCompactBatchRunnable)) {
+                offer(task);
+                return;
+            }
+            
+            getLock().lock();
+            try {
+                ((AbstractCompactBatchRunnable) task).takeBack();
+                if (!getDecoratedQueue().contains(task)) {
+                    offer(task);
+                }
+            } finally {
+                getLock().unlock();
+            }
+        }
+        
+        /**
+         * Called with the lock held right before a thread starts waiting for a task to become available in the
+         * queue. The subclasses keeping some of the tasks outside of the queue can hand them out here so that no
+         * thread waits while there are tasks ready to run.
+         * 
+         * @return a task to run instead of waiting or null (the default)
+         */
+        protected T pollOutsideQueue() {
+            return null;
+        }
+        
+        /**
+         * @return the time (as returned by the clock of its batch) the head of the queue is going to be ready at,
+         * {@link Long#MIN_VALUE} if the head is not part of any batch and therefore is always ready or 
+         * {@link Long#MAX_VALUE} if the queue is empty
+         */
+        protected long getHeadReadyTime() {
+            getLock().lock();
+            try {
+                T head = getDecoratedQueue().peek();
+                if (head == null) {
+                    return Long.MAX_VALUE;
+                }
+                
+                BatchRecord batchRecord = head.getBatchRecord();
+                return batchRecord == null ? Long.MIN_VALUE : batchRecord.getReadyTime();
+            } finally {
+                getLock().unlock();
+            }
+        }
+        
+        /**
+         * Must be called with the lock held and the head of the queue being ready.
+         */
+        private T pollReady(Queue<T> q) {
+            T ret = q.poll();
+            
+            if (ret != null && ret.handOut()) {
+                //the task represents more elements of its batch, which need to wait for their turn 
+                q.offer(ret);
+            }
+            
+            if (LOG.isTraceEnabled()) {
+                LOG.trace(" Polling task " + ret + " for execution.");
+            }
+            
+            return ret;
+        }
+        
+        /**
+         * Must be called with the lock held. If there is no leader, wakes up one of the waiting threads to either
+         * take the next task or become the new leader.
+         */
+        private void signalNextLeader() {
+            if (leader == null && !getDecoratedQueue().isEmpty()) {
+                getAvailabilityCondition().signal();
+            }
+        }
+        
+        private long getWaitingTime(T element) {
+            BatchRecord batchRecord = element.getBatchRecord();
+            if (LOG.isTraceEnabled()) {
+                String message = "Checking for ready state of " + element + ": batch is " + batchRecord;
+                if (batchRecord != null) {
+                    message += ", start time is " + batchRecord.getReadyTime() + ", now is " + batchRecord.now();
+                }
+                LOG.trace(message);
+            }
+            return batchRecord == null ? 0 : batchRecord.getReadyTime() - batchRecord.now();
+        }        
+    }
+
+    @SuppressWarnings("unchecked")
+    protected BatchTaskQueue<BatchReferringRunnable<?>> getTaskQueue() {
+        return (BatchTaskQueue<BatchReferringRunnable<?>>) (BlockingQueue<?>) getQueue();
+    }
+
+    /**
+     * This enables an otherwise illegal direct cast from {@link BatchTaskQueue} to a {@link BlockingQueue}
+     * of runnables. This is safe to do in constructors, because the queue is only ever going to be 
+     * exclusively added to by this class, which will ensure that the runnable being inserted is in fact
+     * BatchReferringRunnable.
+     * 
+     * @param q
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static BlockingQueue<Runnable> asQueueOfRunnables(BatchTaskQueue<?> q) {
+        //let's be brutal
+        return (BlockingQueue<Runnable>) (BlockingQueue<?>) q;
+    }
+
+    /**
+     * @param corePoolSize
+     * @param maximumPoolSize
+     * @param keepAliveTime
+     * @param unit
+     */
+    public BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, Executors.defaultThreadFactory(), DEFAULT_REJECTED_EXECUTION_HANDLER, new TaskQueue<BatchReferringRunnable<?>>());
+    }
+
+    /**
+     * Creates an executor with an {@link #setElasticPoolSize(boolean) elastic pool}, if requested, which doesn't
+     * start any worker until there are tasks to run.
+     * 
+     * @param corePoolSize
+     * @param maximumPoolSize
+     * @param keepAliveTime
+     * @param unit
+     * @param elasticPoolSize whether the pool should be elastic
+     */
+    public BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, boolean elasticPoolSize) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, Executors.defaultThreadFactory(), DEFAULT_REJECTED_EXECUTION_HANDLER, new TaskQueue<BatchReferringRunnable<?>>(), SYSTEM_CLOCK, elasticPoolSize);
+    }
+
+    /**
+     * @param corePoolSize
+     * @param maximumPoolSize
+     * @param keepAliveTime
+     * @param unit
+     * @param threadFactory
+     */
+    public BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+        ThreadFactory threadFactory) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, threadFactory, DEFAULT_REJECTED_EXECUTION_HANDLER, new TaskQueue<BatchReferringRunnable<?>>());
+    }
+
+    /**
+     * @param corePoolSize
+     * @param maximumPoolSize
+     * @param keepAliveTime
+     * @param unit
+     * @param threadFactory
+     * @param handler
+     */
+    public BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+        ThreadFactory threadFactory, RejectedExecutionHandler handler) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, threadFactory, handler, new TaskQueue<BatchReferringRunnable<?>>());
+    }
+
+    /**
+     * Use this constructor to supply a different queue implementation, e.g. the {@link ConcurrentTaskQueue}
+     * or a {@link TaskQueue} backed by a different queue.
+     */
+    protected <T extends BatchReferringRunnable<?>> BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, ThreadFactory threadFactory, RejectedExecutionHandler handler, BatchTaskQueue<T> queue) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, threadFactory, handler, queue, SYSTEM_CLOCK);
+    }
+
+    /**
+     * Use this constructor to pace the batches by a different clock than the {@link #SYSTEM_CLOCK}, e.g. in 
+     * a simulation (see the {@link SimulatedBatchExecutor}). Note that the waiting for the tasks to become ready 
+     * still happens in real time, so an executor only works with a different clock if something takes the tasks
+     * from the queue without waiting for them.
+     */
+    protected <T extends BatchReferringRunnable<?>> BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, ThreadFactory threadFactory, RejectedExecutionHandler handler, BatchTaskQueue<T> queue, Clock clock) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, threadFactory, handler, queue, clock, false);
+    }
+
+    /**
+     * Use this constructor to create the executor with an {@link #setElasticPoolSize(boolean) elastic pool}
+     * right away. Unlike switching the pool to elastic later, no core threads are started up front.
+     */
+    protected <T extends BatchReferringRunnable<?>> BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, ThreadFactory threadFactory, RejectedExecutionHandler handler, BatchTaskQueue<T> queue, Clock clock, boolean elasticPoolSize) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, asQueueOfRunnables(queue), threadFactory,
+            handler);
+        if (clock == null) {
+            throw new NullPointerException("clock");
+        }
+        this.clock = clock;
+        if (elasticPoolSize) {
+            baseCorePoolSize = corePoolSize;
+            allowCoreThreadTimeOut(true);
+            this.elasticPoolSize = true;
+        }
+        init();
+    }
+    
+    /**
+     * @return the pacing strategy used by the batches that don't specify their own
+     */
+    public PacingStrategy getPacingStrategy() {
+        return pacingStrategy;
+    }
+    
+    /**
+     * Sets the pacing strategy used by the batches that don't specify their own. This only affects
+     * the batches submitted after this call.
+     * 
+     * @param pacingStrategy the pacing strategy, must not be null
+     */
+    public void setPacingStrategy(PacingStrategy pacingStrategy) {
+        if (pacingStrategy == null) {
+            throw new NullPointerException();
+        }
+        this.pacingStrategy = pacingStrategy;
+    }
+    
+    /**
+     * @return true if the repeated batches reuse their state across the repetitions
+     */
+    public boolean isReusingRepetitionState() {
+        return reusingRepetitionState;
+    }
+    
+    /**
+     * Sets whether the batches submitted for repeated execution reuse their batch records and task wrappers across
+     * the repetitions instead of allocating new ones for each repetition. With the default queue, this makes
+     * the repetitions of a batch of a constant size allocation-free in the steady state (as long as
+     * the collection of the tasks can copy its elements into an existing array without allocating, 
+     * like {@link ArrayList} can).
+     * <p>
+     * The task wrappers of the tasks that failed are not reused.
+     * <p>
+     * This is off by default because the subclasses providing their own task wrappers need to make sure they can
+     * be {@link BatchReferringRunnable#resetForNextRepetition(long, double) reset}. This only affects the batches
+     * submitted after this call.
+     */
+    public void setReusingRepetitionState(boolean reusingRepetitionState) {
+        this.reusingRepetitionState = reusingRepetitionState;
+    }
+    
+    /**
+     * @param unit the time unit to return the overlap in
+     * @return the overlap of the repetitions of the repeated batches or 0 if they don't overlap
+     */
+    public long getRepetitionOverlap(TimeUnit unit) {
+        return unit.convert(repetitionOverlapNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * @return true if the number of the workers follows the needs of the batches
+     */
+    public boolean isElasticPoolSize() {
+        return elasticPoolSize;
+    }
+    
+    /**
+     * Makes the number of the workers follow the needs of the batches. By default, all the core threads are started 
+     * up front and never retire, and since the queue of the executor is unbounded, no more threads are ever started.
+     * <p>
+     * In the elastic pool, the workers are only started as the tasks arrive and retire once they have had nothing
+     * to run for the {@link #getKeepAliveTime(TimeUnit) keep-alive time}, e.g. while waiting for the next element
+     * of a paced batch or for the next repetition of a repeated batch. At least one worker is kept as long as there
+     * are tasks in the queue and more workers, up to the core pool size, are started while there are ready tasks
+     * in the queue and all the workers are busy. When a batch falls behind its ideal schedule even though it runs
+     * its elements without any delay and all the core workers are busy, the core pool size is raised by one, up to
+     * the maximum pool size. It shrinks back to the core pool size at the time of this call as the workers retire.
+     * <p>
+     * The workers started before this call retire once they are idle for the keep-alive time, which therefore must 
+     * be positive. To avoid starting them in the first place, create the executor with the elastic pool using one of
+     * the constructors accepting the flag.
+     * 
+     * @param elasticPoolSize whether the pool should be elastic
+     */
+    public void setElasticPoolSize(boolean elasticPoolSize) {
+        if (elasticPoolSize == this.elasticPoolSize) {
+            return;
+        }
+        
+        if (elasticPoolSize) {
+            baseCorePoolSize = getCorePoolSize();
+            allowCoreThreadTimeOut(true);
+        } else {
+            allowCoreThreadTimeOut(false);
+            setCorePoolSize(baseCorePoolSize);
+            prestartAllCoreThreads();
+        }
+        
+        this.elasticPoolSize = elasticPoolSize;
+    }
+    
+    /**
+     * @param unit the time unit to return the granularity in
+     * @return the shortest delay the batches wait between their elements or 0 if the delays are not coarsened
+     */
+    public long getPacingGranularity(TimeUnit unit) {
+        return unit.convert(pacingGranularityNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Makes the pacing of the batches coarser. The pacing delays shorter than the granularity are not waited one by
+     * one. Instead, the elements run right after each other until the skipped delays add up to the granularity
+     * and the batch then waits all of them at once. The batch therefore still finishes in time but the elements run
+     * in bursts at most about once per the granularity.
+     * <p>
+     * This is meant for the batches spread over hours or days, whose elements don't need to be spread precisely 
+     * and where waking up for each element would be a waste. Such batches are best submitted using
+     * {@link #submitWithPreferedDuration(Collection, long, TimeUnit)} or 
+     * {@link #submitWithPreferedDuration(Iterator, int, long, TimeUnit)}, which keep only a single entry in the queue
+     * no matter how many elements the batch has.
+     * 
+     * @param granularity the granularity or 0 to pace each element precisely (the default)
+     * @param unit the time unit of the granularity
+     */
+    public void setPacingGranularity(long granularity, TimeUnit unit) {
+        if (granularity < 0) {
+            throw new IllegalArgumentException("The granularity must not be negative.");
+        }
+        this.pacingGranularityNanos = unit.toNanos(granularity);
+    }
+    
+    /**
+     * Lets the repetitions of the repeated batches overlap, so that a few slow elements don't hold back
+     * the next repetition.
+     * <p>
+     * By default, the next repetition is only scheduled after all the elements of the current one have finished.
+     * With a positive overlap, the next repetition is scheduled already once all the elements of the current one
+     * have started and some of them finished. The next repetition then gives the elements of the current one that
+     * are still running at most the overlap time to finish. If they finish sooner, the next repetition starts as if
+     * the current one finished normally.
+     * <p>
+     * A task that is still running once its turn comes in the next repetition is skipped in that repetition.
+     * <p>
+     * The overlapping repetitions can't reuse their state, so this takes precedence over 
+     * {@link #setReusingRepetitionState(boolean)}. This only affects the batches submitted after this call.
+     * 
+     * @param overlap the overlap or 0 to turn the overlapping off
+     * @param unit the time unit of the overlap
+     */
+    public void setRepetitionOverlap(long overlap, TimeUnit unit) {
+        if (overlap < 0) {
+            throw new IllegalArgumentException("The overlap must not be negative.");
+        }
+        this.repetitionOverlapNanos = unit.toNanos(overlap);
+    }
+    
+    /**
+     * @return the policy applied to the batches that can't finish in time
+     */
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+    
+    /**
+     * Sets what happens with the batches that, according to the execution times the executor has observed so far, 
+     * can't finish within their duration. By default, such batches are {@link AdmissionPolicy#ACCEPT accepted} and
+     * simply run late. This only affects the batches submitted after this call.
+     * 
+     * @param admissionPolicy the admission policy, must not be null
+     * 
+     * @see #checkAdmission(Collection, long, TimeUnit)
+     */
+    public void setAdmissionPolicy(AdmissionPolicy admissionPolicy) {
+        if (admissionPolicy == null) {
+            throw new NullPointerException();
+        }
+        this.admissionPolicy = admissionPolicy;
+    }
+    
+    /**
+     * Checks whether the batch of given commands is estimated to finish within the duration if it were submitted
+     * now. Nothing is submitted.
+     * <p>
+     * The time the commands need to run is estimated from the execution times of the elements of the previous 
+     * batches, taking the {@link WeightedTask weights} of the commands into account. Together with the work of 
+     * the already accepted batches that didn't finish yet, it is compared to the time the executor has during
+     * the duration, given its {@link #getProcessingCapacity() processing capacity}.
+     * 
+     * @param commands the commands of the batch
+     * @param duration the duration the batch should finish in
+     * @param unit the time unit of the duration
+     * @return the verdict
+     */
+    public AdmissionVerdict checkAdmission(Collection<?> commands, long duration, TimeUnit unit) {
+        return checkAdmission(commands, duration, unit, null);
+    }
+    
+    /**
+     * Akin to {@link #checkAdmission(Collection, long, TimeUnit)} but the commands the provided cost model knows 
+     * about are estimated to take as long as the cost model says.
+     * 
+     * @param costModel the cost model to use, can be null
+     */
+    public AdmissionVerdict checkAdmission(Collection<?> commands, long duration, TimeUnit unit, TaskCostModel costModel) {
+        return getVerdict(estimateWork(commands.toArray(), costModel), unit.toNanos(duration));
+    }
+    
+    @Override
+    public void execute(Runnable command) {
+        Runnable r = newTaskFor(command, null);
+        super.execute(r);
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        RunnableFuture<T> f = newTaskFor(task);
+        super.execute(f);
+        return f;
+    }
+    
+    @Override
+    public Future<?> submit(Runnable task) {
+        RunnableFuture<?> f = newTaskFor(task, null);
+        super.execute(f);
+        return f;
+    }
+    
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        RunnableFuture<T> f = newTaskFor(task, result);
+        super.execute(f);
+        return f;
+    };
+    
+    /**
+     * The task is held back in the queue until it is due, so that no worker is occupied by waiting for it.
+     */
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        
+        BatchRecord batchRecord = newScheduledBatchRecord(delay, unit);
+        BatchReferringRunnable<?> task = newTaskFor(command, null, batchRecord, null, batchRecord.getIdealFinishTime(0));
+        enqueueAll(Collections.singletonList(task));
+        
+        return newScheduledFuture(task, batchRecord);
+    }
+    
+    /**
+     * The task is held back in the queue until it is due, so that no worker is occupied by waiting for it.
+     */
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        if (callable == null || unit == null) {
+            throw new NullPointerException();
+        }
+        
+        BatchRecord batchRecord = newScheduledBatchRecord(delay, unit);
+        BatchReferringRunnable<V> task = newTaskFor(callable, batchRecord, null, batchRecord.getIdealFinishTime(0));
+        enqueueAll(Collections.singletonList(task));
+        
+        return newScheduledFuture(task, batchRecord);
+    }
+    
+    /**
+     * The task is run as a batch with a single element repeated at the fixed rate. The executions that should 
+     * have started while a previous one overran the period are run one after another.
+     * 
+     * @see #submitWithPreferedDurationAtFixedRate(Collection, long, long, long, TimeUnit, CatchUpPolicy)
+     */
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        
+        PeriodicRunnable task = new PeriodicRunnable(command);
+        RepetitionHandle handle = submitWithPreferedDurationAtFixedRate(Collections.singleton(task), initialDelay, 0,
+            period, unit, CatchUpPolicy.BACK_TO_BACK);
+        task.submitted(handle);
+        
+        return newScheduledFuture(task.outcome, ((RepetitionRecordHandle) handle).repetitionRecord);
+    }
+    
+    /**
+     * The task is run as a batch with a single element repeated with the fixed delay.
+     * 
+     * @see #submitWithPreferedDurationAndFixedDelay(Collection, long, long, long, TimeUnit)
+     */
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        if (command == null || unit == null) {
+            throw new NullPointerException();
+        }
+        if (delay <= 0) {
+            throw new IllegalArgumentException("The delay must be positive.");
+        }
+        
+        PeriodicRunnable task = new PeriodicRunnable(command);
+        RepetitionHandle handle = submitWithPreferedDurationAndFixedDelay(Collections.singleton(task), initialDelay, 0,
+            delay, unit);
+        task.submitted(handle);
+        
+        return newScheduledFuture(task.outcome, ((RepetitionRecordHandle) handle).repetitionRecord);
+    }
+    
+    /**
+     * This schedules the given collection of commands so that all commands are finished executing
+     * before the given time. The commands are scheduled so that the overall execution time is as close
+     * to the target time as possible, but the overall time can also exceed the given time if the CPU
+     * is under heavy load for example.
+     * <p>
+     * This of course assumes that the commands are "similar" in their computational requirements, i.e.
+     * that they form a "batch" of similar tasks to execute. During execution, an average execution time
+     * is used to compute the delays between individual runs. This approach would fail horribly if 
+     * the tasks had very different computational demands and took wildly different durations to complete.
+     * For such batches, consider using a different {@link PacingStrategy}, e.g. the 
+     * {@link metlos.executors.batch.pacing.PercentilePacingStrategy}.
+     * <p>
+     * This method is therefore different from {@link #invokeAll(Collection, long, TimeUnit)} which can
+     * cause some tasks to not execute if the timeout occurs.
+     *
+     * @param commands the commands to execute. All of them should have similar computational requirements
+     * for this method to be able to spread their execution in the given duration.
+     * @param duration the duration all the tasks should execute in. This is fulfilled only on best-effort
+     * basis and cannot be guaranteed.
+     * @param unit the time unit of the duration
+     * 
+     * @return the list of futures each corresponding to the execution of a single Runnable from 
+     * the collection of commands in the same sequential order. Note that the tasks are not 
+     * guaranteed to have finished upon return from this method (unlike in the 
+     * {@link #invokeAll(Collection)} method).
+     */
+    public List<Future<?>> executeAllWithin(Collection<? extends Runnable> commands, long duration, TimeUnit unit) {
+        return executeAllWithin(commands, duration, unit, getPacingStrategy());
+    }
+    
+    /**
+     * Akin to {@link #executeAllWithin(Collection, long, TimeUnit)} but uses the provided pacing strategy
+     * instead of the {@link #getPacingStrategy() default one}.
+     */
+    public List<Future<?>> executeAllWithin(Collection<? extends Runnable> commands, long duration, TimeUnit unit,
+        PacingStrategy pacingStrategy) {
+        Runnable[] snapshot = commands.toArray(new Runnable[commands.size()]);
+        Admission admission = admitBatch(snapshot, unit.toNanos(duration), null);
+        Runnable[] admitted = admission.admitted(snapshot);
+        
+        BatchRecord batchRecord = createNewBatchRecord(admitted.length, TimeUnit.NANOSECONDS, admission.durationNanos, 0, pacingStrategy, clock);
+        setTenant(batchRecord, null);
+        batchRecord.initWeights(admitted);
+        batchRecord.commitWork(committedWork, admission.work);
+
+        //it actually is ok if this is negative - we've got so little time to execute
+        //the tasks that we are late already :) - because the execution time of the tasks
+        //will be in past, they will be scheduled with no further delays
+        double precedingWeight = 0;
+        List<BatchReferringRunnable<?>> tasks = new ArrayList<BatchReferringRunnable<?>>(admitted.length);
+        for (Runnable command : admitted) {
+            BatchReferringRunnable<?> task = newTaskFor(command, null, batchRecord, null, batchRecord.getIdealFinishTime(precedingWeight));
+            tasks.add(task);
+            precedingWeight += task.weight;
+        }
+        
+        enqueueAll(tasks);
+        
+        List<Future<?>> ret = new ArrayList<Future<?>>(snapshot.length);
+        Iterator<BatchReferringRunnable<?>> it = tasks.iterator();
+        for (int i = 0; i < snapshot.length; ++i) {
+            ret.add(admission.isShed(i) ? shedTaskFor(snapshot[i]) : it.next());
+        }
+        
+        return ret;
+    }
+
+    /**
+     * Akin to {@link #executeAllWithin(Collection, long, TimeUnit)} but doesn't collect the futures.
+     * <p>
+     * This method is more appropriate if you don't need to know the results of the commands or if you
+     * submit a large number of them and are memory-constrained. Unless a subclass decides otherwise, the whole
+     * batch occupies just a single entry in the queue of the executor. The exceptions thrown by the commands 
+     * are logged.
+     * <p>
+     * The returned handle can be used to wait for the whole batch to finish, to check its progress or to cancel it.
+     * 
+     * @return the handle to the batch
+     * 
+     * @see #executeAllWithin(Collection, long, TimeUnit)
+     */
+    public BatchHandle submitWithPreferedDuration(Collection<? extends Runnable> commands, long duration, TimeUnit unit) {
+        return submitWithPreferedDuration(commands, duration, unit, getPacingStrategy());
+    }
+    
+    /**
+     * Akin to {@link #submitWithPreferedDuration(Collection, long, TimeUnit)} but uses the provided pacing strategy
+     * instead of the {@link #getPacingStrategy() default one}.
+     */
+    public BatchHandle submitWithPreferedDuration(Collection<? extends Runnable> commands, long duration,
+        TimeUnit unit, PacingStrategy pacingStrategy) {
+        Runnable[] snapshot = commands.toArray(new Runnable[commands.size()]);
+        Admission admission = admitBatch(snapshot, unit.toNanos(duration), null);
+        Runnable[] tasks = admission.admitted(snapshot);
+        
+        BatchRecord batchRecord = createNewBatchRecord(tasks.length, TimeUnit.NANOSECONDS, admission.durationNanos, 0, pacingStrategy, clock);
+        setTenant(batchRecord, null);
+        batchRecord.initWeights(tasks);
+        batchRecord.commitWork(committedWork, admission.work);
+
+        enqueueBatch(tasks, batchRecord, null);
+        
+        return new BatchRecordHandle(batchRecord);
+    }
+    
+    /**
+     * Akin to {@link #submitWithPreferedDuration(Collection, long, TimeUnit)} but the commands are pulled
+     * from the provided iterator only at the time they are due to be run. This is useful for very large
+     * batches that would not fit in memory if they were to be created up front, e.g. the tasks derived from
+     * the rows of a database cursor.
+     * <p>
+     * The iterator is only ever accessed by a single thread at a time (while synchronized on it) but
+     * it is accessed by the threads of this executor, not by the caller of this method.
+     * <p>
+     * The expected number of elements is used to pace the batch. If the iterator provides fewer elements,
+     * the batch simply finishes sooner, if it provides more elements, they are run as soon as possible.
+     * 
+     * @param commands the iterator to pull the commands from
+     * @param expectedNofElements the expected number of elements the iterator is going to provide
+     * @param duration the duration all the tasks should execute in. This is fulfilled only on best-effort
+     * basis and cannot be guaranteed.
+     * @param unit the time unit of the duration
+     * @return the handle to the batch
+     */
+    public BatchHandle submitWithPreferedDuration(Iterator<? extends Runnable> commands, int expectedNofElements,
+        long duration, TimeUnit unit) {
+        return submitWithPreferedDuration(commands, expectedNofElements, duration, unit, getPacingStrategy());
+    }
+    
+    /**
+     * Akin to {@link #submitWithPreferedDuration(Iterator, int, long, TimeUnit)} but uses the provided pacing 
+     * strategy instead of the {@link #getPacingStrategy() default one}.
+     */
+    public BatchHandle submitWithPreferedDuration(Iterator<? extends Runnable> commands, int expectedNofElements,
+        long duration, TimeUnit unit, PacingStrategy pacingStrategy) {
+        if (expectedNofElements < 1) {
+            expectedNofElements = 1;
+        }
+        
+        BatchRecord batchRecord = createNewBatchRecord(expectedNofElements, unit, duration, 0, pacingStrategy, clock);
+        setTenant(batchRecord, null);
+        
+        long idealFinishTime = batchRecord.nextElementStartTime.get();
+        long increment = (batchRecord.finishTimeNanos - idealFinishTime) / batchRecord.nofElements;
+        enqueue(newLazyBatchTaskFor(commands, batchRecord, null, idealFinishTime, increment));
+        
+        return new BatchRecordHandle(batchRecord);
+    }
+    
+    /**
+     * Another variation on {@link #invokeAllWithin(Collection, long, TimeUnit)}. The commands
+     * will be run repeatedly (forever) with each "batch" executing with given duration.
+     * There will be a given delay between two consecutive executions of the command sets.
+     * <p>
+     * Each execution takes a snapshot of the provided collection and executes only the commands
+     * present in the collection at the time of the call of this method. Once all the commands executed,
+     * another snapshot of the collection is taken and the commands are rescheduled.
+     * <p>
+     * This means that if you intend the collection of the commands to be mutable and change over time once
+     * it has been submitted to the executor, the collection <b>MUST</b> be able to handle concurrent
+     * access and modification.
+     * 
+     * @param commands the collection of commands to repeatedly execute
+     * @param initialDelay the initial delay before the execution starts (in the provided time unit)
+     * @param duration the expected duration of the execution of all commands
+     * @param delay the delay between two consecutive executions of the command sets
+     * @param unit the time unit of the time related parameters
+     * @return the handle to control the repetitions with
+     */
+    public RepetitionHandle submitWithPreferedDurationAndFixedDelay(Collection<? extends Runnable> commands, long initialDelay, long duration, long delay, TimeUnit unit) {
+        return submitWithPreferedDurationAndFixedDelay(commands, initialDelay, duration, delay, unit, getPacingStrategy());
+    }
+    
+    /**
+     * Akin to {@link #submitWithPreferedDurationAndFixedDelay(Collection, long, long, long, TimeUnit)} but uses
+     * the provided pacing strategy instead of the {@link #getPacingStrategy() default one}. Each repetition gets
+     * a new pacer from the strategy.
+     */
+    public RepetitionHandle submitWithPreferedDurationAndFixedDelay(Collection<? extends Runnable> commands, long initialDelay,
+        long duration, long delay, TimeUnit unit, PacingStrategy pacingStrategy) {
+        return submitWithPreferedDurationAndFixedDelay(commands, initialDelay, duration, delay, unit, pacingStrategy, null);
+    }
+    
+    /**
+     * Akin to {@link #submitWithPreferedDurationAndFixedDelay(Collection, long, long, long, TimeUnit, PacingStrategy)}
+     * but the execution times of the commands are recorded in the provided cost model. The model then provides
+     * the weights of the commands in the subsequent repetitions, so that each repetition is paced according to 
+     * what was learned about the commands in the previous ones.
+     * 
+     * @param costModel the cost model to use, can be null
+     */
+    public RepetitionHandle submitWithPreferedDurationAndFixedDelay(Collection<? extends Runnable> commands, long initialDelay,
+        long duration, long delay, TimeUnit unit, PacingStrategy pacingStrategy, TaskCostModel costModel) {
+        RepetitionRecord repetitionRecord = new RepetitionRecord();
+        repetitionRecord.tasks = commands;
+        repetitionRecord.delayNanos = unit.toNanos(delay);
+        repetitionRecord.durationNanos = unit.toNanos(duration);
+        repetitionRecord.pacingStrategy = pacingStrategy;
+        repetitionRecord.costModel = costModel;
+        initOverlap(repetitionRecord);
+        
+        submitRepetition(repetitionRecord, unit.toNanos(initialDelay), repetitionRecord.durationNanos);
+        
+        return new RepetitionRecordHandle(repetitionRecord);
+    }
+    
+    /**
+     * Similar to {@link #submitWithPreferedDurationAndFixedDelay(Collection, long, long, long, TimeUnit)} but
+     * the repetitions start at a fixed rate. The n-th repetition is scheduled to start at 
+     * <code>initialDelay + n * period</code> after this call, regardless of how long the previous repetitions took,
+     * so the schedule doesn't drift.
+     * <p>
+     * A repetition never starts before the previous one has finished. If a repetition overruns the period,
+     * the catch-up policy determines what happens with the repetitions that should have already started.
+     * <p>
+     * To align the repetitions with the wall-clock boundaries (e.g. every full 5 minutes), use
+     * {@link #getDelayToNextWallClockBoundary(long, TimeUnit)} as the initial delay.
+     * 
+     * @param commands the collection of commands to repeatedly execute
+     * @param initialDelay the initial delay before the first repetition starts
+     * @param duration the expected duration of the execution of all commands, should be shorter than the period
+     * @param period the period of the repetitions
+     * @param unit the time unit of the time related parameters
+     * @param catchUpPolicy what to do when a repetition overruns the period
+     * @return the handle to control the repetitions with
+     */
+    public RepetitionHandle submitWithPreferedDurationAtFixedRate(Collection<? extends Runnable> commands, long initialDelay,
+        long duration, long period, TimeUnit unit, CatchUpPolicy catchUpPolicy) {
+        return submitWithPreferedDurationAtFixedRate(commands, initialDelay, duration, period, unit, catchUpPolicy,
+            getPacingStrategy(), null);
+    }
+    
+    /**
+     * Akin to {@link #submitWithPreferedDurationAtFixedRate(Collection, long, long, long, TimeUnit, CatchUpPolicy)}
+     * but uses the provided pacing strategy and cost model.
+     * 
+     * @param costModel the cost model to use, can be null
+     * 
+     * @see #submitWithPreferedDurationAndFixedDelay(Collection, long, long, long, TimeUnit, PacingStrategy, TaskCostModel)
+     */
+    public RepetitionHandle submitWithPreferedDurationAtFixedRate(Collection<? extends Runnable> commands, long initialDelay,
+        long duration, long period, TimeUnit unit, CatchUpPolicy catchUpPolicy, PacingStrategy pacingStrategy,
+        TaskCostModel costModel) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("The period must be positive.");
+        }
+        if (catchUpPolicy == null) {
+            throw new NullPointerException("catchUpPolicy");
+        }
+        
+        RepetitionRecord repetitionRecord = new RepetitionRecord();
+        repetitionRecord.tasks = commands;
+        repetitionRecord.durationNanos = unit.toNanos(duration);
+        repetitionRecord.periodNanos = unit.toNanos(period);
+        repetitionRecord.anchorNanos = clock.nanoTime() + unit.toNanos(initialDelay);
+        repetitionRecord.catchUpPolicy = catchUpPolicy;
+        repetitionRecord.pacingStrategy = pacingStrategy;
+        repetitionRecord.costModel = costModel;
+        initOverlap(repetitionRecord);
+        
+        submitRepetition(repetitionRecord, unit.toNanos(initialDelay), repetitionRecord.durationNanos);
+        
+        return new RepetitionRecordHandle(repetitionRecord);
+    }
+    
+    /**
+     * Computes the delay to the next moment the wall-clock time (as returned by {@link System#currentTimeMillis()}) 
+     * is a multiple of the given period. 
+     * 
+     * @param period the period
+     * @param unit the time unit of the period and the returned delay
+     * @return the delay to the next wall-clock boundary
+     */
+    public static long getDelayToNextWallClockBoundary(long period, TimeUnit unit) {
+        long periodMillis = unit.toMillis(period);
+        if (periodMillis <= 0) {
+            return 0;
+        }
+        
+        long nowMillis = System.currentTimeMillis();
+        long delayMillis = periodMillis - nowMillis % periodMillis;
+        return unit.convert(delayMillis == periodMillis ? 0 : delayMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Akin to {@link #executeAllWithin(Collection, long, TimeUnit)} but using Callables.
+     */
+    public <T> List<Future<T>>
+        invokeAllWithin(Collection<? extends Callable<T>> commands, long duration, TimeUnit unit) {
+        return invokeAllWithin(commands, duration, unit, getPacingStrategy());
+    }
+    
+    /**
+     * Akin to {@link #invokeAllWithin(Collection, long, TimeUnit)} but uses the provided pacing strategy
+     * instead of the {@link #getPacingStrategy() default one}.
+     */
+    public <T> List<Future<T>> invokeAllWithin(Collection<? extends Callable<T>> commands, long duration,
+        TimeUnit unit, PacingStrategy pacingStrategy) {
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        Callable<T>[] snapshot = commands.toArray(new Callable[commands.size()]);
+        Admission admission = admitBatch(snapshot, unit.toNanos(duration), null);
+        Callable<T>[] admitted = admission.admitted(snapshot);
+        
+        BatchRecord batchRecord = createNewBatchRecord(admitted.length, TimeUnit.NANOSECONDS, admission.durationNanos, 0, pacingStrategy, clock);
+        setTenant(batchRecord, null);
+        batchRecord.initWeights(admitted);
+        batchRecord.commitWork(committedWork, admission.work);
+        
+        //it actually is ok if this is negative - we've got so little time to execute
+        //the tasks that we are late already :) - because the execution time of the tasks
+        //will be in past, they will be scheduled with no further delays
+        double precedingWeight = 0;
+        List<BatchReferringRunnable<T>> tasks = new ArrayList<BatchReferringRunnable<T>>(admitted.length);
+        for (Callable<T> command : admitted) {
+            BatchReferringRunnable<T> task = newTaskFor(command, batchRecord, null, batchRecord.getIdealFinishTime(precedingWeight));
+            tasks.add(task);
+            precedingWeight += task.weight;
+        }
+
+        enqueueAll(tasks);
+        
+        List<Future<T>> ret = new ArrayList<Future<T>>(snapshot.length);
+        Iterator<BatchReferringRunnable<T>> it = tasks.iterator();
+        for (int i = 0; i < snapshot.length; ++i) {
+            ret.add(admission.isShed(i) ? shedTaskFor(snapshot[i]) : it.next());
+        }
+        
+        return ret;
+    }
+
+    /**
+     * Akin to {@link #invokeAllWithin(Collection, long, TimeUnit)} but the tasks only start their work when they run
+     * and report its completion later. The workers are only occupied while starting the tasks, yet each task counts
+     * as running until it completes, so the batch is paced according to the time the work really took.
+     * <p>
+     * The admission control doesn't apply to these batches, because their work doesn't occupy the workers.
+     * 
+     * @param tasks the tasks to start
+     * @param duration the preferred duration of the batch
+     * @param unit the time unit of the duration
+     * @return the futures completing with the outcomes of the tasks
+     */
+    public <T> List<Future<T>> invokeAllAsyncWithin(Collection<? extends AsyncTask<T>> tasks, long duration,
+        TimeUnit unit) {
+        return invokeAllAsyncWithin(tasks, duration, unit, getPacingStrategy());
+    }
+    
+    /**
+     * Akin to {@link #invokeAllAsyncWithin(Collection, long, TimeUnit)} but uses the provided pacing strategy
+     * instead of the {@link #getPacingStrategy() default one}.
+     */
+    public <T> List<Future<T>> invokeAllAsyncWithin(Collection<? extends AsyncTask<T>> tasks, long duration,
+        TimeUnit unit, PacingStrategy pacingStrategy) {
+        Object[] snapshot = tasks.toArray();
+        
+        BatchRecord batchRecord = createNewBatchRecord(snapshot.length, unit, duration, 0, pacingStrategy, clock);
+        setTenant(batchRecord, null);
+        batchRecord.initWeights(snapshot);
+        
+        double precedingWeight = 0;
+        List<BatchReferringRunnable<T>> runnables = new ArrayList<BatchReferringRunnable<T>>(snapshot.length);
+        for (Object t : snapshot) {
+            @SuppressWarnings("unchecked")
+            AsyncTask<T> task = (AsyncTask<T>) t;
+            BatchReferringRunnable<T> runnable = newAsyncTaskFor(task, batchRecord, batchRecord.getIdealFinishTime(precedingWeight));
+            runnables.add(runnable);
+            precedingWeight += runnable.weight;
+        }
+        
+        enqueueAll(runnables);
+        
+        return new ArrayList<Future<T>>(runnables);
+    }
+    
+    /**
+     * Submits a single repetition of a repeated batch.
+     * 
+     * @param repetitionRecord the repetition record of the batch
+     * @param initialDelayNanos the delay before the repetition starts
+     * @param durationNanos the duration of the repetition
+     */
+    protected void submitRepetition(RepetitionRecord repetitionRecord, long initialDelayNanos, long durationNanos) {
+        Collection<? extends Runnable> commands = repetitionRecord.tasks;
+        
+        prepareForNextRepetition(commands);
+        
+        TaskCostModel costModel = repetitionRecord.costModel;
+        if (costModel != null) {
+            costModel.startRound();
+        }
+        
+        Runnable[] tasks;
+        if (repetitionRecord.reuse) {
+            Runnable[] snapshot = repetitionRecord.snapshot;
+            int size = commands.size();
+            tasks = commands.toArray(snapshot != null && snapshot.length == size ? snapshot : new Runnable[size]);
+            repetitionRecord.snapshot = tasks;
+        } else {
+            tasks = commands.toArray(new Runnable[commands.size()]);
+        }
+        
+        //only the first repetition can be rejected, there's no one to tell about the rejection of the later ones
+        long work = estimateWork(tasks, costModel);
+        Admission admission = admit(tasks, work, durationNanos, costModel, repetitionRecord.batchRecord == null);
+        if (admission != null) {
+            durationNanos = admission.durationNanos;
+            work = admission.work;
+            tasks = admission.admitted(tasks);
+        }
+        
+        BatchRecord batchRecord;
+        if (repetitionRecord.reuse) {
+            batchRecord = repetitionRecord.batchRecord;
+            if (batchRecord == null) {
+                batchRecord = createNewBatchRecord(tasks.length, TimeUnit.NANOSECONDS, durationNanos, initialDelayNanos, repetitionRecord.pacingStrategy, clock);
+            } else {
+                batchRecord.reset(tasks.length, durationNanos, initialDelayNanos);
+                if (batchRecord.pacer instanceof ResettablePacer) {
+                    ((ResettablePacer) batchRecord.pacer).reset();
+                } else {
+                    batchRecord.pacer = repetitionRecord.pacingStrategy.newPacer();
+                }
+            }
+        } else {
+            batchRecord = createNewBatchRecord(tasks.length, TimeUnit.NANOSECONDS, durationNanos, initialDelayNanos, repetitionRecord.pacingStrategy, clock);
+        }
+        
+        batchRecord.costModel = costModel;
+        batchRecord.initWeights(tasks);
+        batchRecord.maximumCpuUsage = repetitionRecord.maximumCpuUsage;
+        batchRecord.shareWeight = repetitionRecord.shareWeight;
+        setTenant(batchRecord, repetitionRecord.tenant);
+        batchRecord.commitWork(committedWork, work);
+        
+        synchronized (repetitionRecord) {
+            if (repetitionRecord.paused) {
+                batchRecord.pausedAt = batchRecord.now();
+                batchRecord.paused = true;
+            }
+            repetitionRecord.batchRecord = batchRecord;
+        }
+        
+        enqueueBatch(tasks, batchRecord, repetitionRecord);
+    }
+    
+    /**
+     * Called when a repetition of a repeated batch finishes. Determines when the next repetition should
+     * start and submits it.
+     * 
+     * @param repetitionRecord the repetition record of the batch
+     */
+    protected void scheduleNextRepetition(RepetitionRecord repetitionRecord) {
+        scheduleNextRepetition(repetitionRecord, 0);
+    }
+    
+    /**
+     * @param repetitionRecord the repetition record of the batch
+     * @param postponeNanos the time to postpone the next repetition by
+     */
+    private void scheduleNextRepetition(RepetitionRecord repetitionRecord, long postponeNanos) {
+        if (isShutdown() || repetitionRecord.cancelled) {
+            return;
+        }
+        
+        if (repetitionRecord.periodNanos <= 0) {
+            submitRepetition(repetitionRecord, repetitionRecord.delayNanos + postponeNanos, repetitionRecord.durationNanos);
+            return;
+        }
+        
+        long delay;
+        long duration;
+        synchronized (repetitionRecord) {
+            long now = clock.nanoTime();
+            long period = repetitionRecord.periodNanos;
+            long anchor = repetitionRecord.anchorNanos;
+            long round = repetitionRecord.round + 1;
+            long scheduledStart = anchor + round * period;
+            
+            duration = repetitionRecord.durationNanos;
+            
+            if (scheduledStart >= now) {
+                delay = scheduledStart - now;
+            } else {
+                switch (repetitionRecord.catchUpPolicy) {
+                case SKIP:
+                    round = (now - anchor + period - 1) / period;
+                    delay = anchor + round * period - now;
+                    break;
+                case COMPRESS:
+                    delay = 0;
+                    duration = Math.max(0, scheduledStart + duration - now);
+                    break;
+                default:
+                    delay = 0;
+                }
+            
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Repetition " + round + " is late by " + (now - scheduledStart) + "ns. Applying the " + repetitionRecord.catchUpPolicy + " catch-up policy.");
+                }
+            }
+            
+            repetitionRecord.round = round;
+        }
+        
+        submitRepetition(repetitionRecord, delay + postponeNanos, duration);
+    }
+    
+    private void initOverlap(RepetitionRecord repetitionRecord) {
+        repetitionRecord.overlapNanos = repetitionOverlapNanos;
+        if (repetitionRecord.overlapNanos > 0) {
+            repetitionRecord.runningTasks = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<Object, Boolean>()));
+        } else {
+            repetitionRecord.reuse = reusingRepetitionState;
+        }
+    }
+    
+    /**
+     * Schedules the next repetition of a batch whose last elements are still running. The next repetition
+     * is postponed by the overlap so that the stragglers have a chance to finish.
+     * 
+     * @param repetitionRecord the repetition record of the batch
+     * @param overlapped the batch record of the current repetition
+     */
+    private void scheduleOverlappingRepetition(RepetitionRecord repetitionRecord, BatchRecord overlapped) {
+        synchronized (repetitionRecord) {
+            scheduleNextRepetition(repetitionRecord, repetitionRecord.overlapNanos);
+            repetitionRecord.overlappedRecord = overlapped;
+            repetitionRecord.postponedRecord = repetitionRecord.batchRecord;
+        }
+    }
+    
+    /**
+     * Called when the last straggler of a repetition finishes after the next repetition has already been scheduled.
+     * If the next repetition is still waiting for the stragglers, it is moved to the time it would have started at
+     * if it hadn't been scheduled until now.
+     * 
+     * @param repetitionRecord the repetition record of the batch
+     * @param overlapped the batch record of the repetition that just finished
+     */
+    private void overlappedRepetitionFinished(RepetitionRecord repetitionRecord, BatchRecord overlapped) {
+        BatchRecord postponed;
+        synchronized (repetitionRecord) {
+            if (repetitionRecord.overlappedRecord != overlapped) {
+                return;
+            }
+            
+            postponed = repetitionRecord.postponedRecord;
+            repetitionRecord.overlappedRecord = null;
+            repetitionRecord.postponedRecord = null;
+        }
+        
+        if (postponed == null) {
+            return;
+        }
+        
+        long now = clock.nanoTime();
+        long earliest = Math.max(postponed.startTimeNanos - repetitionRecord.overlapNanos, 
+            now + (repetitionRecord.periodNanos > 0 ? 0 : repetitionRecord.delayNanos));
+        earliest = Math.max(earliest, now);
+        
+        long current = postponed.nextElementStartTime.get();
+        if (earliest >= current || postponed.elementsStarted.get() > 0) {
+            return;
+        }
+        
+        //no element of the postponed batch could have started yet, because its start time is in the future
+        long shift = current - earliest;
+        postponed.startTimeNanos -= shift;
+        postponed.finishTimeNanos -= shift;
+        if (postponed.nextElementStartTime.compareAndSet(current, earliest)) {
+            getTaskQueue().batchReadinessChanged(postponed);
+        }
+    }
+    
+    /**
+     * Enqueues the tasks of a batch the caller is not interested in the results of. 
+     * <p>
+     * By default, the whole batch is put into the queue as a single {@link CompactBatchRunnable}.
+     * Subclasses that need to handle each task individually can override this method and call
+     * {@link #enqueueEach(Runnable[], BatchRecord, RepetitionRecord)} instead.
+     * 
+     * @param tasks the snapshot of the tasks of the batch
+     * @param batchRecord the batch record
+     * @param repetitionRecord the repetition record or null if the batch is not repeated
+     */
+    protected void enqueueBatch(Runnable[] tasks, BatchRecord batchRecord, RepetitionRecord repetitionRecord) {
+        if (tasks.length == 0) {
+            return;
+        }
+        
+        long idealFinishTime = batchRecord.nextElementStartTime.get();
+        long increment = (batchRecord.finishTimeNanos - idealFinishTime) / batchRecord.nofElements;
+        
+        if (repetitionRecord == null || !repetitionRecord.reuse) {
+            enqueue(newBatchTaskFor(tasks, batchRecord, repetitionRecord, idealFinishTime, increment));
+            return;
+        }
+        
+        BatchReferringRunnable<?> entry = repetitionRecord.batchEntry;
+        if (entry instanceof CompactBatchRunnable && ((CompactBatchRunnable) entry).isBackedBy(tasks)
+            && entry.getBatchRecord() == batchRecord && !entry.isDone()) {
+            ((CompactBatchRunnable) entry).restart(idealFinishTime, increment);
+        } else {
+            entry = newBatchTaskFor(tasks, batchRecord, repetitionRecord, idealFinishTime, increment);
+            repetitionRecord.batchEntry = entry;
+        }
+        
+        enqueue(entry);
+    }
+    
+    /**
+     * Enqueues each of the tasks as a separate entry in the queue.
+     * 
+     * @see #enqueueBatch(Runnable[], BatchRecord, RepetitionRecord)
+     */
+    protected void enqueueEach(Runnable[] tasks, BatchRecord batchRecord, RepetitionRecord repetitionRecord) {
+        if (tasks.length == 0) {
+            return;
+        }
+        
+        if (repetitionRecord != null && repetitionRecord.reuse) {
+            enqueueEachReused(tasks, batchRecord, repetitionRecord);
+            return;
+        }
+        
+        double precedingWeight = 0;
+        List<BatchReferringRunnable<?>> entries = new ArrayList<BatchReferringRunnable<?>>(tasks.length);
+        for (Runnable command : tasks) {
+            BatchReferringRunnable<?> task = newTaskFor(command, null, batchRecord, repetitionRecord, batchRecord.getIdealFinishTime(precedingWeight));
+            entries.add(task);
+            precedingWeight += task.weight;
+        }
+        
+        enqueueAll(entries);
+    }
+    
+    /**
+     * Same as {@link #enqueueEach(Runnable[], BatchRecord, RepetitionRecord)} but reuses the task wrappers
+     * from the previous repetition of the batch where possible.
+     */
+    private void enqueueEachReused(Runnable[] tasks, BatchRecord batchRecord, RepetitionRecord repetitionRecord) {
+        List<BatchReferringRunnable<?>> entries = repetitionRecord.entries;
+        Runnable[] wrapped = repetitionRecord.wrappedTasks;
+        if (entries == null) {
+            entries = new ArrayList<BatchReferringRunnable<?>>(tasks.length);
+            repetitionRecord.entries = entries;
+        }
+        
+        double precedingWeight = 0;
+        for (int i = 0; i < tasks.length; ++i) {
+            Runnable command = tasks[i];
+            long idealFinishTime = batchRecord.getIdealFinishTime(precedingWeight);
+            
+            BatchReferringRunnable<?> task = i < entries.size() ? entries.get(i) : null;
+            if (task != null && wrapped != null && i < wrapped.length && wrapped[i] == command
+                && task.getBatchRecord() == batchRecord && !task.isDone()) {
+                task.resetForNextRepetition(idealFinishTime, batchRecord.getWeightOf(command));
+            } else {
+                task = newTaskFor(command, null, batchRecord, repetitionRecord, idealFinishTime);
+                if (i < entries.size()) {
+                    entries.set(i, task);
+                } else {
+                    entries.add(task);
+                }
+            }
+            
+            precedingWeight += task.weight;
+        }
+        
+        for (int i = entries.size() - 1; i >= tasks.length; --i) {
+            entries.remove(i);
+        }
+        
+        if (wrapped == null || wrapped.length != tasks.length) {
+            wrapped = new Runnable[tasks.length];
+            repetitionRecord.wrappedTasks = wrapped;
+        }
+        System.arraycopy(tasks, 0, wrapped, 0, tasks.length);
+        
+        enqueueAll(entries);
+    }
+    
+    /**
+     * Puts all the tasks into the queue at once. This bypasses the per-task checks of the 
+     * {@link #execute(Runnable)} method and instead checks the state of the executor once for the whole
+     * collection of the tasks.
+     * <p>
+     * The tasks are rejected using the {@link #getRejectedExecutionHandler() rejected execution handler} if the executor
+     * has been shut down.
+     * 
+     * @param tasks the tasks to enqueue
+     */
+    protected void enqueueAll(Collection<? extends BatchReferringRunnable<?>> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        
+        if (getCorePoolSize() == 0) {
+            //we need the executor to start the threads for us
+            for (BatchReferringRunnable<?> task : tasks) {
+                super.execute(task);
+            }
+            
+            return;
+        }
+        
+        if (isShutdown()) {
+            for (BatchReferringRunnable<?> task : tasks) {
+                getRejectedExecutionHandler().rejectedExecution(task, this);
+            }
+            
+            return;
+        }
+        
+        if (!elasticPoolSize) {
+            //the core threads might have timed out or died
+            prestartAllCoreThreads();
+        }
+        
+        BatchTaskQueue<BatchReferringRunnable<?>> queue = getTaskQueue();
+        queue.addAll(tasks);
+        
+        if (elasticPoolSize && getPoolSize() == 0) {
+            prestartCoreThread();
+        }
+        
+        if (isShutdown()) {
+            //we raced with the shutdown, so let's reject what we can
+            for (BatchReferringRunnable<?> task : tasks) {
+                if (queue.remove(task)) {
+                    getRejectedExecutionHandler().rejectedExecution(task, this);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Puts a single task to the queue. If the pool is elastic, there might be fewer workers than the core pool size, 
+     * in which case the {@link ThreadPoolExecutor#execute(Runnable)} would hand the task directly to a new worker,
+     * which would run it regardless of whether it's ready or not. This makes sure the task goes through the queue.
+     */
+    private void enqueue(BatchReferringRunnable<?> task) {
+        if (!elasticPoolSize || getCorePoolSize() == 0) {
+            super.execute(task);
+            return;
+        }
+        
+        if (isShutdown()) {
+            getRejectedExecutionHandler().rejectedExecution(task, this);
+            return;
+        }
+        
+        BatchTaskQueue<BatchReferringRunnable<?>> queue = getTaskQueue();
+        queue.offer(task);
+        
+        if (getPoolSize() == 0) {
+            prestartCoreThread();
+        }
+        
+        if (isShutdown() && queue.remove(task)) {
+            getRejectedExecutionHandler().rejectedExecution(task, this);
+        }
+    }
+    
+    protected BatchReferringRunnable<Void> newBatchTaskFor(Runnable[] tasks, BatchRecord batchRecord, RepetitionRecord repetitionRecord, long idealFinishTime, long increment) {
+        return new CompactBatchRunnable(tasks, batchRecord, repetitionRecord, idealFinishTime, increment);
+    }
+    
+    protected BatchReferringRunnable<Void> newLazyBatchTaskFor(Iterator<? extends Runnable> tasks, BatchRecord batchRecord, RepetitionRecord repetitionRecord, long idealFinishTime, long increment) {
+        return new LazyBatchRunnable(tasks, batchRecord, repetitionRecord, idealFinishTime, increment);
     }
-
-    /**
-     * @param corePoolSize
-     * @param maximumPoolSize
-     * @param keepAliveTime
-     * @param unit
-     */
-    public BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit) {
-        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, Executors.defaultThreadFactory(), DEFAULT_REJECTED_EXECUTION_HANDLER, new TaskQueue<BatchReferringRunnable<?>>());
+    
+    protected <V> ScheduledFuture<V> newScheduledFuture(Future<V> future, BatchRecord batchRecord) {
+        return new ScheduledBatchFuture<V>(future, batchRecord);
     }
-
-    /**
-     * @param corePoolSize
-     * @param maximumPoolSize
-     * @param keepAliveTime
-     * @param unit
-     * @param threadFactory
-     */
-    public BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
-        ThreadFactory threadFactory) {
-        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, threadFactory, DEFAULT_REJECTED_EXECUTION_HANDLER, new TaskQueue<BatchReferringRunnable<?>>());
+    
+    protected <V> ScheduledFuture<V> newScheduledFuture(Future<V> future, RepetitionRecord repetitionRecord) {
+        return new ScheduledBatchFuture<V>(future, repetitionRecord);
     }
-
+    
     /**
-     * @param corePoolSize
-     * @param maximumPoolSize
-     * @param keepAliveTime
-     * @param unit
-     * @param threadFactory
-     * @param handler
+     * @return the record of a batch with a single element starting after the delay
      */
-    public BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
-        ThreadFactory threadFactory, RejectedExecutionHandler handler) {
-        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, threadFactory, handler, new TaskQueue<BatchReferringRunnable<?>>());
+    private BatchRecord newScheduledBatchRecord(long delay, TimeUnit unit) {
+        BatchRecord batchRecord = createNewBatchRecord(1, unit, 0, delay, AveragePacingStrategy.INSTANCE, clock);
+        setTenant(batchRecord, null);
+        return batchRecord;
+    }
+    
+    protected <T> BatchReferringRunnable<T> newAsyncTaskFor(AsyncTask<T> task, BatchRecord batchRecord, long idealFinishTime) {
+        return new AsyncBatchRunnable<T>(task, batchRecord, idealFinishTime);
+    }
+    
+    protected <T> BatchReferringRunnable<T> newTaskFor(Callable<T> callable, BatchRecord batchRecord, RepetitionRecord repetitionRecord, long idealFinishTime) {
+        return new BatchReferringRunnable<T>(callable, batchRecord, repetitionRecord, idealFinishTime);
     }
 
-    protected <T extends BatchReferringRunnable<?>> BatchExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, ThreadFactory threadFactory, RejectedExecutionHandler handler, TaskQueue<T> queue) {
-        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, asQueueOfRunnables(queue), threadFactory,
-            handler);
-        init();
+    protected <T> BatchReferringRunnable<T> newTaskFor(Runnable runnable, T result, BatchRecord batchRecord, RepetitionRecord repetitionRecord, long idealFinishTime) {
+        return new BatchReferringRunnable<T>(runnable, result, batchRecord, repetitionRecord, idealFinishTime);
     }
     
+    //these two methods are implemented for the correct interoperability with #invokeAny and other not-overriden
+    //methods.
     @Override
-    public void execute(Runnable command) {
-        Runnable r = newTaskFor(command, null);
-        super.execute(r);
+    protected <T> BatchReferringRunnable<T> newTaskFor(Callable<T> callable) {
+        return newTaskFor(callable, null, null, clock.nanoTime());
     }
 
     @Override
-    public <T> Future<T> submit(Callable<T> task) {
-        RunnableFuture<T> f = newTaskFor(task);
-        super.execute(f);
-        return f;
+    protected <T> BatchReferringRunnable<T> newTaskFor(Runnable runnable, T value) {
+        return newTaskFor(runnable, value, null, null, clock.nanoTime());
+    };
+    
+    /**
+     * @return a cancelled future for a task dropped from its batch by the admission control
+     */
+    private <T> BatchReferringRunnable<T> shedTaskFor(Callable<T> callable) {
+        BatchReferringRunnable<T> ret = newTaskFor(callable, null, null, clock.nanoTime());
+        ret.cancel(false);
+        return ret;
+    }
+    
+    private BatchReferringRunnable<?> shedTaskFor(Runnable runnable) {
+        BatchReferringRunnable<?> ret = newTaskFor(runnable, null, null, null, clock.nanoTime());
+        ret.cancel(false);
+        return ret;
     }
     
+    /**
+     * Keeps track of the busy workers. The subclasses overriding this method must call it.
+     */
     @Override
-    public Future<?> submit(Runnable task) {
-        RunnableFuture<?> f = newTaskFor(task, null);
-        super.execute(f);
-        return f;
+    protected void beforeExecute(Thread t, Runnable r) {
+        busyWorkers.incrementAndGet();
     }
     
+    /**
+     * Keeps track of the busy workers. The subclasses overriding this method must call it.
+     */
     @Override
-    public <T> Future<T> submit(Runnable task, T result) {
-        RunnableFuture<T> f = newTaskFor(task, result);
-        super.execute(f);
-        return f;
-    };
+    protected void afterExecute(Runnable r, Throwable t) {
+        busyWorkers.decrementAndGet();
+    }
     
     /**
-     * This schedules the given collection of commands so that all commands are finished executing
-     * before the given time. The commands are scheduled so that the overall execution time is as close
-     * to the target time as possible, but the overall time can also exceed the given time if the CPU
-     * is under heavy load for example.
-     * <p>
-     * This of course assumes that the commands are "similar" in their computational requirements, i.e.
-     * that they form a "batch" of similar tasks to execute. During execution, an average execution time
-     * is used to compute the delays between individual runs. This approach would fail horribly if 
-     * the tasks had very different computational demands and took wildly different durations to complete.
+     * The number of the elements this executor is able to run in parallel. This is used by the admission control
+     * to estimate whether a batch can finish in time.
      * <p>
-     * This method is therefore different from {@link #invokeAll(Collection, long, TimeUnit)} which can
-     * cause some tasks to not execute if the timeout occurs.
-     *
-     * @param commands the commands to execute. All of them should have similar computational requirements
-     * for this method to be able to spread their execution in the given duration.
-     * @param duration the duration all the tasks should execute in. This is fulfilled only on best-effort
-     * basis and cannot be guaranteed.
-     * @param unit the time unit of the duration
+     * By default, this is the core pool size.
      * 
-     * @return the list of futures each corresponding to the execution of a single Runnable from 
-     * the collection of commands in the same sequential order. Note that the tasks are not 
-     * guaranteed to have finished upon return from this method (unlike in the 
-     * {@link #invokeAll(Collection)} method).
+     * @see #setAdmissionPolicy(AdmissionPolicy)
      */
-    public List<Future<?>> executeAllWithin(Collection<? extends Runnable> commands, long duration, TimeUnit unit) {
-        BatchRecord batchRecord = createNewBatchRecord(commands.size(), unit, duration, 0);
-
-        //it actually is ok if this is negative - we've got so little time to execute
-        //the tasks that we are late already :) - because the execution time of the tasks
-        //will be in past, they will be scheduled with no further delays
-        long idealFinishTime = batchRecord.nextElementStartTime.get();
-        long increment = (batchRecord.finishTimeNanos - idealFinishTime) / batchRecord.nofElements;
-        List<Future<?>> ret = new ArrayList<Future<?>>();
-        for (Runnable command : commands) {
-            RunnableFuture<?> task = newTaskFor(command, null, batchRecord, null, idealFinishTime);
-            super.execute(task);
-            ret.add(task);
-            idealFinishTime += increment;
+    protected double getProcessingCapacity() {
+        return Math.max(1, getCorePoolSize());
+    }
+    
+    /**
+     * Starts another worker of the elastic pool, up to the core pool size, if all the workers are busy and there
+     * are ready tasks in the queue. The size of the pool, which locks the executor, is only looked at when there's
+     * room for another core worker and then at most once per the time slot of an element of the batch.
+     * 
+     * @param batchRecord the batch an element of which is just starting
+     * @param now the current time
+     */
+    private void startWorkerIfNeeded(BatchRecord batchRecord, long now) {
+        int busy = busyWorkers.get();
+        if (busy >= getCorePoolSize() || !batchRecord.isPoolCheckDue(now)) {
+            return;
         }
         
-        return ret;
+        if (getPoolSize() <= busy && getQueue().peek() != null) {
+            prestartCoreThread();
+        }
     }
-
+    
     /**
-     * Akin to {@link #executeAllWithin(Collection, long, TimeUnit)} but doesn't collect the futures.
-     * <p>
-     * This method is more appropriate if you don't need to know the results of the commands or if you
-     * submit a large number of them and are memory-constrained.
+     * Adds a worker to the elastic pool if the batch falls behind its ideal schedule for the lack of the workers and
+     * lowers the core pool size back if some of the workers retired.
      * 
-     * @see #executeAllWithin(Collection, long, TimeUnit)
+     * @param batchRecord the batch an element of which just finished
+     * @param nextStartTime the time the next element of the batch is going to start
      */
-    public void submitWithPreferedDuration(Collection<? extends Runnable> commands, long duration, TimeUnit unit) {
-        BatchRecord batchRecord = createNewBatchRecord(commands.size(), unit, duration, 0);
-
-        long idealFinishTime = batchRecord.nextElementStartTime.get();
-        long increment = (batchRecord.finishTimeNanos - idealFinishTime) / batchRecord.nofElements;
-        for (Runnable command : commands) {
-            RunnableFuture<?> task = newTaskFor(command, null, batchRecord, null, idealFinishTime);
-            super.execute(task);
-            idealFinishTime += increment;
+    private void resizePool(BatchRecord batchRecord, long nextStartTime) {
+        long now = batchRecord.now();
+        int corePoolSize = getCorePoolSize();
+        long lag = now - batchRecord.getIdealFinishTime(batchRecord.getFinishedWeight());
+        long elementSlot = (batchRecord.finishTimeNanos - batchRecord.startTimeNanos) / Math.max(1, batchRecord.nofElements);
+        
+        if (nextStartTime <= now && lag > elementSlot) {
+            int busy = busyWorkers.get();
+            if (busy < corePoolSize) {
+                //either there's an idle worker to pick up the next element or another core worker can be started
+                if (batchRecord.isPoolCheckDue(now) && getPoolSize() <= busy) {
+                    prestartCoreThread();
+                }
+            } else if (corePoolSize < getMaximumPoolSize()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Batch " + batchRecord + " is " + lag + "ns behind. Raising the core pool size to " + (corePoolSize + 1) + ".");
+                }
+                setCorePoolSize(corePoolSize + 1);
+            }
+        } else if (corePoolSize > baseCorePoolSize && batchRecord.isPoolCheckDue(now)) {
+            int poolSize = getPoolSize();
+            if (poolSize < corePoolSize) {
+                setCorePoolSize(Math.max(baseCorePoolSize, poolSize));
+            }
         }
     }
     
     /**
-     * Another variation on {@link #invokeAllWithin(Collection, long, TimeUnit)}. The commands
-     * will be run repeatedly (forever) with each "batch" executing with given duration.
-     * There will be a given delay between two consecutive executions of the command sets.
-     * <p>
-     * Each execution takes a snapshot of the provided collection and executes only the commands
-     * present in the collection at the time of the call of this method. Once all the commands executed,
-     * another snapshot of the collection is taken and the commands are rescheduled.
-     * <p>
-     * This means that if you intend the collection of the commands to be mutable and change over time once
-     * it has been submitted to the executor, the collection <b>MUST</b> be able to handle concurrent
-     * access and modification.
+     * Defers the pacing delays shorter than the {@link #setPacingGranularity(long, TimeUnit) pacing granularity}
+     * until they add up to it.
      * 
-     * @param commands the collection of commands to repeatedly execute
-     * @param initialDelay the initial delay before the execution starts (in the provided time unit)
-     * @param duration the expected duration of the execution of all commands
-     * @param delay the delay between two consecutive executions of the command sets
-     * @param unit the time unit of the time related parameters
+     * @param batchRecord the batch being paced
+     * @param nextStartTime the next start time as determined by the pacer
+     * @return the next start time to use
      */
-    public void submitWithPreferedDurationAndFixedDelay(Collection<? extends Runnable> commands, long initialDelay, long duration, long delay, TimeUnit unit) {
-        prepareForNextRepetition(commands);
+    private long coarsen(BatchRecord batchRecord, long nextStartTime) {
+        long granularity = pacingGranularityNanos;
+        if (granularity == 0) {
+            return nextStartTime;
+        }
         
-        BatchRecord batchRecord = createNewBatchRecord(commands.size(), unit, duration, initialDelay);
+        long now = batchRecord.now();
+        long delay = nextStartTime - now;
+        if (delay <= 0 || delay >= granularity) {
+            return nextStartTime;
+        }
         
-        RepetitionRecord repetitionRecord = new RepetitionRecord();
-        repetitionRecord.tasks = commands;
-        repetitionRecord.delayNanos = unit.toNanos(delay);
-        repetitionRecord.durationNanos = unit.toNanos(duration);
+        long deferred = batchRecord.deferredDelay.addAndGet(delay);
+        if (deferred < granularity) {
+            return now;
+        }
         
-        long idealFinishTime = batchRecord.nextElementStartTime.get();
-        long increment = (batchRecord.finishTimeNanos - idealFinishTime) / batchRecord.nofElements;
-        for (Runnable command : commands) {
-            RunnableFuture<?> task = newTaskFor(command, null, batchRecord, repetitionRecord, idealFinishTime);
-            super.execute(task);
-            idealFinishTime += increment;
+        batchRecord.deferredDelay.addAndGet(-deferred);
+        return now + deferred;
+    }
+    
+    /**
+     * Feeds the execution time of an element into the estimate used by the admission control.
+     */
+    private void observeCost(long durationNanos, double weight) {
+        double sample = durationNanos / weight;
+        double average = observedCostPerWeight;
+        observedCostPerWeight = Double.isNaN(average) ? sample : average + OBSERVED_COST_ALPHA * (sample - average);
+    }
+    
+    /**
+     * @return the estimated time the tasks need to run or 0 if it can't be estimated
+     */
+    private long estimateWork(Object[] tasks, TaskCostModel costModel) {
+        double costPerWeight = observedCostPerWeight;
+        if (costModel == null && Double.isNaN(costPerWeight)) {
+            return 0;
+        }
+        
+        double work = 0;
+        for (int i = 0; i < tasks.length; ++i) {
+            work += estimateWork(tasks[i], costModel, costPerWeight);
         }
+        
+        return (long) work;
     }
+    
+    private static double estimateWork(Object task, TaskCostModel costModel, double costPerWeight) {
+        if (costModel != null) {
+            double estimate = costModel.getEstimatedDuration(task);
+            if (!Double.isNaN(estimate)) {
+                return estimate;
+            }
+        }
+        
+        if (Double.isNaN(costPerWeight)) {
+            return 0;
+        }
         
+        return costPerWeight * (costModel == null ? weightOf(task) : costModel.getWeight(task));
+    }
+    
+    private AdmissionVerdict getVerdict(long work, long durationNanos) {
+        return new AdmissionVerdict(work, Math.max(0, committedWork.get()), getProcessingCapacity(), durationNanos);
+    }
+    
     /**
-     * Akin to {@link #executeAllWithin(Collection, long, TimeUnit)} but using Callables.
+     * Same as {@link #admit(Object[], long, long, TaskCostModel, boolean)} but always returns the admission.
      */
-    public <T> List<Future<T>>
-        invokeAllWithin(Collection<? extends Callable<T>> commands, long duration, TimeUnit unit) {
-        BatchRecord batchRecord = createNewBatchRecord(commands.size(), unit, duration, 0);
+    private Admission admitBatch(Object[] tasks, long durationNanos, TaskCostModel costModel) {
+        long work = estimateWork(tasks, costModel);
+        Admission ret = admit(tasks, work, durationNanos, costModel, true);
+        return ret == null ? new Admission(durationNanos, work, null, 0) : ret;
+    }
+    
+    /**
+     * Applies the {@link #getAdmissionPolicy() admission policy} to a batch.
+     * 
+     * @param tasks the tasks of the batch
+     * @param work the estimated work of the tasks
+     * @param durationNanos the duration of the batch
+     * @param costModel the cost model of the batch, can be null
+     * @param mayReject whether the batch can be rejected
+     * @return null if the batch is admitted as is, otherwise how the batch is admitted
+     * @throws BatchAdmissionException if the batch is rejected
+     */
+    private Admission admit(Object[] tasks, long work, long durationNanos, TaskCostModel costModel, boolean mayReject) {
+        AdmissionPolicy policy = admissionPolicy;
+        if (policy == AdmissionPolicy.ACCEPT || work == 0) {
+            return null;
+        }
         
-        //it actually is ok if this is negative - we've got so little time to execute
-        //the tasks that we are late already :) - because the execution time of the tasks
-        //will be in past, they will be scheduled with no further delays
-        long increment = (batchRecord.finishTimeNanos - now()) / batchRecord.nofElements;
-        long idealFinishTime = batchRecord.nextElementStartTime.get();
-        List<Future<T>> ret = new ArrayList<Future<T>>();
-        for (Callable<T> command : commands) {
-            RunnableFuture<T> task = newTaskFor(command, batchRecord, null, idealFinishTime);
-            super.execute(task);
-            ret.add(task);
-            idealFinishTime += increment;
+        AdmissionVerdict verdict = getVerdict(work, durationNanos);
+        if (verdict.isFeasible()) {
+            return null;
+        }
+        
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Applying the " + policy + " admission policy to a batch of " + tasks.length + " tasks. " + verdict);
+        }
+        
+        switch (policy) {
+        case REJECT:
+            if (mayReject) {
+                throw new BatchAdmissionException(verdict);
+            }
+            return null;
+        case EXTEND_DEADLINE:
+            return new Admission(verdict.getRequiredDuration(TimeUnit.NANOSECONDS), work, null, 0);
+        case SHED:
+            return shed(tasks, work, durationNanos, costModel, verdict);
+        default:
+            return null;
         }
-
-        return ret;
     }
-
-    protected <T> BatchReferringRunnable<T> newTaskFor(Callable<T> callable, BatchRecord batchRecord, RepetitionRecord repetitionRecord, long idealFinishTime) {
-        return new BatchReferringRunnable<T>(callable, batchRecord, repetitionRecord, idealFinishTime);
+    
+    /**
+     * Drops the tasks with the lowest priority until the rest of the batch fits in the duration.
+     */
+    private Admission shed(final Object[] tasks, long work, long durationNanos, TaskCostModel costModel, AdmissionVerdict verdict) {
+        double costPerWeight = observedCostPerWeight;
+        double available = verdict.getCapacity() * durationNanos - verdict.getCommittedWork(TimeUnit.NANOSECONDS);
+        
+        Integer[] order = new Integer[tasks.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        
+        //the lowest priority first, from the end of the batch among the same priorities
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                int p1 = priorityOf(tasks[o1]);
+                int p2 = priorityOf(tasks[o2]);
+                if (p1 != p2) {
+                    return p1 < p2 ? -1 : 1;
+                }
+                
+                return o2.compareTo(o1);
+            }
+        });
+        
+        boolean[] shed = new boolean[tasks.length];
+        int nofShed = 0;
+        double remaining = work;
+        for (int i = 0; i < order.length - 1 && remaining > available; ++i) {
+            int index = order[i];
+            shed[index] = true;
+            ++nofShed;
+            remaining -= estimateWork(tasks[index], costModel, costPerWeight);
+        }
+        
+        return new Admission(durationNanos, (long) Math.max(0, remaining), shed, nofShed);
     }
-
-    protected <T> BatchReferringRunnable<T> newTaskFor(Runnable runnable, T result, BatchRecord batchRecord, RepetitionRecord repetitionRecord, long idealFinishTime) {
-        return new BatchReferringRunnable<T>(runnable, result, batchRecord, repetitionRecord, idealFinishTime);
+    
+    private static int priorityOf(Object task) {
+        return task instanceof PrioritizedTask ? ((PrioritizedTask) task).getPriority() : 0;
     }
     
-    //these two methods are implemented for the correct interoperability with #invokeAny and other not-overriden
-    //methods.
-    @Override
-    protected <T> BatchReferringRunnable<T> newTaskFor(Callable<T> callable) {
-        return newTaskFor(callable, null, null, now());
+    /**
+     * Subclasses can hold back the batches of some tenants, e.g. to limit how much CPU time the tenants use.
+     * By default, the tenants are only tags and nothing holds their batches back.
+     * 
+     * @param tenant the tenant or null for the batches not assigned to any tenant
+     * @return the gate the batches of the tenant need to pass or null if they can run whenever they are ready
+     */
+    protected ReadinessGate getReadinessGate(String tenant) {
+        return null;
+    }
+    
+    private void setTenant(BatchRecord batchRecord, String tenant) {
+        batchRecord.tenant = tenant;
+        batchRecord.gate = getReadinessGate(tenant);
+    }
+    
+    private static void checkShareWeight(double shareWeight) {
+        if (!(shareWeight > 0) || Double.isInfinite(shareWeight)) {
+            throw new IllegalArgumentException("The share weight must be a positive number but was " + shareWeight + ".");
+        }
+    }
+    
+    /**
+     * @return the clock the executor paces the batches by
+     */
+    public Clock getClock() {
+        return clock;
     }
-
-    @Override
-    protected <T> BatchReferringRunnable<T> newTaskFor(Runnable runnable, T value) {
-        return newTaskFor(runnable, value, null, null, now());
-    };
     
+    /**
+     * @return the current time of the {@link #SYSTEM_CLOCK}
+     */
     protected static long now() {
-        return System.nanoTime() - EPOCH_START;
+        return SYSTEM_CLOCK.nanoTime();
     }
 
+    /**
+     * @param task the task to determine the weight of
+     * @return the weight of the task if it is a {@link WeightedTask}, 1 otherwise
+     * @throws IllegalArgumentException if the task declares a weight that is not a positive number
+     */
+    protected static double weightOf(Object task) {
+        if (!(task instanceof WeightedTask)) {
+            return 1;
+        }
+        
+        double weight = ((WeightedTask) task).getWeight();
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("The weight of a task must be a positive number but " + task + " has the weight of " + weight + ".");
+        }
+        
+        return weight;
+    }
+    
+    /**
+     * @return true if the task wrappers of the batch need to keep the reference to the task they wrap
+     */
+    private static boolean keepsTask(BatchRecord batchRecord, RepetitionRecord repetitionRecord) {
+        return batchRecord != null
+            && (batchRecord.costModel != null || (repetitionRecord != null && repetitionRecord.overlapNanos > 0));
+    }
+    
     protected static BatchRecord createNewBatchRecord(int nofElements, TimeUnit unit, long duration, long initialDelay) {
+        return createNewBatchRecord(nofElements, unit, duration, initialDelay, AveragePacingStrategy.INSTANCE);
+    }
+    
+    protected static BatchRecord createNewBatchRecord(int nofElements, TimeUnit unit, long duration, long initialDelay, PacingStrategy pacingStrategy) {
+        return createNewBatchRecord(nofElements, unit, duration, initialDelay, pacingStrategy, SYSTEM_CLOCK);
+    }
+    
+    protected static BatchRecord createNewBatchRecord(int nofElements, TimeUnit unit, long duration, long initialDelay, PacingStrategy pacingStrategy, Clock clock) {
         BatchRecord batchRecord = new BatchRecord();
+        batchRecord.clock = clock;
         batchRecord.nofElements = nofElements;
-        long now = now() + unit.toNanos(initialDelay);
+        long now = clock.nanoTime() + unit.toNanos(initialDelay);
         batchRecord.nextElementStartTime.set(now);
+        batchRecord.startTimeNanos = now;
         batchRecord.finishTimeNanos = now + unit.toNanos(duration);
+        batchRecord.pacer = pacingStrategy.newPacer();
         return batchRecord;
     }
     
     /**
      * Called during construction. This method ensures that the core threads are initialized
-     * which ensures correct behavior when submitting tasks for execution.
+     * which ensures correct behavior when submitting tasks for execution. No threads are started
+     * if the pool is {@link #setElasticPoolSize(boolean) elastic}, the tasks start them as they arrive.
      * <p>
      * If you override this method, make sure to call <code>super.init();</code> otherwise
      * the executor won't behave as expected.
@@ -607,7 +3696,9 @@ public class BatchExecutor extends ThreadPoolExecutor {
         //this is important so that all of our tasks get queued in the queue rather
         //than submitted directly. We do depend on this because the queue is actually
         //responsible for delaying the tasks until they are ready.
-        prestartAllCoreThreads();
+        if (!elasticPoolSize) {
+            prestartAllCoreThreads();
+        }
     }
     
     /**
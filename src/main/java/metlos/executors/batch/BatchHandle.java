@@ -0,0 +1,113 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle to a batch submitted to the {@link BatchExecutor}. Unlike a list of futures, the handle
+ * only keeps a couple of counters no matter how many elements the batch has.
+ *
+ * @author Lukas Krejci
+ */
+public interface BatchHandle {
+
+    /**
+     * @return the number of elements of the batch. For batches pulling their elements from an iterator,
+     * this is only an estimate until the iterator is exhausted.
+     */
+    int getNofElements();
+
+    /**
+     * @return the number of elements that finished executing (including the failed ones)
+     */
+    int getNofFinishedElements();
+
+    /**
+     * @return the number of elements that threw an exception
+     */
+    int getNofFailedElements();
+
+    /**
+     * @return true if all the elements finished or the batch has been cancelled and no element is running
+     */
+    boolean isDone();
+
+    /**
+     * @return true if the batch has been cancelled
+     */
+    boolean isCancelled();
+
+    /**
+     * @return the share of the workers the batch gets relative to the other batches, 1 by default
+     */
+    double getShareWeight();
+
+    /**
+     * Changes the share of the workers the batch gets relative to the other batches that are ready to run
+     * at the same time. A batch with the share weight of 2 gets twice as much of the workers' time as a batch 
+     * with the share weight of 1. The pacing of the batch itself is not affected, so the share only matters
+     * while several batches compete for the workers.
+     * <p>
+     * The share weights are only honored by the default queue of the executor.
+     *
+     * @param shareWeight the share weight, must be a positive number
+     */
+    void setShareWeight(double shareWeight);
+
+    /**
+     * @return the tenant the batch belongs to or null if it hasn't been assigned to any
+     */
+    String getTenant();
+
+    /**
+     * Assigns the batch to a tenant. Executors like the {@link BatchCpuThrottlingExecutor} can limit the resources
+     * the batches of a tenant use in total.
+     * <p>
+     * The elements of the batch that already started before this call are not held back by the limits of 
+     * the tenant, so the tenant should be assigned right after the batch is submitted.
+     *
+     * @param tenant the tenant or null to not assign the batch to any
+     */
+    void setTenant(String tenant);
+
+    /**
+     * Cancels the batch. The elements that are already running are left to finish but no other
+     * element of the batch is going to run.
+     */
+    void cancel();
+
+    /**
+     * Waits for the batch to be {@link #isDone() done}.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void await() throws InterruptedException;
+
+    /**
+     * Waits at most the given time for the batch to be {@link #isDone() done}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of the timeout
+     * @return true if the batch is done, false if the timeout elapsed before that
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,610 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+
+/**
+ * A non-thread-safe queue of batch tasks that keeps the tasks of each batch separately
+ * and indexes the batches by the time their next element is ready to be executed.
+ * <p>
+ * A plain priority queue ordered by the ideal finish times of the tasks can only ever look
+ * at its head. If the batch of the head is not ready yet, the tasks of all the other batches
+ * have to wait, too, even though some of them might be ready to run. This queue avoids
+ * such head-of-line blocking. The {@link #peek()} and {@link #poll()} methods return
+ * the next task of one of the batches that are ready, and only if no batch is ready, they return
+ * the head of the batch that is going to be ready the soonest (so that the caller can determine
+ * how long to wait).
+ * <p>
+ * The ready batches share the workers using the weighted fair queuing. Each batch has a virtual finish
+ * time, which advances by the average execution time of the elements of the batch divided by the share weight
+ * of the batch every time an element of the batch is handed out. The ready batch with the earliest virtual finish
+ * time goes first (the ideal finish times of the head tasks decide the ties), so that a large batch with tightly
+ * spaced elements can't crowd out the smaller batches that are ready at the same time. Within a batch, the tasks
+ * are still handed out in the order of their ideal finish times.
+ * <p>
+ * The batches are kept in two binary heaps - one with the ready batches ordered by their
+ * virtual finish times and one with the waiting batches ordered by their ready time. Finding the next
+ * task is therefore O(log B), where B is the number of batches.
+ * <p>
+ * The ready time of a batch changes as the tasks of the batch finish. This queue re-checks
+ * the ready time of the batches at the top of its heaps but a batch that became ready
+ * sooner than previously thought needs to be announced using the {@link #update(BatchRecord)} method.
+ * <p>
+ * The per-batch bookkeeping of the batches that leave the queue is kept for reuse by the batches
+ * that come after them, so that the repeated batches don't cause any allocations in the steady state.
+ * <p>
+ * This queue is meant to be decorated by the {@link BatchExecutor.TaskQueue} which provides
+ * the locking.
+ *
+ * @author Lukas Krejci
+ */
+public class BatchReadinessQueue<E extends BatchReferringRunnable<?>> extends AbstractQueue<E> {
+
+    private static class Batch<E> {
+        BatchRecord batchRecord;
+        final PriorityQueue<E> tasks;
+
+        /**
+         * The ready time used as the key in the waiting heap. This is a snapshot of the
+         * ready time of the batch so that the heap invariant isn't broken by the concurrent
+         * changes to the batch record.
+         */
+        long readyTime;
+
+        /**
+         * The virtual finish time of the next task of the batch.
+         */
+        double virtualFinish;
+
+        /**
+         * The virtual finish time of the last task of the batch that has been handed out.
+         */
+        double lastFinish;
+
+        BatchHeap<E> heap;
+        int heapIndex;
+
+        Batch(BatchRecord batchRecord, PriorityQueue<E> tasks) {
+            this.batchRecord = batchRecord;
+            this.tasks = tasks;
+        }
+
+        long getCurrentReadyTime() {
+            return batchRecord == null ? Long.MIN_VALUE : batchRecord.getReadyTime();
+        }
+
+        /**
+         * @param readyTime the {@link #getCurrentReadyTime() current ready time} of the batch
+         * @return true if the ready time has passed according to the clock of the batch
+         */
+        boolean isReady(long readyTime) {
+            return batchRecord == null || readyTime <= batchRecord.now();
+        }
+
+        double getShareWeight() {
+            return batchRecord == null ? 1 : batchRecord.shareWeight;
+        }
+
+        /**
+         * @return the average execution time of the elements of the batch or NaN if no element finished yet
+         */
+        double getAverageCost() {
+            if (batchRecord == null) {
+                return Double.NaN;
+            }
+
+            int ran = batchRecord.elementsRan.get();
+            return ran == 0 ? Double.NaN : Math.max(1, (double) batchRecord.cumulativeExecutionTime.get() / ran);
+        }
+    }
+
+    /**
+     * A minimalistic binary heap that keeps track of the positions of its elements so that
+     * they can be removed or re-positioned in O(log n).
+     */
+    private static abstract class BatchHeap<E> {
+        private Batch<E>[] heap = newArray(16);
+        private int size;
+
+        @SuppressWarnings("unchecked")
+        private static <E> Batch<E>[] newArray(int size) {
+            return (Batch<E>[]) new Batch<?>[size];
+        }
+
+        abstract int compare(Batch<E> a, Batch<E> b);
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        Batch<E> peek() {
+            return size == 0 ? null : heap[0];
+        }
+
+        void add(Batch<E> batch) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            batch.heap = this;
+            batch.heapIndex = size;
+            heap[size++] = batch;
+            siftUp(batch.heapIndex);
+        }
+
+        void remove(Batch<E> batch) {
+            int idx = batch.heapIndex;
+            batch.heap = null;
+            batch.heapIndex = -1;
+
+            --size;
+            if (idx == size) {
+                heap[size] = null;
+            } else {
+                Batch<E> last = heap[size];
+                heap[size] = null;
+                set(idx, last);
+                update(last);
+            }
+        }
+
+        void update(Batch<E> batch) {
+            int idx = siftUp(batch.heapIndex);
+            siftDown(idx);
+        }
+
+        private int siftUp(int idx) {
+            Batch<E> batch = heap[idx];
+            while (idx > 0) {
+                int parent = (idx - 1) >>> 1;
+                if (compare(batch, heap[parent]) >= 0) {
+                    break;
+                }
+                set(idx, heap[parent]);
+                idx = parent;
+            }
+            set(idx, batch);
+            return idx;
+        }
+
+        private void siftDown(int idx) {
+            Batch<E> batch = heap[idx];
+            int half = size >>> 1;
+            while (idx < half) {
+                int child = 2 * idx + 1;
+                int right = child + 1;
+                if (right < size && compare(heap[right], heap[child]) < 0) {
+                    child = right;
+                }
+                if (compare(batch, heap[child]) <= 0) {
+                    break;
+                }
+                set(idx, heap[child]);
+                idx = child;
+            }
+            set(idx, batch);
+        }
+
+        private void set(int idx, Batch<E> batch) {
+            heap[idx] = batch;
+            batch.heapIndex = idx;
+        }
+    }
+
+    private final BatchHeap<E> readyBatches = new BatchHeap<E>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        int compare(Batch<E> a, Batch<E> b) {
+            if (a.virtualFinish != b.virtualFinish) {
+                return a.virtualFinish < b.virtualFinish ? -1 : 1;
+            }
+
+            //the heads are never null, because the empty batches are removed
+            return ((Comparable<Object>) (Object) a.tasks.peek()).compareTo(b.tasks.peek());
+        }
+    };
+
+    private final BatchHeap<E> waitingBatches = new BatchHeap<E>() {
+        @Override
+        int compare(Batch<E> a, Batch<E> b) {
+            return a.readyTime < b.readyTime ? -1 : (a.readyTime == b.readyTime ? 0 : 1);
+        }
+    };
+
+    /**
+     * The maximum number of the unused batches kept for reuse.
+     */
+    private static final int MAX_FREE_BATCHES = 64;
+
+    private static final double AVERAGE_COST_ALPHA = 0.1;
+
+    private final Map<BatchRecord, Batch<E>> batches = new IdentityHashMap<BatchRecord, Batch<E>>();
+
+    private final ArrayList<Batch<E>> freeBatches = new ArrayList<Batch<E>>();
+
+    private int size;
+
+    /**
+     * The virtual finish time of the last task handed out from a ready batch.
+     */
+    private double virtualTime;
+
+    /**
+     * The moving average of the execution times of the elements of the ready batches, used as the cost of
+     * the elements of the batches that didn't have any element finished yet. NaN until some element finishes.
+     */
+    private double averageCost = Double.NaN;
+
+    /**
+     * Informs the queue that the ready time of the batch has changed.
+     * <p>
+     * If the batch has been cancelled, all its tasks are removed from the queue and cancelled. This only
+     * touches the tasks of that batch, not the rest of the queue.
+     *
+     * @param batchRecord the batch whose ready time changed
+     */
+    public void update(BatchRecord batchRecord) {
+        Batch<E> batch = batches.get(batchRecord);
+        if (batch == null) {
+            return;
+        }
+
+        batch.heap.remove(batch);
+
+        if (batchRecord.cancelled) {
+            batches.remove(batchRecord);
+            size -= batch.tasks.size();
+
+            E task;
+            while ((task = batch.tasks.poll()) != null) {
+                task.cancel(false);
+            }
+
+            recycle(batch);
+        } else {
+            schedule(batch);
+        }
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        BatchRecord batchRecord = e.getBatchRecord();
+        Batch<E> batch = batches.get(batchRecord);
+        if (batch == null) {
+            batch = newBatch(batchRecord);
+            batches.put(batchRecord, batch);
+            batch.tasks.offer(e);
+            schedule(batch);
+        } else {
+            E oldHead = batch.tasks.peek();
+            batch.tasks.offer(e);
+            if (batch.heap == readyBatches && oldHead != batch.tasks.peek()) {
+                readyBatches.update(batch);
+            }
+        }
+
+        ++size;
+        return true;
+    }
+
+    /**
+     * Adds the elements batch by batch. The tasks of a batch that is not yet in the queue are heapified
+     * at once, which is cheaper than adding them one by one.
+     */
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        if (c.isEmpty()) {
+            return false;
+        }
+
+        //the usual case is adding the tasks of a single batch, which doesn't need any grouping
+        BatchRecord first = null;
+        boolean singleBatch = true;
+        Iterator<? extends E> it = c.iterator();
+        for (int i = 0; it.hasNext(); ++i) {
+            E e = it.next();
+            if (e == null) {
+                throw new NullPointerException();
+            }
+
+            if (i == 0) {
+                first = e.getBatchRecord();
+            } else if (e.getBatchRecord() != first) {
+                singleBatch = false;
+            }
+        }
+
+        if (singleBatch) {
+            addToBatch(first, c);
+            return true;
+        }
+
+        Map<BatchRecord, List<E>> groups = new IdentityHashMap<BatchRecord, List<E>>();
+        for (E e : c) {
+            List<E> group = groups.get(e.getBatchRecord());
+            if (group == null) {
+                group = new ArrayList<E>();
+                groups.put(e.getBatchRecord(), group);
+            }
+            group.add(e);
+        }
+
+        for (Map.Entry<BatchRecord, List<E>> group : groups.entrySet()) {
+            addToBatch(group.getKey(), group.getValue());
+        }
+
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        Batch<E> batch = findNextBatch();
+        if (batch == null) {
+            return null;
+        }
+
+        if (batch.heap == readyBatches) {
+            virtualTime = batch.virtualFinish;
+            batch.lastFinish = batch.virtualFinish;
+        }
+
+        E ret = batch.tasks.poll();
+        --size;
+        headRemoved(batch);
+
+        return ret;
+    }
+
+    @Override
+    public E peek() {
+        Batch<E> batch = findNextBatch();
+        return batch == null ? null : batch.tasks.peek();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof BatchReferringRunnable)) {
+            return false;
+        }
+
+        Batch<E> batch = batches.get(((BatchReferringRunnable<?>) o).getBatchRecord());
+        if (batch == null) {
+            return false;
+        }
+
+        boolean wasHead = batch.tasks.peek() == o;
+        if (!batch.tasks.remove(o)) {
+            return false;
+        }
+
+        --size;
+        if (wasHead) {
+            headRemoved(batch);
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof BatchReferringRunnable)) {
+            return false;
+        }
+
+        Batch<E> batch = batches.get(((BatchReferringRunnable<?>) o).getBatchRecord());
+        return batch != null && batch.tasks.contains(o);
+    }
+
+    @Override
+    public void clear() {
+        batches.clear();
+        while (!readyBatches.isEmpty()) {
+            readyBatches.remove(readyBatches.peek());
+        }
+        while (!waitingBatches.isEmpty()) {
+            waitingBatches.remove(waitingBatches.peek());
+        }
+        size = 0;
+        virtualTime = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The returned iterator works on a snapshot of the queue. Removing an element using
+     * the iterator removes it from this queue.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> snapshot = new ArrayList<E>(size);
+        for (Batch<E> batch : batches.values()) {
+            snapshot.addAll(batch.tasks);
+        }
+
+        return new Iterator<E>() {
+            private final Iterator<E> it = snapshot.iterator();
+            private E current;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                current = it.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+                BatchReadinessQueue.this.remove(current);
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * @return the batch that is ready and has the "smallest" head or, if there is no such batch,
+     * the batch that is going to be ready the soonest or null if the queue is empty.
+     */
+    private Batch<E> findNextBatch() {
+        //move the batches that became ready from the waiting heap to the ready heap
+        while (!waitingBatches.isEmpty()) {
+            Batch<E> batch = waitingBatches.peek();
+            long readyTime = batch.getCurrentReadyTime();
+            if (batch.isReady(readyTime)) {
+                waitingBatches.remove(batch);
+                makeReady(batch);
+            } else if (readyTime != batch.readyTime) {
+                //the batch has been postponed since we last looked
+                batch.readyTime = readyTime;
+                waitingBatches.update(batch);
+            } else {
+                break;
+            }
+        }
+
+        //the batches in the ready heap might have been postponed since they became ready
+        while (!readyBatches.isEmpty()) {
+            Batch<E> batch = readyBatches.peek();
+            long readyTime = batch.getCurrentReadyTime();
+            if (batch.isReady(readyTime)) {
+                return batch;
+            }
+
+            readyBatches.remove(batch);
+            batch.readyTime = readyTime;
+            waitingBatches.add(batch);
+        }
+
+        return waitingBatches.peek();
+    }
+
+    private void schedule(Batch<E> batch) {
+        long readyTime = batch.getCurrentReadyTime();
+        if (batch.isReady(readyTime)) {
+            makeReady(batch);
+        } else {
+            batch.readyTime = readyTime;
+            waitingBatches.add(batch);
+        }
+    }
+
+    private void makeReady(Batch<E> batch) {
+        computeVirtualFinish(batch);
+        readyBatches.add(batch);
+    }
+
+    /**
+     * Computes the virtual finish time of the next task of the batch. A batch that has been waiting or empty
+     * starts at the current virtual time so that it can't accumulate credit while it is not ready.
+     */
+    private void computeVirtualFinish(Batch<E> batch) {
+        double cost = batch.getAverageCost();
+        if (Double.isNaN(cost)) {
+            cost = Double.isNaN(averageCost) ? 1 : averageCost;
+        } else {
+            averageCost = Double.isNaN(averageCost) ? cost : averageCost + AVERAGE_COST_ALPHA * (cost - averageCost);
+        }
+
+        batch.virtualFinish = Math.max(batch.lastFinish, virtualTime) + cost / batch.getShareWeight();
+    }
+
+    private void addToBatch(BatchRecord batchRecord, Collection<? extends E> tasks) {
+        Batch<E> batch = batches.get(batchRecord);
+        if (batch == null) {
+            if (freeBatches.isEmpty()) {
+                batch = new Batch<E>(batchRecord, new PriorityQueue<E>(tasks));
+            } else {
+                batch = newBatch(batchRecord);
+                batch.tasks.addAll(tasks);
+            }
+            batches.put(batchRecord, batch);
+            schedule(batch);
+        } else {
+            E oldHead = batch.tasks.peek();
+            batch.tasks.addAll(tasks);
+            if (batch.heap == readyBatches && oldHead != batch.tasks.peek()) {
+                readyBatches.update(batch);
+            }
+        }
+
+        size += tasks.size();
+    }
+
+    private Batch<E> newBatch(BatchRecord batchRecord) {
+        if (freeBatches.isEmpty()) {
+            return new Batch<E>(batchRecord, new PriorityQueue<E>());
+        }
+
+        Batch<E> batch = freeBatches.remove(freeBatches.size() - 1);
+        batch.batchRecord = batchRecord;
+        batch.lastFinish = 0;
+        return batch;
+    }
+
+    private void headRemoved(Batch<E> batch) {
+        if (batch.tasks.isEmpty()) {
+            batch.heap.remove(batch);
+            batches.remove(batch.batchRecord);
+            recycle(batch);
+            if (batches.isEmpty()) {
+                //no batch remembers anything, so let's start over to keep the virtual times small
+                virtualTime = 0;
+            }
+        } else if (batch.heap == readyBatches) {
+            computeVirtualFinish(batch);
+            readyBatches.update(batch);
+        }
+    }
+
+    private void recycle(Batch<E> batch) {
+        batch.batchRecord = null;
+        if (freeBatches.size() < MAX_FREE_BATCHES) {
+            freeBatches.add(batch);
+        }
+    }
+}
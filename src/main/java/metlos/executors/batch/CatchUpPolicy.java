@@ -0,0 +1,46 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+/**
+ * Determines what happens when a batch repeated at a fixed rate overruns its period and the next repetition(s)
+ * should have already started.
+ *
+ * @see BatchExecutor#submitWithPreferedDurationAtFixedRate(java.util.Collection, long, long, long, java.util.concurrent.TimeUnit, CatchUpPolicy)
+ * @author Lukas Krejci
+ */
+public enum CatchUpPolicy {
+
+    /**
+     * The missed repetitions are skipped and the next repetition starts at the next scheduled time in the future.
+     */
+    SKIP,
+
+    /**
+     * The next repetition starts immediately and is compressed so that it finishes at the time it was originally
+     * scheduled to finish at. If that time has already passed, the repetition is run as fast as possible.
+     */
+    COMPRESS,
+
+    /**
+     * The missed repetitions are run one after another, each with the full duration, until the schedule is caught up.
+     */
+    BACK_TO_BACK
+}
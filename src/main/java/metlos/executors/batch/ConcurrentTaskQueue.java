@@ -0,0 +1,360 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+import metlos.executors.batch.BatchExecutor.BatchTaskQueue;
+
+/**
+ * A lock-free alternative to the {@link BatchExecutor.TaskQueue}.
+ * <p>
+ * The tasks are kept in a concurrent skip list ordered by their ideal finish times and, same as in
+ * the task queue, a task is only handed out once its batch is ready. Adding, polling, peeking and querying
+ * the size of the queue never block.
+ * <p>
+ * A lock is only used to park the threads waiting for a task to become available. The producers only
+ * touch the lock if there actually are such threads waiting.
+ * <p>
+ * Note that this queue only looks at the head, so a batch that is not ready yet holds back the tasks of
+ * other batches that come after it, unlike the default {@link BatchReadinessQueue}-backed task queue.
+ * For the same reason, it doesn't honor the {@link BatchHandle#setShareWeight(double) share weights}
+ * of the batches.
+ *
+ * @author Lukas Krejci
+ */
+public class ConcurrentTaskQueue<E extends BatchReferringRunnable<?>> extends AbstractQueue<E> implements
+    BatchTaskQueue<E> {
+
+    private static final Comparator<BatchReferringRunnable<?>> ORDER = new Comparator<BatchReferringRunnable<?>>() {
+        @Override
+        public int compare(BatchReferringRunnable<?> o1, BatchReferringRunnable<?> o2) {
+            if (o1 == o2) {
+                return 0;
+            }
+
+            long diff = o1.getIdealFinishTimeNanos() - o2.getIdealFinishTimeNanos();
+            if (diff == 0) {
+                //the difference copes with the sequencer wrapping around
+                diff = o1.getSequenceNumber() - o2.getSequenceNumber();
+            }
+
+            return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+        }
+    };
+
+    private final ConcurrentSkipListMap<E, Boolean> tasks = new ConcurrentSkipListMap<E, Boolean>(ORDER);
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition available = waitLock.newCondition();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        if (tasks.put(e, Boolean.TRUE) == null) {
+            size.incrementAndGet();
+        }
+
+        signalWaiters(false);
+        return true;
+    }
+
+    /**
+     * Adds all the elements and signals the waiting threads only once.
+     */
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        boolean modified = false;
+        for (E e : c) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+
+            if (tasks.put(e, Boolean.TRUE) == null) {
+                size.incrementAndGet();
+            }
+            modified = true;
+        }
+
+        if (modified) {
+            signalWaiters(true);
+        }
+
+        return modified;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return offer(e);
+    }
+
+    @Override
+    public E peek() {
+        Map.Entry<E, Boolean> head = tasks.firstEntry();
+        if (head == null) {
+            return null;
+        }
+
+        E ret = head.getKey();
+        return getWaitingTime(ret) <= 0 ? ret : null;
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            Map.Entry<E, Boolean> head = tasks.firstEntry();
+            if (head == null) {
+                return null;
+            }
+
+            E ret = head.getKey();
+            if (getWaitingTime(ret) > 0) {
+                return null;
+            }
+
+            if (tasks.remove(ret) != null) {
+                size.decrementAndGet();
+                if (ret.handOut()) {
+                    //the task represents more elements of its batch, which need to wait for their turn
+                    offer(ret);
+                }
+                return ret;
+            }
+
+            //someone else was faster, let's try the next one
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(-1, false);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return poll(unit.toNanos(timeout), true);
+    }
+
+    @Override
+    public void batchReadinessChanged(BatchRecord batchRecord) {
+        signalWaiters(true);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (tasks.remove(o) != null) {
+            size.decrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return tasks.containsKey(o);
+    }
+
+    /**
+     * Unlike {@link #poll()} this removes all the elements, regardless of whether they're ready or not.
+     */
+    @Override
+    public void clear() {
+        while (tasks.pollFirstEntry() != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * The returned iterator is weakly consistent, same as the iterators of the other concurrent collections.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private final Iterator<E> it = tasks.keySet().iterator();
+            private E current;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                current = it.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+                ConcurrentTaskQueue.this.remove(current);
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * Unlike {@link #poll()} this drains the elements regardless of whether they're ready or not.
+     */
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Unlike {@link #poll()} this drains the elements regardless of whether they're ready or not.
+     */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        int n = 0;
+        while (n < maxElements) {
+            Map.Entry<E, Boolean> head = tasks.pollFirstEntry();
+            if (head == null) {
+                break;
+            }
+            size.decrementAndGet();
+            c.add(head.getKey());
+            ++n;
+        }
+
+        return n;
+    }
+
+    /**
+     * @param nanos the maximum time to wait
+     * @param timed if false, the nanos are ignored and this waits until a task is available
+     */
+    private E poll(long nanos, boolean timed) throws InterruptedException {
+        while (true) {
+            E ret = poll();
+            if (ret != null) {
+                return ret;
+            }
+
+            if (timed && nanos <= 0) {
+                return null;
+            }
+
+            waitLock.lockInterruptibly();
+            try {
+                waiters.incrementAndGet();
+                try {
+                    //re-check after we've announced ourselves as a waiter so that we don't miss
+                    //a signal from a producer
+                    Map.Entry<E, Boolean> head = tasks.firstEntry();
+                    long waitTimeNanos = head == null ? -1 : getWaitingTime(head.getKey());
+                    if (head != null && waitTimeNanos <= 0) {
+                        continue;
+                    }
+
+                    if (head == null) {
+                        if (timed) {
+                            nanos = available.awaitNanos(nanos);
+                        } else {
+                            available.await();
+                        }
+                    } else {
+                        long toWait = timed ? Math.min(nanos, waitTimeNanos) : waitTimeNanos;
+                        long left = available.awaitNanos(toWait);
+                        if (timed) {
+                            nanos -= toWait - left;
+                        }
+                    }
+                } finally {
+                    waiters.decrementAndGet();
+                }
+            } finally {
+                waitLock.unlock();
+            }
+        }
+    }
+
+    private void signalWaiters(boolean all) {
+        if (waiters.get() == 0) {
+            return;
+        }
+
+        waitLock.lock();
+        try {
+            if (all) {
+                available.signalAll();
+            } else {
+                available.signal();
+            }
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    private static long getWaitingTime(BatchReferringRunnable<?> element) {
+        BatchRecord batchRecord = element.getBatchRecord();
+        return batchRecord == null ? 0 : batchRecord.getReadyTime() - batchRecord.now();
+    }
+}
@@ -93,6 +93,15 @@ public class OrderedBatchCpuThrottlingExecutor extends BatchCpuThrottlingExecuto
             }
         }
         
+        @Override
+        protected void resetForNextRepetition(long idealFinishTimeNanos, double weight) {
+            super.resetForNextRepetition(idealFinishTimeNanos, weight);
+            //the ordering provider is reset in prepareForNextRepetition()
+            if (orderingProvider == null) {
+                finished = false;
+            }
+        }
+        
         @Override
         public void run() {
             if (!isFinished()) {
@@ -139,6 +148,12 @@ public class OrderedBatchCpuThrottlingExecutor extends BatchCpuThrottlingExecuto
         return new OrderedBatchReferringRunnable<T>(runnable, result, orderingProvider, batchRecord, repetitionRecord, idealFinishTime);
     };    
     
+    @Override
+    protected void enqueueBatch(Runnable[] tasks, BatchRecord batchRecord, RepetitionRecord repetitionRecord) {
+        //the ordering is determined by each task individually
+        enqueueEach(tasks, batchRecord, repetitionRecord);
+    }
+    
     @Override
     protected void prepareForNextRepetition(Collection<? extends Runnable> tasks) {
         for(Runnable r : tasks) {
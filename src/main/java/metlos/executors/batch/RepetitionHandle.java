@@ -0,0 +1,142 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle to a batch submitted to the {@link BatchExecutor} for repeated execution. The handle can be used
+ * to retune the repetitions while they run and to stop them.
+ *
+ * @author Lukas Krejci
+ */
+public interface RepetitionHandle {
+
+    /**
+     * @param unit the time unit to return the duration in
+     * @return the preferred duration of a single repetition
+     */
+    long getDuration(TimeUnit unit);
+
+    /**
+     * Changes the preferred duration of the repetitions.
+     * <p>
+     * If the current repetition is affected and it is waiting for its next element, the start time of that
+     * element is recomputed right away. Otherwise the change takes effect with the next element of the batch
+     * that finishes.
+     *
+     * @param duration the new duration
+     * @param unit the time unit of the duration
+     * @param includingCurrentRepetition whether to change the duration of the repetition that is currently
+     * running or only of the repetitions that follow it
+     */
+    void setDuration(long duration, TimeUnit unit, boolean includingCurrentRepetition);
+
+    /**
+     * @param unit the time unit to return the delay in
+     * @return the delay between the repetitions or the period of the repetitions if the batch is repeated at
+     * a fixed rate
+     */
+    long getDelay(TimeUnit unit);
+
+    /**
+     * Changes the delay between the repetitions (if the batch is repeated with a fixed delay) or the period
+     * of the repetitions (if it is repeated at a fixed rate). In the latter case, the new period is counted
+     * from the start of the current repetition.
+     * <p>
+     * The change takes effect with the next repetition that is scheduled.
+     *
+     * @param delay the new delay or period
+     * @param unit the time unit of the delay
+     */
+    void setDelay(long delay, TimeUnit unit);
+
+    /**
+     * @return the maximum CPU usage of the batch or {@link Float#NaN} if the batch doesn't limit it on its own
+     */
+    float getMaximumCpuUsage();
+
+    /**
+     * Limits the CPU usage of the tasks of the batch. The limit is only honored by the executors that throttle
+     * the CPU usage, like the {@link BatchCpuThrottlingExecutor}, and it can't exceed the limit of the executor.
+     *
+     * @param maximumCpuUsage the maximum CPU usage (in the same units as the limit of the executor) or
+     * {@link Float#NaN} to only use the limit of the executor
+     * @param includingCurrentRepetition whether to change the limit of the repetition that is currently
+     * running or only of the repetitions that follow it
+     */
+    void setMaximumCpuUsage(float maximumCpuUsage, boolean includingCurrentRepetition);
+
+    /**
+     * @return the share of the workers the repetitions get relative to the other batches, 1 by default
+     */
+    double getShareWeight();
+
+    /**
+     * Changes the share of the workers the repetitions get relative to the other batches. This applies to
+     * the current repetition as well as to the ones that follow it.
+     *
+     * @param shareWeight the share weight, must be a positive number
+     * @see BatchHandle#setShareWeight(double)
+     */
+    void setShareWeight(double shareWeight);
+
+    /**
+     * @return the tenant the repetitions belong to or null if they haven't been assigned to any
+     */
+    String getTenant();
+
+    /**
+     * Assigns the current and the following repetitions to a tenant.
+     *
+     * @param tenant the tenant or null to not assign the repetitions to any
+     * @see BatchHandle#setTenant(String)
+     */
+    void setTenant(String tenant);
+
+    /**
+     * Pauses the repetitions. The elements of the batch that are already running are left to finish but
+     * no other element is going to start until the batch is {@link #resume() resumed}.
+     */
+    void pause();
+
+    /**
+     * Resumes the paused repetitions. The current repetition continues where it stopped and is postponed
+     * by the time it was paused for.
+     */
+    void resume();
+
+    /**
+     * @return true if the repetitions are paused
+     */
+    boolean isPaused();
+
+    /**
+     * Stops the repetitions. The elements of the batch that are already running are left to finish,
+     * the rest of them is removed from the queue of the executor.
+     */
+    void cancel();
+
+    /**
+     * @return true if the repetitions have been cancelled
+     */
+    boolean isCancelled();
+}
@@ -0,0 +1,194 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch executor running in virtual time. There are no real workers - the queue of the executor is drained by
+ * {@link #advance(long, TimeUnit)}, which moves the time forward from event to event as fast as the tasks can be
+ * processed. The pacing and the queueing logic is the same as in the real executor, so this can be used to see how
+ * the batches would be spread over hours in a matter of seconds.
+ * <p>
+ * The tasks created by {@link #newTask(long, TimeUnit)} occupy a virtual worker for the given virtual time. They 
+ * are {@link AsyncTask}s, so they need to be submitted using 
+ * {@link #invokeAllAsyncWithin(java.util.Collection, long, TimeUnit)}. Any other task runs (in real time) as soon 
+ * as it is handed out and takes no virtual time at all.
+ * <p>
+ * The executor paces its batches by its own {@link #getClock() clock}, which doesn't affect any other executor. 
+ * The executor is not thread-safe, all the calls to it must be made from a single thread.
+ *
+ * @author Lukas Krejci
+ */
+public class SimulatedBatchExecutor extends BatchExecutor {
+
+    /**
+     * The thread pool tries to start a worker once a task is submitted. Declining to create the thread makes
+     * the pool leave the task in the queue without counting any worker, so the queue is only ever drained by
+     * {@link #advance(long, TimeUnit)} and the executor can terminate once shut down.
+     */
+    private static final ThreadFactory NO_WORKERS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return null;
+        }
+    };
+    
+    private static class VirtualClock implements Clock {
+        long time;
+        
+        @Override
+        public long nanoTime() {
+            return time;
+        }
+    }
+    
+    /**
+     * The completion of a simulated task, due at the given time.
+     */
+    private static class Completion implements Comparable<Completion> {
+        final long time;
+        final long sequenceNumber;
+        final AsyncCompletion<? super Void> completion;
+        
+        Completion(long time, long sequenceNumber, AsyncCompletion<? super Void> completion) {
+            this.time = time;
+            this.sequenceNumber = sequenceNumber;
+            this.completion = completion;
+        }
+        
+        @Override
+        public int compareTo(Completion o) {
+            if (time != o.time) {
+                return time < o.time ? -1 : 1;
+            }
+            
+            return sequenceNumber < o.sequenceNumber ? -1 : (sequenceNumber == o.sequenceNumber ? 0 : 1);
+        }
+    }
+    
+    private final VirtualClock clock;
+    private final int nofWorkers;
+    private final PriorityQueue<Completion> completions = new PriorityQueue<Completion>();
+    private long completionSequence;
+    private int busyWorkers;
+    
+    /**
+     * @param nofWorkers the number of the virtual workers
+     */
+    public SimulatedBatchExecutor(int nofWorkers) {
+        this(nofWorkers, new VirtualClock());
+    }
+    
+    private SimulatedBatchExecutor(int nofWorkers, VirtualClock clock) {
+        super(0, 1, 0, TimeUnit.SECONDS, NO_WORKERS, DEFAULT_REJECTED_EXECUTION_HANDLER,
+            new TaskQueue<BatchReferringRunnable<?>>(), clock);
+        if (nofWorkers < 1) {
+            throw new IllegalArgumentException("There must be at least one worker.");
+        }
+        
+        this.nofWorkers = nofWorkers;
+        this.clock = clock;
+    }
+    
+    /**
+     * @param duration the virtual time the task takes
+     * @param unit the time unit of the duration
+     * @return a task occupying a virtual worker for the given time
+     */
+    public AsyncTask<Void> newTask(long duration, TimeUnit unit) {
+        final long durationNanos = unit.toNanos(duration);
+        return new AsyncTask<Void>() {
+            @Override
+            public void start(AsyncCompletion<? super Void> completion) {
+                ++busyWorkers;
+                completions.add(new Completion(clock.time + durationNanos, completionSequence++, completion));
+            }
+        };
+    }
+    
+    /**
+     * Runs the simulation for the given virtual time.
+     * 
+     * @param time the virtual time to advance by
+     * @param unit the time unit of the time
+     */
+    public void advance(long time, TimeUnit unit) {
+        long end = clock.time + unit.toNanos(time);
+        TaskQueue<?> queue = (TaskQueue<?>) getTaskQueue();
+        
+        while (true) {
+            //hand out all the ready tasks the workers can take
+            while (busyWorkers < nofWorkers) {
+                BatchReferringRunnable<?> task = queue.poll();
+                if (task == null) {
+                    break;
+                }
+                
+                beforeExecute(Thread.currentThread(), task);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    afterExecute(task, e);
+                    throw e;
+                }
+                afterExecute(task, null);
+            }
+            
+            Completion next = completions.peek();
+            long nextTime = next == null ? Long.MAX_VALUE : next.time;
+            if (busyWorkers < nofWorkers) {
+                nextTime = Math.min(nextTime, queue.getHeadReadyTime());
+            }
+            
+            if (nextTime > end) {
+                clock.time = end;
+                return;
+            }
+            
+            //make sure the time moves even if the head of the queue is ready but not handed out
+            clock.time = Math.max(nextTime, clock.time + 1);
+            
+            while ((next = completions.peek()) != null && next.time <= clock.time) {
+                completions.poll();
+                --busyWorkers;
+                next.completion.completed(null);
+            }
+        }
+    }
+    
+    /**
+     * @param unit the time unit to return the time in
+     * @return the virtual time elapsed since the start of the simulation
+     */
+    public long getElapsedTime(TimeUnit unit) {
+        return unit.convert(clock.time, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * @return the number of the virtual workers currently running a task
+     */
+    public int getNofBusyWorkers() {
+        return busyWorkers;
+    }
+}
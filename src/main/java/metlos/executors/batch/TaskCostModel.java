@@ -0,0 +1,315 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the statistics about the execution times of the tasks of a repeated batch across the repetitions.
+ * <p>
+ * The model is used as the source of the {@link WeightedTask weights} of the tasks, so that the time of each
+ * repetition is distributed among the tasks according to how long they took in the previous repetitions and
+ * the pacing of the batch doesn't have to start from scratch. Until the model knows anything, the declared weights
+ * of the tasks are used. The tasks the model doesn't know about are assumed to take the average time of the known
+ * tasks.
+ * <p>
+ * The tasks are identified by their {@link KeyedTask#getTaskKey() keys} or, if they don't have one, by the tasks
+ * themselves (i.e. by their equals and hash code). Only the statistics of the keyed tasks can be persisted.
+ * <p>
+ * The execution times measured during a repetition are only taken into account when the next repetition starts,
+ * so that the weights of the tasks don't change during a repetition.
+ * <p>
+ * If a file is provided, the model is loaded from it upon construction and saved to it at the start of each
+ * repetition. The persistence is best-effort - the failures are only logged.
+ *
+ * @author Lukas Krejci
+ */
+public class TaskCostModel {
+
+    private static final Log LOG = LogFactory.getLog(TaskCostModel.class);
+
+    private static final int FILE_MAGIC = 0x54434d31; //"TCM1"
+
+    public static final double DEFAULT_ALPHA = 0.3;
+
+    /**
+     * The statistics of the tasks not seen for this many repetitions are discarded.
+     */
+    public static final int DEFAULT_MAX_IDLE_ROUNDS = 10;
+
+    /**
+     * The tasks implementing this interface are identified by their key rather than by the task object itself.
+     * This enables persisting the statistics of the tasks and also identifying the tasks that are re-created
+     * for each repetition.
+     */
+    public interface KeyedTask {
+
+        /**
+         * @return the key uniquely identifying the task among the tasks of the batch
+         */
+        String getTaskKey();
+    }
+
+    private static class Cost {
+        double estimate = Double.NaN;
+        long pendingDuration;
+        int pendingCount;
+        int lastRound;
+    }
+
+    private final Map<Object, Cost> costs = new ConcurrentHashMap<Object, Cost>();
+    private final double alpha;
+    private final int maxIdleRounds;
+    private final File file;
+
+    private volatile int round;
+    private volatile double averageEstimate = Double.NaN;
+
+    public TaskCostModel() {
+        this(null);
+    }
+
+    /**
+     * @param file the file to persist the model to, can be null
+     */
+    public TaskCostModel(File file) {
+        this(file, DEFAULT_ALPHA, DEFAULT_MAX_IDLE_ROUNDS);
+    }
+
+    /**
+     * @param file the file to persist the model to, can be null
+     * @param alpha the weight of the most recent repetition in the estimates, must be in the (0, 1] interval
+     * @param maxIdleRounds the number of repetitions after which the statistics of the tasks no longer present in
+     * the batch are discarded
+     */
+    public TaskCostModel(File file, double alpha, int maxIdleRounds) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Alpha must be in the (0, 1] interval.");
+        }
+        if (maxIdleRounds < 1) {
+            throw new IllegalArgumentException("Max idle rounds must be positive.");
+        }
+
+        this.file = file;
+        this.alpha = alpha;
+        this.maxIdleRounds = maxIdleRounds;
+
+        if (file != null && file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                LOG.warn("Failed to load the task cost model from " + file + ". Starting from scratch.", e);
+                costs.clear();
+            }
+        }
+    }
+
+    /**
+     * @param task the task
+     * @return the estimated duration of the task in nanoseconds or NaN if the model doesn't know about the task
+     */
+    public double getEstimatedDuration(Object task) {
+        Cost cost = costs.get(keyOf(task));
+        return cost == null ? Double.NaN : cost.estimate;
+    }
+
+    /**
+     * @return the number of tasks the model keeps the statistics of
+     */
+    public int size() {
+        return costs.size();
+    }
+
+    /**
+     * Records the execution time of the task. The execution time is only going to be reflected in the estimates
+     * once the next repetition {@link #startRound() starts}.
+     *
+     * @param task the task
+     * @param durationNanos the time the task took to execute
+     */
+    public void record(Object task, long durationNanos) {
+        Object key = keyOf(task);
+        Cost cost = costs.get(key);
+        if (cost == null) {
+            //the race here is harmless, we'd only lose a single measurement
+            cost = new Cost();
+            cost.lastRound = round;
+            costs.put(key, cost);
+        }
+
+        synchronized (cost) {
+            cost.pendingDuration += durationNanos;
+            cost.pendingCount++;
+        }
+    }
+
+    /**
+     * Called at the start of each repetition. The execution times recorded during the previous repetition are
+     * incorporated into the estimates and the model is saved to the file, if one was provided.
+     */
+    public synchronized void startRound() {
+        int currentRound = ++round;
+
+        double sum = 0;
+        int count = 0;
+
+        Iterator<Map.Entry<Object, Cost>> it = costs.entrySet().iterator();
+        while (it.hasNext()) {
+            Cost cost = it.next().getValue();
+            synchronized (cost) {
+                if (cost.pendingCount > 0) {
+                    double sample = ((double) cost.pendingDuration) / cost.pendingCount;
+                    cost.estimate = Double.isNaN(cost.estimate) ? sample : cost.estimate + alpha
+                        * (sample - cost.estimate);
+                    cost.pendingDuration = 0;
+                    cost.pendingCount = 0;
+                    cost.lastRound = currentRound;
+                } else if (currentRound - cost.lastRound > maxIdleRounds) {
+                    it.remove();
+                    continue;
+                }
+
+                if (!Double.isNaN(cost.estimate)) {
+                    sum += cost.estimate;
+                    ++count;
+                }
+            }
+        }
+
+        averageEstimate = count == 0 ? Double.NaN : sum / count;
+
+        if (file != null) {
+            try {
+                save();
+            } catch (IOException e) {
+                LOG.warn("Failed to save the task cost model to " + file + ".", e);
+            }
+        }
+    }
+
+    /**
+     * @param task the task
+     * @return the weight of the task based on its estimated duration
+     */
+    double getWeight(Object task) {
+        double average = averageEstimate;
+        if (Double.isNaN(average)) {
+            //we don't know anything yet
+            return BatchExecutor.weightOf(task);
+        }
+
+        double estimate = getEstimatedDuration(task);
+        if (Double.isNaN(estimate)) {
+            estimate = average;
+        }
+
+        //a weight must be positive
+        return Math.max(1, estimate);
+    }
+
+    /**
+     * Saves the estimates of the keyed tasks to the file.
+     *
+     * @throws IOException on error
+     */
+    public synchronized void save() throws IOException {
+        if (file == null) {
+            throw new IllegalStateException("No file to save the task cost model to.");
+        }
+
+        List<String> keys = new ArrayList<String>();
+        List<Double> estimates = new ArrayList<Double>();
+        for (Map.Entry<Object, Cost> e : costs.entrySet()) {
+            double estimate = e.getValue().estimate;
+            if (e.getKey() instanceof String && !Double.isNaN(estimate)) {
+                keys.add((String) e.getKey());
+                estimates.add(estimate);
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); ++i) {
+                out.writeUTF(keys.get(i));
+                out.writeDouble(estimates.get(i));
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            //renaming over an existing file doesn't work on some platforms
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmp + " to " + file + ".");
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a task cost model file: " + file);
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                String key = in.readUTF();
+                double estimate = in.readDouble();
+                if (!Double.isNaN(estimate)) {
+                    Cost cost = new Cost();
+                    cost.estimate = estimate;
+                    costs.put(key, cost);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        double sum = 0;
+        for (Cost cost : costs.values()) {
+            sum += cost.estimate;
+        }
+        averageEstimate = costs.isEmpty() ? Double.NaN : sum / costs.size();
+    }
+
+    private static Object keyOf(Object task) {
+        return task instanceof KeyedTask ? ((KeyedTask) task).getTaskKey() : task;
+    }
+}
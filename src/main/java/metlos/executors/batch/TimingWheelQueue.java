@@ -0,0 +1,357 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+
+/**
+ * A non-thread-safe queue of batch tasks implemented as a hierarchical timing wheel
+ * keyed by the {@link BatchReferringRunnable#getIdealFinishTimeNanos() ideal finish times}
+ * of the tasks.
+ * <p>
+ * This can be used as an alternative backing store of the {@link BatchExecutor.TaskQueue}
+ * when the queue holds a very large number of tasks. Unlike with a binary heap, inserting
+ * a task is O(1) and so is, amortized, the removal of the head.
+ * <p>
+ * The price for that is precision - the tasks are ordered only up to the resolution
+ * of the wheel (the tick duration). The tasks falling into the same tick are returned in
+ * the order they were inserted. Also tasks with an ideal finish time that is earlier than
+ * the head of the queue are returned as if they had the same ideal finish time as the head.
+ * <p>
+ * The wheel has {@value #LEVELS} levels each with {@value #SLOTS} slots. With the default tick of
+ * 1 millisecond, the wheel spans about 50 days. The tasks further in the future are kept in
+ * an overflow list that is redistributed to the wheel once the wheel reaches them.
+ *
+ * @author Lukas Krejci
+ */
+public class TimingWheelQueue<E extends BatchReferringRunnable<?>> extends AbstractQueue<E> {
+
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickNanos;
+
+    private final ArrayDeque<E>[][] wheels;
+    private final int[] levelSizes = new int[LEVELS];
+    private final List<E> overflow = new ArrayList<E>();
+
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates a new queue with the tick of 1 millisecond.
+     */
+    public TimingWheelQueue() {
+        this(1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param tick the resolution of the wheel
+     * @param unit the time unit of the tick
+     */
+    public TimingWheelQueue(long tick, TimeUnit unit) {
+        this(tick, unit, BatchExecutor.SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param tick the resolution of the wheel
+     * @param unit the time unit of the tick
+     * @param clock the clock of the executor the queue is used in, the wheel starts turning at its current time
+     */
+    public TimingWheelQueue(long tick, TimeUnit unit, Clock clock) {
+        tickNanos = unit.toNanos(tick);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("The tick must be positive.");
+        }
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        ArrayDeque<E>[][] wheels = new ArrayDeque[LEVELS][SLOTS];
+        this.wheels = wheels;
+        currentTick = toTick(clock.nanoTime());
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        place(e);
+        ++size;
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        ArrayDeque<E> bucket = findHeadBucket();
+        if (bucket == null) {
+            return null;
+        }
+
+        --size;
+        --levelSizes[0];
+        return bucket.poll();
+    }
+
+    @Override
+    public E peek() {
+        ArrayDeque<E> bucket = findHeadBucket();
+        return bucket == null ? null : bucket.peek();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof BatchReferringRunnable)) {
+            return false;
+        }
+
+        long tick = toTick(((BatchReferringRunnable<?>) o).getIdealFinishTimeNanos());
+        int level = tick <= currentTick ? 0 : levelOf(tick);
+        if (level < LEVELS) {
+            if (removeFrom(level, slotOf(level, tick <= currentTick ? currentTick : tick), o)) {
+                return true;
+            }
+        } else if (overflow.remove(o)) {
+            --size;
+            return true;
+        }
+
+        //the element was not found where expected, let's not be clever and look everywhere
+        for (int l = 0; l < LEVELS; ++l) {
+            for (int s = 0; s < SLOTS; ++s) {
+                if (removeFrom(l, s, o)) {
+                    return true;
+                }
+            }
+        }
+
+        if (overflow.remove(o)) {
+            --size;
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        for (int l = 0; l < LEVELS; ++l) {
+            for (int s = 0; s < SLOTS; ++s) {
+                if (wheels[l][s] != null) {
+                    wheels[l][s].clear();
+                }
+            }
+            levelSizes[l] = 0;
+        }
+        overflow.clear();
+        size = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The returned iterator works on a snapshot of the queue. Removing an element using
+     * the iterator removes it from this queue.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final List<E> snapshot = new ArrayList<E>(size);
+        for (int l = 0; l < LEVELS; ++l) {
+            for (int s = 0; s < SLOTS; ++s) {
+                if (wheels[l][s] != null) {
+                    snapshot.addAll(wheels[l][s]);
+                }
+            }
+        }
+        snapshot.addAll(overflow);
+
+        return new Iterator<E>() {
+            private final Iterator<E> it = snapshot.iterator();
+            private E current;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public E next() {
+                current = it.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+                TimingWheelQueue.this.remove(current);
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * Advances the wheel until the slot of the current tick is non-empty.
+     *
+     * @return the bucket with the head of the queue or null if the queue is empty
+     */
+    private ArrayDeque<E> findHeadBucket() {
+        while (size > 0) {
+            ArrayDeque<E> bucket = wheels[0][(int) (currentTick & SLOT_MASK)];
+            if (bucket != null && !bucket.isEmpty()) {
+                return bucket;
+            }
+
+            int level = 0;
+            while (level < LEVELS && levelSizes[level] == 0) {
+                ++level;
+            }
+
+            if (level < LEVELS) {
+                //all the levels below the found one are empty, so we can skip right to the next
+                //slot of the found level (for level 0 that means to the next tick).
+                long nextTick = ((currentTick >> (SLOT_BITS * level)) + 1) << (SLOT_BITS * level);
+                advanceTo(nextTick);
+            } else {
+                //only the overflow contains something, let's jump right to it
+                long minTick = Long.MAX_VALUE;
+                for (E e : overflow) {
+                    minTick = Math.min(minTick, toTick(e.getIdealFinishTimeNanos()));
+                }
+                currentTick = minTick;
+                redistributeOverflow();
+            }
+        }
+
+        return null;
+    }
+
+    private void advanceTo(long tick) {
+        currentTick = tick;
+
+        if ((tick & ((1L << (SLOT_BITS * LEVELS)) - 1)) == 0) {
+            redistributeOverflow();
+        }
+
+        //cascade the higher levels first, so that their elements end up in the lower levels
+        //which are cascaded later on.
+        for (int level = LEVELS - 1; level > 0; --level) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                int slot = slotOf(level, tick);
+                ArrayDeque<E> bucket = wheels[level][slot];
+                if (bucket != null && !bucket.isEmpty()) {
+                    levelSizes[level] -= bucket.size();
+                    E e;
+                    while ((e = bucket.poll()) != null) {
+                        place(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void redistributeOverflow() {
+        if (overflow.isEmpty()) {
+            return;
+        }
+
+        Iterator<E> it = overflow.iterator();
+        while (it.hasNext()) {
+            E e = it.next();
+            if (levelOf(toTick(e.getIdealFinishTimeNanos())) < LEVELS) {
+                it.remove();
+                place(e);
+            }
+        }
+    }
+
+    private void place(E e) {
+        long tick = toTick(e.getIdealFinishTimeNanos());
+        if (tick < currentTick) {
+            //we're late already, so the element belongs to the current slot
+            tick = currentTick;
+        }
+
+        int level = levelOf(tick);
+        if (level >= LEVELS) {
+            overflow.add(e);
+            return;
+        }
+
+        int slot = slotOf(level, tick);
+        ArrayDeque<E> bucket = wheels[level][slot];
+        if (bucket == null) {
+            bucket = new ArrayDeque<E>();
+            wheels[level][slot] = bucket;
+        }
+
+        bucket.add(e);
+        ++levelSizes[level];
+    }
+
+    private boolean removeFrom(int level, int slot, Object o) {
+        ArrayDeque<E> bucket = wheels[level][slot];
+        if (bucket != null && bucket.remove(o)) {
+            --levelSizes[level];
+            --size;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * The level of the tick is determined by the highest group of bits in which it differs from the current
+     * tick. This ensures that the element gets cascaded to the lower level exactly when the wheel reaches
+     * the slot it is in.
+     */
+    private int levelOf(long tick) {
+        long diff = tick ^ currentTick;
+        int level = 0;
+        while (level < LEVELS && (diff >>> (SLOT_BITS * (level + 1))) != 0) {
+            ++level;
+        }
+
+        return level;
+    }
+
+    private static int slotOf(int level, long tick) {
+        return (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+    }
+
+    private long toTick(long nanos) {
+        long tick = nanos / tickNanos;
+        //round towards the negative infinity
+        return nanos < 0 && tick * tickNanos != nanos ? tick - 1 : tick;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+/**
+ * The tasks submitted to the {@link BatchExecutor} can implement this interface to declare how costly they are
+ * compared to the other tasks of the same batch. The tasks not implementing this interface have the weight of 1.
+ * <p>
+ * The weights are used to distribute the duration of the batch among its tasks, so that a task with the weight 
+ * of 10 gets ten times more time than a task with the weight of 1. The weights are also taken into account when
+ * estimating the execution time of the remaining tasks.
+ *
+ * @author Lukas Krejci
+ */
+public interface WeightedTask {
+
+    /**
+     * @return the relative cost of this task, must be a positive number
+     */
+    double getWeight();
+}
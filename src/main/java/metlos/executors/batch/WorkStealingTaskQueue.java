@@ -0,0 +1,329 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+import metlos.executors.batch.BatchExecutor.TaskQueue;
+
+/**
+ * A {@link TaskQueue} that gives each worker thread its own deque of the tasks that are ready to run.
+ * <p>
+ * The task queue itself acts as the timekeeper - it holds back the tasks until their batch is ready and only
+ * a single thread waits for the next batch to become ready. When a worker takes a ready task from it and no other
+ * worker is waiting for a task, the worker also moves a few more ready tasks of the same batch into its own
+ * deque. It then runs them one after another without touching the shared lock, which also keeps the data of
+ * the batch in the cache of its CPU. A task representing several elements of its batch is moved once for each
+ * element handed out. The workers that run out of tasks steal from the other end of the deques of the other
+ * workers before they turn to the shared queue and check the deques again before they start waiting on it.
+ * <p>
+ * A task taken from a deque is checked for readiness again before it is handed out, so that the tasks 
+ * of a batch that was paused or slowed down by its pacer in the meantime are returned to the shared queue
+ * instead of running too early.
+ * <p>
+ * Use the {@link BatchExecutor} constructor accepting a queue to use this queue.
+ *
+ * @author Lukas Krejci
+ */
+public class WorkStealingTaskQueue<T extends BatchReferringRunnable<?>> extends TaskQueue<T> {
+
+    /**
+     * The default maximum number of the tasks a worker moves to its deque at once.
+     */
+    public static final int DEFAULT_MAX_TRANSFER = 8;
+
+    private final int maxTransfer;
+
+    private final ThreadLocal<BlockingDeque<T>> localDeque = new ThreadLocal<BlockingDeque<T>>();
+
+    private final List<BlockingDeque<T>> deques = new CopyOnWriteArrayList<BlockingDeque<T>>();
+
+    public WorkStealingTaskQueue() {
+        this(DEFAULT_MAX_TRANSFER);
+    }
+
+    /**
+     * @param maxTransfer the maximum number of the tasks a worker moves to its deque at once
+     */
+    public WorkStealingTaskQueue(int maxTransfer) {
+        if (maxTransfer < 0) {
+            throw new IllegalArgumentException("The maximum transfer must not be negative.");
+        }
+        this.maxTransfer = maxTransfer;
+    }
+
+    @Override
+    public T poll() {
+        T ret = pollLocal();
+        if (ret == null) {
+            ret = super.poll();
+            transfer(ret);
+        }
+
+        return ret;
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        T ret = pollLocal();
+        if (ret == null) {
+            ret = super.take();
+            transfer(ret);
+        }
+
+        return ret;
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T ret = pollLocal();
+        if (ret != null) {
+            return ret;
+        }
+
+        ret = super.poll(timeout, unit);
+        if (ret == null) {
+            //the worker is likely going to die, so let's not keep its deque around
+            BlockingDeque<T> deque = localDeque.get();
+            if (deque != null && deque.isEmpty()) {
+                deques.remove(deque);
+                localDeque.remove();
+            }
+        } else {
+            transfer(ret);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Hands out the ready tasks from the deques to the threads that would otherwise start waiting for the shared
+     * queue. This is done under the lock of the queue, so a thread can't start waiting while another thread
+     * is moving the tasks to its deque.
+     */
+    @Override
+    protected T pollOutsideQueue() {
+        return pollLocal();
+    }
+
+    @Override
+    public T peek() {
+        for (BlockingDeque<T> deque : deques) {
+            T ret = deque.peekFirst();
+            if (ret != null && getWaitingTime(ret) <= 0) {
+                return ret;
+            }
+        }
+
+        return super.peek();
+    }
+
+    @Override
+    public int size() {
+        int ret = super.size();
+        for (BlockingDeque<T> deque : deques) {
+            ret += deque.size();
+        }
+
+        return ret;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (BlockingDeque<T> deque : deques) {
+            if (!deque.isEmpty()) {
+                return false;
+            }
+        }
+
+        return super.isEmpty();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (BlockingDeque<T> deque : deques) {
+            if (deque.remove(o)) {
+                return true;
+            }
+        }
+
+        return super.remove(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        for (BlockingDeque<T> deque : deques) {
+            if (deque.contains(o)) {
+                return true;
+            }
+        }
+
+        return super.contains(o);
+    }
+
+    @Override
+    public void clear() {
+        for (BlockingDeque<T> deque : deques) {
+            deque.clear();
+        }
+
+        super.clear();
+    }
+
+    /**
+     * Unlike {@link #poll()} this drains the elements regardless of whether they're ready or not.
+     */
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Unlike {@link #poll()} this drains the elements regardless of whether they're ready or not.
+     */
+    @Override
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        int n = 0;
+        for (BlockingDeque<T> deque : deques) {
+            if (n >= maxElements) {
+                return n;
+            }
+            n += deque.drainTo(c, maxElements - n);
+        }
+
+        return n + super.drainTo(c, maxElements - n);
+    }
+
+    /**
+     * The returned iterator works on a snapshot of the queue. Removing an element using
+     * the iterator removes it from this queue.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final List<T> snapshot = new ArrayList<T>();
+        for (BlockingDeque<T> deque : deques) {
+            snapshot.addAll(deque);
+        }
+        Iterator<T> it = super.iterator();
+        while (it.hasNext()) {
+            snapshot.add(it.next());
+        }
+
+        return new Iterator<T>() {
+            private final Iterator<T> it = snapshot.iterator();
+            private T current;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public T next() {
+                current = it.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+                WorkStealingTaskQueue.this.remove(current);
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * Takes the next ready task from the deque of the current thread or steals one from the deques of
+     * the other threads.
+     */
+    private T pollLocal() {
+        BlockingDeque<T> own = localDeque.get();
+        if (own != null) {
+            T ret = pollReady(own, true);
+            if (ret != null) {
+                return ret;
+            }
+        }
+
+        for (BlockingDeque<T> deque : deques) {
+            if (deque != own) {
+                T ret = pollReady(deque, false);
+                if (ret != null) {
+                    return ret;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private T pollReady(BlockingDeque<T> deque, boolean owner) {
+        while (true) {
+            T ret = owner ? deque.pollFirst() : deque.pollLast();
+            if (ret == null || getWaitingTime(ret) <= 0) {
+                return ret;
+            }
+
+            //the batch is no longer ready, let the timekeeper hold the task back
+            giveBack(ret);
+        }
+    }
+
+    /**
+     * Moves more ready tasks of the batch of the task the current thread just took to the deque of the thread.
+     */
+    private void transfer(T task) {
+        if (task == null || maxTransfer == 0) {
+            return;
+        }
+
+        BatchRecord batchRecord = task.getBatchRecord();
+        if (batchRecord == null) {
+            return;
+        }
+
+        BlockingDeque<T> own = localDeque.get();
+        if (own == null) {
+            own = new LinkedBlockingDeque<T>();
+            localDeque.set(own);
+            deques.add(own);
+        }
+
+        drainReady(batchRecord, own, maxTransfer);
+    }
+
+    private static long getWaitingTime(BatchReferringRunnable<?> element) {
+        BatchRecord batchRecord = element.getBatchRecord();
+        return batchRecord == null ? 0 : batchRecord.getReadyTime() - batchRecord.now();
+    }
+}
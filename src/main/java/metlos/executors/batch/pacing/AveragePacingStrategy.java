@@ -0,0 +1,59 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+/**
+ * Estimates the execution time of the next element as the average execution time of all the elements
+ * of the batch that finished so far.
+ * <p>
+ * This is the default strategy. It works well for batches of elements with similar computational
+ * requirements but reacts slowly to changes and is easily skewed by a few elements taking much longer
+ * than the rest.
+ *
+ * @author Lukas Krejci
+ */
+public class AveragePacingStrategy implements PacingStrategy {
+
+    public static final AveragePacingStrategy INSTANCE = new AveragePacingStrategy();
+
+    private static final Pacer PACER = new AveragePacer();
+
+    static class AveragePacer extends EstimatingPacer implements ResettablePacer {
+        @Override
+        public void reset() {
+            //nothing to reset, the estimate is computed from the progress of the batch
+        }
+
+        @Override
+        protected double estimateExecutionTime(BatchProgress progress, long elementDuration, double elementWeight) {
+            double finished = progress.getFinishedWeight();
+            return finished <= 0 ? elementDuration / elementWeight : progress.getCumulativeExecutionTime()
+                / finished;
+        }
+    }
+
+    /**
+     * The average pacer is stateless, so the same instance is shared by all the batches.
+     */
+    @Override
+    public Pacer newPacer() {
+        return PACER;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+/**
+ * A read-only view of the progress of a batch used by the {@link Pacer}s to determine when the next element
+ * of the batch should run.
+ * <p>
+ * All the times are in nanoseconds on the time scale of the executor.
+ *
+ * @author Lukas Krejci
+ */
+public interface BatchProgress {
+
+    /**
+     * @return the number of elements of the batch
+     */
+    int getNofElements();
+
+    /**
+     * @return the number of elements that finished executing
+     */
+    int getNofFinishedElements();
+
+    /**
+     * @return the total weight of the elements of the batch. If the elements don't declare their weights,
+     * this is equal to the number of elements.
+     * 
+     * @see metlos.executors.batch.WeightedTask
+     */
+    double getTotalWeight();
+
+    /**
+     * @return the total weight of the finished elements
+     */
+    double getFinishedWeight();
+
+    /**
+     * @return the sum of the execution times of the finished elements
+     */
+    long getCumulativeExecutionTime();
+
+    /**
+     * @return the time the batch started (or is going to start)
+     */
+    long getStartTime();
+
+    /**
+     * @return the time the batch should finish by
+     */
+    long getFinishTime();
+}
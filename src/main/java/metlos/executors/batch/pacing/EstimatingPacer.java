@@ -0,0 +1,68 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+/**
+ * The base class for the pacers that spread the remaining elements evenly over the remaining time of the batch
+ * and only differ in how they estimate the execution time of the next element.
+ * <p>
+ * The time gap before the next element is the time the remaining elements have for their execution (multiplied
+ * by the number of elements running concurrently) minus the estimated execution time of the next element.
+ * The execution times are estimated per unit of weight of the elements, and because the weight of the next element
+ * is not known, it is assumed to be the average weight of the remaining elements.
+ * Note that the gap can be negative, which would set the next start time in the past. That is a sign of the batch
+ * running late and only makes the elements further down the line run without any delay.
+ *
+ * @author Lukas Krejci
+ */
+public abstract class EstimatingPacer implements Pacer {
+
+    @Override
+    public long getNextStartTime(BatchProgress progress, long elementDuration, double elementWeight,
+        int runningElements, long now) {
+        double estimatedExecutionTime = estimateExecutionTime(progress, elementDuration, elementWeight);
+
+        long time2Go = progress.getFinishTime() - now;
+        long tasks2Go = progress.getNofElements() - progress.getNofFinishedElements();
+
+        if (tasks2Go <= 0) {
+            //there's nothing left to pace
+            return now;
+        }
+
+        //make the next task run after a longer delay if there is more than 1 of tasks 
+        //running at this very moment.
+        double idealExecutionTime = ((double) time2Go) / tasks2Go * runningElements;
+
+        double remainingWeight = Math.max(0, progress.getTotalWeight() - progress.getFinishedWeight());
+        double nextElementWeight = remainingWeight / tasks2Go;
+
+        return now + (long) (idealExecutionTime - estimatedExecutionTime * nextElementWeight);
+    }
+
+    /**
+     * @param progress the progress of the batch
+     * @param elementDuration the duration of the element that just finished
+     * @param elementWeight the weight of the element that just finished
+     * @return the estimated execution time of a unit of weight
+     */
+    protected abstract double estimateExecutionTime(BatchProgress progress, long elementDuration,
+        double elementWeight);
+}
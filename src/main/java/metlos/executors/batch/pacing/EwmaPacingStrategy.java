@@ -0,0 +1,84 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+/**
+ * Estimates the execution time of the next element using the exponentially weighted moving average
+ * of the execution times of the elements. Unlike the {@link AveragePacingStrategy}, this adapts quickly
+ * to the changes in the execution times during the batch.
+ *
+ * @author Lukas Krejci
+ */
+public class EwmaPacingStrategy implements PacingStrategy {
+
+    public static final double DEFAULT_ALPHA = 0.2;
+
+    private final double alpha;
+
+    private static class EwmaPacer extends EstimatingPacer implements ResettablePacer {
+        private final double alpha;
+        private double average = Double.NaN;
+
+        EwmaPacer(double alpha) {
+            this.alpha = alpha;
+        }
+
+        @Override
+        public synchronized void reset() {
+            average = Double.NaN;
+        }
+
+        @Override
+        protected synchronized double estimateExecutionTime(BatchProgress progress, long elementDuration,
+            double elementWeight) {
+            double sample = elementDuration / elementWeight;
+            if (Double.isNaN(average)) {
+                average = sample;
+            } else {
+                average += alpha * (sample - average);
+            }
+
+            return average;
+        }
+    }
+
+    public EwmaPacingStrategy() {
+        this(DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param alpha the weight of the most recent execution time, must be in the (0, 1] interval
+     */
+    public EwmaPacingStrategy(double alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Alpha must be in the (0, 1] interval.");
+        }
+        this.alpha = alpha;
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    @Override
+    public Pacer newPacer() {
+        return new EwmaPacer(alpha);
+    }
+}
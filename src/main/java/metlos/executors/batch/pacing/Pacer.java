@@ -0,0 +1,44 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+/**
+ * Determines when the next element of a single batch should start.
+ * <p>
+ * The pacer is called by the threads of the executor each time an element of the batch finishes. Several
+ * elements of a batch can run concurrently, so the implementations need to be thread-safe.
+ *
+ * @author Lukas Krejci
+ */
+public interface Pacer {
+
+    /**
+     * @param progress the progress of the batch, already reflecting the element that just finished
+     * @param elementDuration the time the element that just finished took to execute
+     * @param elementWeight the weight of the element that just finished
+     * @param runningElements the number of elements of the batch that were running at the time the finished
+     * element started (including it)
+     * @param now the current time
+     * @return the time the next element of the batch should start at. This can be in the past, which
+     * means the next element should start immediately.
+     */
+    long getNextStartTime(BatchProgress progress, long elementDuration, double elementWeight, int runningElements,
+        long now);
+}
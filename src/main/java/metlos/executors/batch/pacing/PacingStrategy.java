@@ -0,0 +1,36 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+/**
+ * A pacing strategy determines how the elements of a batch are spread over the duration of the batch.
+ * <p>
+ * The strategy itself is stateless and can be shared by any number of batches. It creates a new {@link Pacer}
+ * for each batch, which can keep whatever state it needs about the batch.
+ *
+ * @author Lukas Krejci
+ */
+public interface PacingStrategy {
+
+    /**
+     * @return a new pacer for a single batch
+     */
+    Pacer newPacer();
+}
@@ -0,0 +1,106 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the execution time of the next element as the given percentile of the execution times of
+ * the last few elements. With the default percentile (the median), the estimate is not skewed by the few
+ * elements that take much longer than the rest, which makes it suitable for the heavy-tailed batches.
+ *
+ * @author Lukas Krejci
+ */
+public class PercentilePacingStrategy implements PacingStrategy {
+
+    public static final double DEFAULT_PERCENTILE = 0.5;
+    public static final int DEFAULT_WINDOW_SIZE = 63;
+
+    private final double percentile;
+    private final int windowSize;
+
+    private static class PercentilePacer extends EstimatingPacer implements ResettablePacer {
+        private final double percentile;
+        private final double[] window;
+        private final double[] sorted;
+        private int nofSamples;
+        private int next;
+
+        PercentilePacer(double percentile, int windowSize) {
+            this.percentile = percentile;
+            this.window = new double[windowSize];
+            this.sorted = new double[windowSize];
+        }
+
+        @Override
+        public synchronized void reset() {
+            nofSamples = 0;
+            next = 0;
+        }
+
+        @Override
+        protected synchronized double estimateExecutionTime(BatchProgress progress, long elementDuration,
+            double elementWeight) {
+            window[next] = elementDuration / elementWeight;
+            next = (next + 1) % window.length;
+            if (nofSamples < window.length) {
+                ++nofSamples;
+            }
+
+            System.arraycopy(window, 0, sorted, 0, nofSamples);
+            Arrays.sort(sorted, 0, nofSamples);
+
+            int idx = (int) Math.round(percentile * (nofSamples - 1));
+            return sorted[idx];
+        }
+    }
+
+    public PercentilePacingStrategy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param percentile the percentile to use as the estimate, must be in the [0, 1] interval
+     * @param windowSize the number of the most recent execution times to compute the percentile from
+     */
+    public PercentilePacingStrategy(double percentile, int windowSize) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be in the [0, 1] interval.");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive.");
+        }
+        this.percentile = percentile;
+        this.windowSize = windowSize;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    @Override
+    public Pacer newPacer() {
+        return new PercentilePacer(percentile, windowSize);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+/**
+ * Paces the batch the same way as the {@link AveragePacingStrategy} but on top of that corrects the difference
+ * between where the batch is and where it should be using a PID controller.
+ * <p>
+ * The error the controller works with is the lag of the batch, i.e. the difference between the current time and
+ * the time the finished elements should have finished by, if they were spread evenly (by their weight) over
+ * the duration of the batch.
+ * A positive lag (the batch is running late) makes the next element start sooner, a negative lag (the batch is ahead)
+ * postpones it.
+ *
+ * @author Lukas Krejci
+ */
+public class PidPacingStrategy implements PacingStrategy {
+
+    public static final double DEFAULT_PROPORTIONAL_GAIN = 0.5;
+    public static final double DEFAULT_INTEGRAL_GAIN = 0.05;
+    public static final double DEFAULT_DERIVATIVE_GAIN = 0.1;
+
+    private final double proportionalGain;
+    private final double integralGain;
+    private final double derivativeGain;
+
+    private static class PidPacer extends AveragePacingStrategy.AveragePacer {
+        private final double kp;
+        private final double ki;
+        private final double kd;
+
+        private double integral;
+        private double previousLag = Double.NaN;
+
+        PidPacer(double kp, double ki, double kd) {
+            this.kp = kp;
+            this.ki = ki;
+            this.kd = kd;
+        }
+
+        @Override
+        public synchronized void reset() {
+            integral = 0;
+            previousLag = Double.NaN;
+        }
+
+        @Override
+        public synchronized long getNextStartTime(BatchProgress progress, long elementDuration,
+            double elementWeight, int runningElements, long now) {
+            long nextStartTime = super.getNextStartTime(progress, elementDuration, elementWeight, runningElements, now);
+
+            long duration = progress.getFinishTime() - progress.getStartTime();
+            double totalWeight = progress.getTotalWeight();
+            if (duration <= 0 || totalWeight <= 0) {
+                return nextStartTime;
+            }
+
+            double idealTime = progress.getStartTime() + duration * Math.min(1, progress.getFinishedWeight()
+                / totalWeight);
+            double lag = now - idealTime;
+
+            //don't let the integral wind up beyond what can ever be corrected
+            integral = Math.max(-duration, Math.min(duration, integral + lag));
+
+            double derivative = Double.isNaN(previousLag) ? 0 : lag - previousLag;
+            previousLag = lag;
+
+            double correction = kp * lag + ki * integral + kd * derivative;
+
+            return nextStartTime - (long) correction;
+        }
+    }
+
+    public PidPacingStrategy() {
+        this(DEFAULT_PROPORTIONAL_GAIN, DEFAULT_INTEGRAL_GAIN, DEFAULT_DERIVATIVE_GAIN);
+    }
+
+    public PidPacingStrategy(double proportionalGain, double integralGain, double derivativeGain) {
+        this.proportionalGain = proportionalGain;
+        this.integralGain = integralGain;
+        this.derivativeGain = derivativeGain;
+    }
+
+    public double getProportionalGain() {
+        return proportionalGain;
+    }
+
+    public double getIntegralGain() {
+        return integralGain;
+    }
+
+    public double getDerivativeGain() {
+        return derivativeGain;
+    }
+
+    @Override
+    public Pacer newPacer() {
+        return new PidPacer(proportionalGain, integralGain, derivativeGain);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch.pacing;
+
+/**
+ * A pacer that can be reused for the next repetition of a repeated batch. Resetting the pacer
+ * should put it to the same state as a freshly created one.
+ * <p>
+ * The pacers that don't implement this interface are replaced by new instances obtained from their
+ * {@link PacingStrategy} for each repetition.
+ *
+ * @author Lukas Krejci
+ */
+public interface ResettablePacer extends Pacer {
+
+    /**
+     * Forgets everything the pacer learned about the batch it paced.
+     * Only called when no element of the batch is running.
+     */
+    void reset();
+}
@@ -247,6 +247,83 @@ public class BatchCpuThrottlingExecutorTest {
         Assert.assertTrue(min < actualUsage && actualUsage < max,  "Actual CPU usage out of expected range: (" + min + ", " + expectedCpuUsage + ", " + max + ") != " + actualUsage); 
     }
     
+    @Test
+    public void tenantOverBudgetDoesNotBlockOthers() throws Exception {
+        NamingThreadFactory factory = new NamingThreadFactory();
+        BatchCpuThrottlingExecutor e = getExecutor(1, MAX_USAGE, factory);
+        try {
+            e.setTenantMaximumCpuUsage("limited", 0.01f);
+            
+            List<Runnable> limitedTasks = new ArrayList<Runnable>();
+            List<Runnable> otherTasks = new ArrayList<Runnable>();
+            for (int i = 0; i < 10; ++i) {
+                limitedTasks.add(new BusyPayload(20));
+                otherTasks.add(new BusyPayload(20));
+            }
+            
+            BatchHandle limited = e.submitWithPreferedDuration(limitedTasks, 0, TimeUnit.MILLISECONDS);
+            limited.setTenant("limited");
+            
+            //let the limited tenant exhaust its budget
+            Thread.sleep(100);
+            
+            BatchHandle other = e.submitWithPreferedDuration(otherTasks, 0, TimeUnit.MILLISECONDS);
+            
+            Assert.assertTrue(other.await(5, TimeUnit.SECONDS), "The batch of the other tenant should have finished");
+            Assert.assertFalse(limited.isDone(), "The limited tenant should have been held back by its budget");
+            Assert.assertTrue(e.getTenantCpuTime("limited", TimeUnit.NANOSECONDS) > 0, "The CPU time of the limited tenant should have been accounted for");
+            
+            limited.cancel();
+        } finally {
+            e.shutdownNow();
+        }
+    }
+    
+    public void notParkedWorkerRunsOtherTasksWhileBatchHeldBack() throws Exception {
+        BatchCpuThrottlingExecutor e = getExecutor(1, 0.05f, new NamingThreadFactory());
+        try {
+            e.setParkingWorkers(false);
+            
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int i = 0; i < 3; ++i) {
+                tasks.add(new BusyPayload(20));
+            }
+            
+            BatchHandle batch = e.submitWithPreferedDuration(tasks, 0, TimeUnit.MILLISECONDS);
+            
+            //let the batch exhaust the budget of the executor
+            Thread.sleep(100);
+            
+            Future<?> other = e.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            
+            other.get(100, TimeUnit.MILLISECONDS);
+            Assert.assertFalse(batch.isDone(), "The batch should have been held back by the budget of the executor");
+            Assert.assertTrue(batch.await(10, TimeUnit.SECONDS), "The batch should have finished once the budget renewed");
+        } finally {
+            e.shutdownNow();
+        }
+    }
+    
+    private static class BusyPayload implements Runnable {
+        private final long durationNanos;
+        
+        BusyPayload(int durationMillis) {
+            this.durationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        }
+        
+        @Override
+        public void run() {
+            long end = System.nanoTime() + durationNanos;
+            while (System.nanoTime() < end) {
+                UUID.randomUUID();
+            }
+        }
+    }
+    
     private static BatchCpuThrottlingExecutor getExecutor(int nofThreads, float cpuUsage, ThreadFactory threadFactory) {
         return new BatchCpuThrottlingExecutor(nofThreads, nofThreads, 0, TimeUnit.DAYS, threadFactory, cpuUsage); 
     }
@@ -20,22 +20,36 @@
 package metlos.executors.batch;
 
 import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.testng.SkipException;
 import org.testng.annotations.Test;
 
 /**
@@ -46,6 +60,12 @@ import org.testng.annotations.Test;
 @Test
 public class BatchExecutorTest {
 
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
     private static final Log LOG  = LogFactory.getLog(BatchExecutorTest.class);
     
     public void testTimingOfFewTasks_SingleThreaded() throws Exception {
@@ -201,6 +221,890 @@ public class BatchExecutorTest {
         ex.shutdown();
     }
     
+    public void testFireAndForgetBatchOccupiesSingleQueueEntry() throws Exception {
+        int nofTasks = 50;
+        final CountDownLatch allRan = new CountDownLatch(nofTasks);
+        
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < nofTasks; ++i) {
+            final boolean fail = i % 10 == 0;
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    allRan.countDown();
+                    if (fail) {
+                        throw new IllegalStateException("Failures of the tasks shouldn't affect the batch.");
+                    }
+                }
+            });
+        }
+        
+        BatchExecutor ex = getExecutor(2);
+        
+        BatchHandle handle = ex.submitWithPreferedDuration(tasks, 500, TimeUnit.MILLISECONDS);
+        
+        int queueSize = ex.getQueue().size();
+        
+        assert queueSize <= 1 : "The batch should occupy at most a single entry in the queue but there were " + queueSize + " entries.";
+        assert allRan.await(5, TimeUnit.SECONDS) : "All the tasks should have run but " + allRan.getCount() + " didn't.";
+        assert handle.await(5, TimeUnit.SECONDS) : "The batch should be done";
+        assert handle.getNofFinishedElements() == nofTasks : "Unexpected number of finished elements: " + handle.getNofFinishedElements();
+        assert handle.getNofFailedElements() == nofTasks / 10 : "Unexpected number of failed elements: " + handle.getNofFailedElements();
+        
+        ex.shutdown();
+    }
+    
+    public void testBatchCancellation() throws Exception {
+        int nofTasks = 100;
+        final AtomicInteger ran = new AtomicInteger();
+        
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < nofTasks; ++i) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            });
+        }
+        
+        BatchExecutor ex = getExecutor(2);
+        
+        BatchHandle handle = ex.submitWithPreferedDuration(tasks, 10, TimeUnit.SECONDS);
+        
+        Thread.sleep(300);
+        
+        assert !handle.isDone() : "The batch shouldn't be done yet";
+        
+        handle.cancel();
+        
+        assert handle.await(1, TimeUnit.SECONDS) : "The cancelled batch should be done once the running elements finish";
+        assert handle.isCancelled() : "The batch should be cancelled";
+        
+        int ranAfterCancel = ran.get();
+        Thread.sleep(200);
+        
+        assert ran.get() == ranAfterCancel : "No element should run after the batch has been cancelled";
+        assert ran.get() < nofTasks : "Only some of the elements should have run";
+        assert ex.getQueue().isEmpty() : "The cancelled batch should have been removed from the queue " + ex.getQueue() + " " + ex.getQueue().peek() + " " + ex.getCompletedTaskCount() + " " + ran.get();
+        
+        ex.shutdown();
+    }
+    
+    public void testLazyBatchPullsElementsOnlyWhenDue() throws Exception {
+        final int nofTasks = 20;
+        final AtomicInteger pulled = new AtomicInteger();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger maxOutstanding = new AtomicInteger();
+        final CountDownLatch allRan = new CountDownLatch(nofTasks);
+        
+        Iterator<Runnable> source = new Iterator<Runnable>() {
+            @Override
+            public boolean hasNext() {
+                return pulled.get() < nofTasks;
+            }
+
+            @Override
+            public Runnable next() {
+                pulled.incrementAndGet();
+                int current = outstanding.incrementAndGet();
+                if (current > maxOutstanding.get()) {
+                    maxOutstanding.set(current);
+                }
+                
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        outstanding.decrementAndGet();
+                        allRan.countDown();
+                    }
+                };
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        
+        BatchExecutor ex = getExecutor(2);
+        
+        //expect more elements than there actually are
+        ex.submitWithPreferedDuration(source, nofTasks * 2, 1000, TimeUnit.MILLISECONDS);
+        
+        Thread.sleep(100);
+        
+        assert pulled.get() < nofTasks / 2 : "The elements should be pulled only when due, but " + pulled.get() + " were pulled after 100ms.";
+        assert allRan.await(5, TimeUnit.SECONDS) : "All the tasks should have run but " + allRan.getCount() + " didn't.";
+        assert maxOutstanding.get() <= 2 : "At most as many elements as there are threads should be held at a time but there were " + maxOutstanding.get();
+        
+        ex.shutdown();
+        assert ex.awaitTermination(5, TimeUnit.SECONDS) : "The executor should terminate once the source is exhausted";
+        assert pulled.get() == nofTasks : "Unexpected number of pulled elements: " + pulled.get();
+    }
+    
+    public void testBatchRejectedAfterShutdown() throws Exception {
+        BatchExecutor ex = getExecutor(2);
+        ex.shutdown();
+        
+        try {
+            ex.executeAllWithin(getRunnables(1, 10), 100, TimeUnit.MILLISECONDS);
+            assert false : "The batch should have been rejected";
+        } catch (RejectedExecutionException e) {
+            //expected
+        }
+        
+        assert ex.getQueue().isEmpty() : "No task should have been enqueued";
+    }
+    
+    public void testWeightsDistributeDuration() throws Exception {
+        final int[] weights = { 1, 10, 1, 100, 1 };
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (final int w : weights) {
+            tasks.add(new WeightedRunnable(w));
+        }
+        
+        BatchExecutor ex = getExecutor(1);
+        try {
+            List<Future<?>> futures = ex.executeAllWithin(tasks, 113, TimeUnit.SECONDS);
+            
+            long previous = ((BatchExecutor.BatchReferringRunnable<?>) futures.get(0)).getIdealFinishTimeNanos();
+            for (int i = 1; i < futures.size(); ++i) {
+                long current = ((BatchExecutor.BatchReferringRunnable<?>) futures.get(i)).getIdealFinishTimeNanos();
+                long expected = TimeUnit.SECONDS.toNanos(weights[i - 1]);
+                assert Math.abs(current - previous - expected) < 1000 : "Task " + i + " should have been offset by the weight of the previous task.";
+                previous = current;
+            }
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testFixedRateDoesNotDrift() throws Exception {
+        final ConcurrentLinkedQueue<Long> executionTimes = new ConcurrentLinkedQueue<Long>();
+        
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                executionTimes.add(System.nanoTime());
+                try {
+                    //with a fixed delay, this would cause the executions to drift by 5ms each round
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        
+        BatchExecutor ex = getExecutor(1);
+        try {
+            ex.submitWithPreferedDurationAtFixedRate(Collections.singleton(task), 0, 0, 20, TimeUnit.MILLISECONDS, CatchUpPolicy.SKIP);
+            Thread.sleep(1000);
+        } finally {
+            ex.shutdown();
+        }
+        
+        List<Long> times = new ArrayList<Long>(executionTimes);
+        
+        assert times.size() > 40 : "There should have been about 50 executions but there were " + times.size();
+        
+        long first = times.get(0);
+        long last = times.get(times.size() - 1);
+        long rounds = times.size() - 1;
+        long expected = TimeUnit.MILLISECONDS.toNanos(20) * rounds;
+        long drift = TimeUnit.NANOSECONDS.toMillis(Math.abs(last - first - expected));
+        
+        assert drift < 15 : "The executions drifted by " + drift + "ms after " + rounds + " rounds.";
+    }
+    
+    public void testFixedRateSkipsMissedRounds() throws Exception {
+        final ConcurrentLinkedQueue<Long> executionTimes = new ConcurrentLinkedQueue<Long>();
+        final AtomicInteger runs = new AtomicInteger();
+        
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                executionTimes.add(System.nanoTime());
+                if (runs.getAndIncrement() == 0) {
+                    try {
+                        //overrun 2 periods
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        
+        BatchExecutor ex = getExecutor(1);
+        try {
+            ex.submitWithPreferedDurationAtFixedRate(Collections.singleton(task), 0, 0, 20, TimeUnit.MILLISECONDS, CatchUpPolicy.SKIP);
+            Thread.sleep(210);
+        } finally {
+            ex.shutdown();
+        }
+        
+        List<Long> times = new ArrayList<Long>(executionTimes);
+        
+        assert times.size() > 2 : "The repetitions should have continued after the overrun.";
+        
+        long secondRunOffset = TimeUnit.NANOSECONDS.toMillis(times.get(1) - times.get(0));
+        assert secondRunOffset >= 55 : "The rounds missed during the overrun should have been skipped, yet the second run started after " + secondRunOffset + "ms.";
+        
+        //the 10 rounds fit in the test time, minus the 2 skipped ones
+        assert times.size() <= 9 : "The missed rounds should have been skipped, not run, but there were " + times.size() + " executions.";
+    }
+    
+    public void testRepetitionHandleCancelsPendingTasks() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < 10; ++i) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            });
+        }
+        
+        BatchExecutor ex = getExecutor(1);
+        try {
+            //the first element runs right away, the rest of them waits in the queue
+            RepetitionHandle handle = ex.submitWithPreferedDurationAndFixedDelay(tasks, 0, 10, 0, TimeUnit.SECONDS);
+            
+            Thread.sleep(200);
+            assert !ex.getQueue().isEmpty() : "The rest of the batch should be waiting in the queue.";
+            
+            handle.cancel();
+            
+            assert handle.isCancelled() : "The handle should report the cancellation.";
+            assert ex.getQueue().isEmpty() : "The pending tasks of the cancelled batch should have been removed from the queue.";
+            
+            int ranBeforeCancel = runs.get();
+            Thread.sleep(100);
+            assert runs.get() == ranBeforeCancel : "No task should run after the cancellation.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testRepetitionHandleRetunesDelay() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        
+        BatchExecutor ex = getExecutor(1);
+        try {
+            RepetitionHandle handle = ex.submitWithPreferedDurationAndFixedDelay(Collections.singleton(task), 0, 0, 100, TimeUnit.MILLISECONDS);
+            
+            //the first repetition uses the original delay, the next ones the new one
+            handle.setDelay(5, TimeUnit.MILLISECONDS);
+            assert handle.getDelay(TimeUnit.MILLISECONDS) == 5 : "The handle should report the new delay.";
+            
+            Thread.sleep(400);
+            assert runs.get() > 20 : "The repetitions should have sped up after the delay change but there were only " + runs.get() + " of them.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testRepetitionHandleRepacesWaitingBatch() throws Exception {
+        final CountDownLatch allRan = new CountDownLatch(3);
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < 3; ++i) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    allRan.countDown();
+                }
+            });
+        }
+        
+        BatchExecutor ex = getExecutor(1);
+        try {
+            //the first element runs right away, the next one only after about 20 minutes
+            RepetitionHandle handle = ex.submitWithPreferedDurationAndFixedDelay(tasks, 0, TimeUnit.HOURS.toMillis(1),
+                TimeUnit.HOURS.toMillis(1), TimeUnit.MILLISECONDS);
+            Thread.sleep(200);
+            assert allRan.getCount() == 2 : "Only the first element should have run but " + (3 - allRan.getCount()) + " did.";
+            
+            handle.setDuration(300, TimeUnit.MILLISECONDS, true);
+            
+            assert allRan.await(5, TimeUnit.SECONDS) : "The waiting batch should have been paced by its new duration.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testRepetitionHandlePausesAndResumes() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        
+        BatchExecutor ex = getExecutor(1);
+        try {
+            RepetitionHandle handle = ex.submitWithPreferedDurationAndFixedDelay(Collections.singleton(task), 0, 0, 5, TimeUnit.MILLISECONDS);
+            Thread.sleep(100);
+            
+            handle.pause();
+            assert handle.isPaused() : "The handle should report the pause.";
+            
+            //let the element that might have been running finish
+            Thread.sleep(20);
+            int runsBeforePause = runs.get();
+            Thread.sleep(200);
+            assert runs.get() == runsBeforePause : "No task should run while the repetitions are paused.";
+            
+            handle.resume();
+            Thread.sleep(100);
+            assert runs.get() > runsBeforePause : "The repetitions should have continued after resuming.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testRepetitionScheduledOnlyOnce() throws Exception {
+        final AtomicInteger maxConcurrency = new AtomicInteger();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < 10; ++i) {
+            tasks.add(new ConcurrencyTrackingRunnable(maxConcurrency, 0));
+        }
+        
+        BatchExecutor ex = getExecutor(10);
+        try {
+            ex.submitWithPreferedDurationAndFixedDelay(tasks, 0, 0, 0, TimeUnit.MILLISECONDS);
+            Thread.sleep(500);
+        } finally {
+            ex.shutdownNow();
+        }
+        
+        assert maxConcurrency.get() == 1 : "A task ran " + maxConcurrency.get() + " times concurrently, so the batch must have been resubmitted more than once.";
+    }
+    
+    public void testOverlappingRepetitionsDontWaitForStragglers() throws Exception {
+        final AtomicInteger maxConcurrency = new AtomicInteger();
+        final ConcurrentLinkedQueue<Long> quickRuns = new ConcurrentLinkedQueue<Long>();
+        
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        ConcurrencyTrackingRunnable straggler = new ConcurrencyTrackingRunnable(maxConcurrency, 400);
+        tasks.add(straggler);
+        for (int i = 0; i < 3; ++i) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    quickRuns.add(System.nanoTime());
+                }
+            });
+        }
+        
+        int nofQuickRuns;
+        int nofStragglerRuns;
+        BatchExecutor ex = getExecutor(4);
+        try {
+            ex.setRepetitionOverlap(50, TimeUnit.MILLISECONDS);
+            ex.submitWithPreferedDurationAndFixedDelay(tasks, 0, 0, 10, TimeUnit.MILLISECONDS);
+            Thread.sleep(300);
+            
+            //read the counters before the shutdown interrupts the straggler and lets it run again
+            nofQuickRuns = quickRuns.size();
+            nofStragglerRuns = straggler.runs.get();
+        } finally {
+            ex.shutdownNow();
+        }
+        
+        //the straggler was still running at that point. Without the overlap, there would only be a single repetition.
+        assert nofQuickRuns >= 9 : "The repetitions should have continued while the straggler ran, but the quick tasks ran only " + nofQuickRuns + " times.";
+        assert nofStragglerRuns == 1 : "The straggler should have been skipped while it was running but it ran " + nofStragglerRuns + " times.";
+        assert maxConcurrency.get() == 1 : "The straggler shouldn't have run concurrently with itself.";
+    }
+    
+    private static class ConcurrencyTrackingRunnable implements Runnable {
+        private final AtomicInteger maxConcurrency;
+        private final AtomicInteger concurrency = new AtomicInteger();
+        private final long durationMillis;
+        final AtomicInteger runs = new AtomicInteger();
+        
+        ConcurrencyTrackingRunnable(AtomicInteger maxConcurrency, long durationMillis) {
+            this.maxConcurrency = maxConcurrency;
+            this.durationMillis = durationMillis;
+        }
+        
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+            int current = concurrency.incrementAndGet();
+            while (true) {
+                int max = maxConcurrency.get();
+                if (current <= max || maxConcurrency.compareAndSet(max, current)) {
+                    break;
+                }
+            }
+            
+            try {
+                Thread.sleep(durationMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrency.decrementAndGet();
+            }
+        }
+    }
+    
+    public void testReusedRepetitionsDoNotAllocate() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)
+            || !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Measuring the allocated memory of threads is not supported on this JVM.");
+        }
+        
+        //the trace messages would dwarf anything the executor allocates
+        Logger logger = Logger.getLogger("metlos.executors");
+        Level originalLevel = logger.getLevel();
+        logger.setLevel(Level.INFO);
+        
+        long reusedAllocation;
+        long allocation;
+        try {
+            reusedAllocation = measureAllocationPerRepetition((com.sun.management.ThreadMXBean) threadBean, true);
+            allocation = measureAllocationPerRepetition((com.sun.management.ThreadMXBean) threadBean, false);
+        } finally {
+            logger.setLevel(originalLevel);
+        }
+        
+        LOG.info("Allocation per repetition: " + allocation + " bytes, with reuse: " + reusedAllocation + " bytes.");
+        
+        //the parking of the threads still allocates a little, let's allow for that
+        assert reusedAllocation < 256 : "A repetition allocated " + reusedAllocation + " bytes even though its state should have been reused.";
+        assert allocation > reusedAllocation : "Reusing the state of the repetitions should have saved some allocations.";
+    }
+    
+    private long measureAllocationPerRepetition(com.sun.management.ThreadMXBean threadBean, boolean reuse) throws Exception {
+        final AtomicInteger rounds = new AtomicInteger();
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                rounds.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 999; ++i) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+        
+        BatchExecutor ex = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                threads.add(t);
+                return t;
+            }
+        });
+        
+        try {
+            ex.setReusingRepetitionState(reuse);
+            ex.submitWithPreferedDurationAndFixedDelay(tasks, 0, 0, 0, TimeUnit.MILLISECONDS);
+            
+            //let the JIT settle down
+            while (rounds.get() < 200) {
+                Thread.sleep(10);
+            }
+            
+            long startRounds = rounds.get();
+            long startBytes = getAllocatedBytes(threadBean, threads);
+            Thread.sleep(500);
+            long endBytes = getAllocatedBytes(threadBean, threads);
+            long endRounds = rounds.get();
+            
+            assert endRounds > startRounds : "The repetitions should have continued.";
+            
+            return (endBytes - startBytes) / (endRounds - startRounds);
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threadBean, List<Thread> threads) {
+        long ret = 0;
+        synchronized (threads) {
+            for (Thread t : threads) {
+                ret += threadBean.getThreadAllocatedBytes(t.getId());
+            }
+        }
+        
+        return ret;
+    }
+    
+    private static class WeightedRunnable implements Runnable, WeightedTask {
+        private final double weight;
+        
+        WeightedRunnable(double weight) {
+            this.weight = weight;
+        }
+        
+        @Override
+        public double getWeight() {
+            return weight;
+        }
+        
+        @Override
+        public void run() {
+        }
+    }
+    
+    public void testAdmissionRejectsInfeasibleBatch() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            warmUp(ex);
+            
+            AdmissionVerdict verdict = ex.checkAdmission(getRunnables(20, 50), 100, TimeUnit.MILLISECONDS);
+            assert !verdict.isFeasible() : "50 tasks of 20ms shouldn't fit in 100ms: " + verdict;
+            assert verdict.getRequiredDuration(TimeUnit.MILLISECONDS) > 500 : "The required duration should reflect the observed execution times: " + verdict;
+            assert ex.checkAdmission(getRunnables(20, 5), 10, TimeUnit.SECONDS).isFeasible() : "A small batch should fit in 10s.";
+            
+            ex.setAdmissionPolicy(AdmissionPolicy.REJECT);
+            try {
+                ex.executeAllWithin(getRunnables(20, 50), 100, TimeUnit.MILLISECONDS);
+                assert false : "The batch should have been rejected";
+            } catch (BatchAdmissionException e) {
+                assert !e.getVerdict().isFeasible() : "The exception should carry the verdict";
+            }
+            
+            assert ex.getQueue().isEmpty() : "No task should have been enqueued";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testAdmissionExtendsDeadline() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            warmUp(ex);
+            ex.setAdmissionPolicy(AdmissionPolicy.EXTEND_DEADLINE);
+            
+            List<Future<?>> futures = ex.executeAllWithin(getRunnables(20, 20), 10, TimeUnit.MILLISECONDS);
+            
+            long first = ((BatchExecutor.BatchReferringRunnable<?>) futures.get(0)).getIdealFinishTimeNanos();
+            long last = ((BatchExecutor.BatchReferringRunnable<?>) futures.get(futures.size() - 1)).getIdealFinishTimeNanos();
+            long spreadMillis = TimeUnit.NANOSECONDS.toMillis(last - first);
+            
+            assert spreadMillis > 200 : "The tasks should have been spread over the extended duration but were only spread over " + spreadMillis + "ms.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testAdmissionShedsLowPriorityTasks() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            ex.setAdmissionPolicy(AdmissionPolicy.SHED);
+            
+            //the cost model knows each of the 10 tasks takes 10ms, so 3 of them need to go for the rest to fit in 70ms
+            TaskCostModel costModel = new TaskCostModel();
+            final Set<Integer> ran = Collections.synchronizedSet(new HashSet<Integer>());
+            final CountDownLatch admittedRan = new CountDownLatch(7);
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int i = 0; i < 10; ++i) {
+                final int index = i;
+                Runnable task = new PrioritizedRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.add(index);
+                        admittedRan.countDown();
+                    }
+                }, i % 2);
+                
+                tasks.add(task);
+                costModel.record(task, TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            costModel.startRound();
+            
+            RepetitionHandle handle = ex.submitWithPreferedDurationAndFixedDelay(tasks, 0, 70, TimeUnit.HOURS.toMillis(1),
+                TimeUnit.MILLISECONDS, ex.getPacingStrategy(), costModel);
+            try {
+                assert admittedRan.await(5, TimeUnit.SECONDS) : "The admitted tasks should have run.";
+            } finally {
+                handle.cancel();
+            }
+            
+            //the low priority tasks are dropped from the end of the batch
+            Set<Integer> expected = new HashSet<Integer>(Arrays.asList(0, 1, 2, 3, 5, 7, 9));
+            assert ran.equals(expected) : "Only the tasks " + expected + " should have run but " + ran + " did.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    /**
+     * Lets the executor observe the tasks taking about 20ms.
+     */
+    private void warmUp(BatchExecutor ex) throws Exception {
+        for (Future<?> f : ex.executeAllWithin(getRunnables(20, 5), 0, TimeUnit.MILLISECONDS)) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+    }
+    
+    private static class PrioritizedRunnable implements Runnable, PrioritizedTask {
+        private final Runnable payload;
+        private final int priority;
+        
+        PrioritizedRunnable(Runnable payload, int priority) {
+            this.payload = payload;
+            this.priority = priority;
+        }
+        
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+        
+        @Override
+        public void run() {
+            payload.run();
+        }
+    }
+    
+    public void testAsyncTasksDoNotOccupyWorkers() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final AtomicInteger inFlight = new AtomicInteger();
+            final AtomicInteger maxInFlight = new AtomicInteger();
+            List<AsyncTask<Integer>> tasks = new ArrayList<AsyncTask<Integer>>();
+            for (int i = 0; i < 10; ++i) {
+                final int result = i;
+                tasks.add(new AsyncTask<Integer>() {
+                    @Override
+                    public void start(final AsyncCompletion<? super Integer> completion) {
+                        int current = inFlight.incrementAndGet();
+                        if (current > maxInFlight.get()) {
+                            maxInFlight.set(current);
+                        }
+                        
+                        io.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                inFlight.decrementAndGet();
+                                completion.completed(result);
+                            }
+                        }, 100, TimeUnit.MILLISECONDS);
+                    }
+                });
+            }
+            
+            long start = System.nanoTime();
+            List<Future<Integer>> futures = ex.invokeAllAsyncWithin(tasks, 0, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < futures.size(); ++i) {
+                assert futures.get(i).get(5, TimeUnit.SECONDS) == i : "Unexpected result of task " + i;
+            }
+            long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            
+            assert maxInFlight.get() > 1 : "The single worker should have started more tasks than one at a time.";
+            assert tookMillis < 800 : "The tasks should have run concurrently but the batch took " + tookMillis + "ms.";
+        } finally {
+            io.shutdownNow();
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testAsyncTaskFailureReachesFuture() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            AsyncTask<Object> task = new AsyncTask<Object>() {
+                @Override
+                public void start(AsyncCompletion<? super Object> completion) {
+                    completion.failed(new IllegalStateException());
+                }
+            };
+            
+            Future<Object> f = ex.invokeAllAsyncWithin(Collections.singleton(task), 0, TimeUnit.MILLISECONDS).get(0);
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                assert false : "The future should have failed.";
+            } catch (ExecutionException e) {
+                assert e.getCause() instanceof IllegalStateException : "Unexpected cause of the failure: " + e.getCause();
+            }
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testScheduledTaskHeldBackUntilDue() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            long start = System.nanoTime();
+            ScheduledFuture<String> f = ex.schedule(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return "done";
+                }
+            }, 200, TimeUnit.MILLISECONDS);
+            
+            assert f.getDelay(TimeUnit.MILLISECONDS) > 100 : "The task should be due in about 200ms";
+            assert "done".equals(f.get(5, TimeUnit.SECONDS)) : "Unexpected result of the scheduled task";
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            
+            assert waited >= 150 : "The task should have been held back for about 200ms but was for " + waited + "ms";
+            
+            //the worker shouldn't have been blocked by the scheduled task
+            ScheduledFuture<?> later = ex.schedule(NOOP, 1, TimeUnit.DAYS);
+            ex.submit(NOOP).get(1, TimeUnit.SECONDS);
+            assert later.cancel(false) : "The pending task should have been cancelled";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testScheduledAtFixedRateUntilCancelled() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            final AtomicInteger counter = new AtomicInteger();
+            ScheduledFuture<?> f = ex.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    counter.incrementAndGet();
+                }
+            }, 0, 20, TimeUnit.MILLISECONDS);
+            
+            Thread.sleep(300);
+            
+            assert !f.isDone() : "The periodic task should only be done once cancelled.";
+            assert f.cancel(false) : "The periodic task should have been cancelled.";
+            int count = counter.get();
+            assert count >= 5 && count <= 20 : "The task should have run about 15 times but ran " + count + " times.";
+            
+            Thread.sleep(100);
+            assert counter.get() <= count + 1 : "The task shouldn't be run after it was cancelled.";
+            
+            try {
+                f.get();
+                assert false : "Getting the result of a cancelled task should have failed.";
+            } catch (CancellationException e) {
+                //expected
+            }
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testFailedPeriodicTaskNotRepeated() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            final AtomicInteger counter = new AtomicInteger();
+            ScheduledFuture<?> f = ex.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    if (counter.incrementAndGet() == 3) {
+                        throw new IllegalStateException();
+                    }
+                }
+            }, 0, 10, TimeUnit.MILLISECONDS);
+            
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                assert false : "The periodic task should have failed.";
+            } catch (ExecutionException e) {
+                assert e.getCause() instanceof IllegalStateException : "Unexpected cause of the failure: " + e.getCause();
+            }
+            
+            Thread.sleep(100);
+            assert counter.get() == 3 : "The task shouldn't have been run after it failed but ran " + counter.get() + " times.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testOrderingOfDistantTasks() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            long now = BatchExecutor.now();
+            BatchExecutor.BatchReferringRunnable<Object> first = ex.newTaskFor(NOOP, null, null, null, now);
+            BatchExecutor.BatchReferringRunnable<Object> inSeconds = ex.newTaskFor(NOOP, null, null, null, now + TimeUnit.SECONDS.toNanos(3));
+            BatchExecutor.BatchReferringRunnable<Object> inADay = ex.newTaskFor(NOOP, null, null, null, now + TimeUnit.DAYS.toNanos(1));
+            
+            assert first.compareTo(inSeconds) < 0 && inSeconds.compareTo(first) > 0 : "Tasks 3s apart misordered";
+            assert first.compareTo(inADay) < 0 && inADay.compareTo(first) > 0 : "Tasks a day apart misordered";
+            assert inSeconds.compareTo(inADay) < 0 && inADay.compareTo(inSeconds) > 0 : "Tasks a day apart misordered";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testElasticPoolFollowsLag() throws Exception {
+        BatchExecutor ex = new BatchExecutor(1, 4, 100, TimeUnit.MILLISECONDS);
+        try {
+            ex.setElasticPoolSize(true);
+            
+            //a single worker would need about 800ms
+            for (Future<?> f : ex.executeAllWithin(getRunnables(20, 40), 300, TimeUnit.MILLISECONDS)) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+            
+            assert ex.getLargestPoolSize() > 1 : "The pool should have grown when the batch fell behind.";
+            
+            Thread.sleep(500);
+            assert ex.getPoolSize() == 0 : "The idle workers should have retired but there are " + ex.getPoolSize() + " of them.";
+            
+            for (Future<?> f : ex.executeAllWithin(getRunnables(10, 5), 100, TimeUnit.MILLISECONDS)) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testElasticPoolRestartsCoreWorkers() throws Exception {
+        BatchExecutor ex = new BatchExecutor(4, 4, 100, TimeUnit.MILLISECONDS, true);
+        try {
+            assert ex.isElasticPoolSize() : "The pool should have been created elastic";
+            assert ex.getPoolSize() == 0 : "No workers should have been started up front but there are " + ex.getPoolSize() + " of them.";
+            
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int i = 0; i < 40; ++i) {
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        int current = running.incrementAndGet();
+                        if (current > maxRunning.get()) {
+                            maxRunning.set(current);
+                        }
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                });
+            }
+            
+            //a single worker would need about 800ms
+            BatchHandle handle = ex.submitWithPreferedDuration(tasks, 300, TimeUnit.MILLISECONDS);
+            assert handle.await(5, TimeUnit.SECONDS) : "The batch should have finished.";
+            
+            assert maxRunning.get() > 1 : "The elements should have run in parallel once the batch fell behind.";
+            assert ex.getCorePoolSize() == 4 : "The core pool size should have stayed at the maximum.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
     private void runSimpleDelayTest(int nofThreads) throws Exception {
         final ConcurrentLinkedQueue<Long> executionTimes = new ConcurrentLinkedQueue<Long>();
 
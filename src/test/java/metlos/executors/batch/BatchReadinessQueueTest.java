@@ -0,0 +1,162 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class BatchReadinessQueueTest {
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private BatchExecutor executor;
+
+    @BeforeClass
+    public void createExecutor() {
+        executor = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    public void testReadyBatchNotBlockedByWaitingOne() {
+        BatchRecord waiting = BatchExecutor.createNewBatchRecord(2, TimeUnit.HOURS, 1, 1);
+        BatchRecord ready = BatchExecutor.createNewBatchRecord(2, TimeUnit.HOURS, 2, 0);
+
+        BatchReadinessQueue<BatchReferringRunnable<?>> q = new BatchReadinessQueue<BatchReferringRunnable<?>>();
+
+        //the tasks of the waiting batch have the earlier ideal finish times, so they'd be at the head
+        //of a plain priority queue
+        BatchReferringRunnable<?> w1 = newTask(waiting, 0);
+        BatchReferringRunnable<?> w2 = newTask(waiting, 1);
+        BatchReferringRunnable<?> r1 = newTask(ready, 2);
+        BatchReferringRunnable<?> r2 = newTask(ready, 3);
+
+        q.add(w2);
+        q.add(r2);
+        q.add(w1);
+        q.add(r1);
+
+        assert q.size() == 4 : "All the tasks should be in the queue";
+        assert q.poll() == r1 : "The first task of the ready batch should be handed out first";
+        assert q.poll() == r2 : "The second task of the ready batch should be handed out second";
+
+        assert q.peek() == w1 : "The head of the waiting batch should be returned when no batch is ready";
+
+        q.remove(w1);
+
+        assert q.peek() == w2 : "Removal of the head should expose the next task of the batch";
+    }
+
+    public void testBatchReadySoonerIsPickedUp() {
+        BatchRecord first = BatchExecutor.createNewBatchRecord(1, TimeUnit.HOURS, 1, 1);
+        BatchRecord second = BatchExecutor.createNewBatchRecord(1, TimeUnit.HOURS, 1, 2);
+
+        BatchReadinessQueue<BatchReferringRunnable<?>> q = new BatchReadinessQueue<BatchReferringRunnable<?>>();
+
+        BatchReferringRunnable<?> t1 = newTask(first, 0);
+        BatchReferringRunnable<?> t2 = newTask(second, 1);
+
+        q.add(t1);
+        q.add(t2);
+
+        assert q.peek() == t1 : "The batch that is going to be ready sooner should be at the head";
+
+        second.nextElementStartTime.set(BatchExecutor.now());
+        q.update(second);
+
+        assert q.poll() == t2 : "The batch that became ready should be handed out first";
+        assert q.poll() == t1 : "The waiting batch should be handed out last";
+        assert q.isEmpty() : "The queue should be empty";
+    }
+
+    public void testAddAllKeepsOrder() {
+        BatchRecord first = BatchExecutor.createNewBatchRecord(50, TimeUnit.HOURS, 1, 0);
+        BatchRecord second = BatchExecutor.createNewBatchRecord(50, TimeUnit.HOURS, 1, 0);
+
+        BatchReadinessQueue<BatchReferringRunnable<?>> q = new BatchReadinessQueue<BatchReferringRunnable<?>>();
+
+        //one task of the first batch is already in the queue
+        q.add(newTask(first, 100));
+
+        List<BatchReferringRunnable<?>> tasks = new ArrayList<BatchReferringRunnable<?>>();
+        for (int i = 99; i >= 0; --i) {
+            tasks.add(newTask(i % 2 == 0 ? first : second, i));
+        }
+
+        assert q.addAll(tasks) : "The queue should have been modified";
+        assert q.size() == 101 : "All the tasks should be in the queue";
+
+        for (int i = 0; i <= 100; ++i) {
+            BatchReferringRunnable<?> t = q.poll();
+            assert t.getIdealFinishTimeNanos() == i : "Unexpected task at position " + i + ": " + t.getIdealFinishTimeNanos();
+        }
+
+        assert q.isEmpty() : "The queue should be empty";
+    }
+
+    public void testReadyBatchesShareByWeight() {
+        BatchRecord heavy = BatchExecutor.createNewBatchRecord(100, TimeUnit.HOURS, 1, 0);
+        BatchRecord light = BatchExecutor.createNewBatchRecord(100, TimeUnit.HOURS, 1, 0);
+        heavy.shareWeight = 3;
+
+        BatchReadinessQueue<BatchReferringRunnable<?>> q = new BatchReadinessQueue<BatchReferringRunnable<?>>();
+
+        //the light batch has all the earlier ideal finish times, so it'd crowd out the heavy one if the batches
+        //were only ordered by those
+        for (int i = 0; i < 100; ++i) {
+            q.add(newTask(light, i));
+            q.add(newTask(heavy, 1000 + i));
+        }
+
+        int nofHeavy = 0;
+        for (int i = 0; i < 40; ++i) {
+            if (q.poll().getBatchRecord() == heavy) {
+                ++nofHeavy;
+            }
+        }
+
+        assert nofHeavy >= 28 && nofHeavy <= 32 : "The heavy batch should have gotten 3/4 of the 40 tasks but got " + nofHeavy;
+    }
+
+    private BatchReferringRunnable<?> newTask(BatchRecord batchRecord, long idealFinishTime) {
+        return executor.newTaskFor(NOOP, null, batchRecord, null, idealFinishTime);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class ConcurrentTaskQueueTest {
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    public void testTasksHeldBackUntilBatchReady() throws Exception {
+        BatchExecutor ex = getExecutor(1);
+        try {
+            ConcurrentTaskQueue<BatchReferringRunnable<?>> q = new ConcurrentTaskQueue<BatchReferringRunnable<?>>();
+
+            BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(1, TimeUnit.MILLISECONDS, 0, 200);
+            BatchReferringRunnable<?> task = ex.newTaskFor(NOOP, null, batchRecord, null, BatchExecutor.now());
+
+            q.offer(task);
+
+            assert q.size() == 1 : "The task should be in the queue";
+            assert q.poll() == null : "The task shouldn't be ready yet";
+
+            long start = System.nanoTime();
+            assert q.poll(5, TimeUnit.SECONDS) == task : "The task should have been handed out once ready";
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assert waited >= 150 : "The task should have been held back for about 200ms but was for " + waited + "ms";
+            assert q.isEmpty() : "The queue should be empty";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+
+    public void testExecutorRunsAllTasks() throws Exception {
+        BatchExecutor ex = getExecutor(5);
+        try {
+            final AtomicInteger counter = new AtomicInteger();
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 100; ++i) {
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return counter.incrementAndGet();
+                    }
+                });
+            }
+
+            for (Future<Integer> f : ex.invokeAllWithin(tasks, 200, TimeUnit.MILLISECONDS)) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+
+            assert counter.get() == 100 : "All the tasks should have run but only " + counter.get() + " did.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+
+    private static BatchExecutor getExecutor(int nofThreads) {
+        return new BatchExecutor(nofThreads, nofThreads, 0, TimeUnit.SECONDS, Executors.defaultThreadFactory(),
+            BatchExecutor.DEFAULT_REJECTED_EXECUTION_HANDLER, new ConcurrentTaskQueue<BatchReferringRunnable<?>>()) {
+        };
+    }
+}
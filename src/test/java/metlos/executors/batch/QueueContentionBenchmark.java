@@ -0,0 +1,185 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+import metlos.executors.batch.BatchExecutor.TaskQueue;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the throughput of the different task queue implementations under contention
+ * of many producers and consumers.
+ *
+ * @author Lukas Krejci
+ */
+public class QueueContentionBenchmark {
+
+    private static final int NOF_PRODUCERS = Integer.parseInt(System.getProperty("nof-producers", "8"));
+    private static final int NOF_CONSUMERS = Integer.parseInt(System.getProperty("nof-consumers", "32"));
+    private static final int TASKS_PER_PRODUCER = Integer.parseInt(System.getProperty("tasks-per-producer",
+        "100000"));
+    private static final int RUNS_PER_BENCHMARK = Integer.parseInt(System.getProperty("runs-per-benchmark", "5"));
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private interface QueueFactory {
+        BlockingQueue<BatchReferringRunnable<?>> createQueue();
+    }
+
+    private BatchExecutor executor;
+
+    @BeforeClass
+    public void createExecutor() {
+        executor = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void benchmarkTaskQueue_priorityQueue() throws Exception {
+        run("TaskQueue backed by a PriorityQueue", new QueueFactory() {
+            @Override
+            public BlockingQueue<BatchReferringRunnable<?>> createQueue() {
+                return new TaskQueue<BatchReferringRunnable<?>>(new PriorityQueue<BatchReferringRunnable<?>>());
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkTaskQueue_batchReadinessQueue() throws Exception {
+        run("TaskQueue backed by a BatchReadinessQueue", new QueueFactory() {
+            @Override
+            public BlockingQueue<BatchReferringRunnable<?>> createQueue() {
+                return new TaskQueue<BatchReferringRunnable<?>>();
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkConcurrentTaskQueue() throws Exception {
+        run("ConcurrentTaskQueue", new QueueFactory() {
+            @Override
+            public BlockingQueue<BatchReferringRunnable<?>> createQueue() {
+                return new ConcurrentTaskQueue<BatchReferringRunnable<?>>();
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkWorkStealingTaskQueue() throws Exception {
+        run("WorkStealingTaskQueue", new QueueFactory() {
+            @Override
+            public BlockingQueue<BatchReferringRunnable<?>> createQueue() {
+                return new WorkStealingTaskQueue<BatchReferringRunnable<?>>();
+            }
+        });
+    }
+
+    private void run(String name, QueueFactory factory) throws InterruptedException {
+        long totalMillis = 0;
+        for (int i = 0; i < RUNS_PER_BENCHMARK; ++i) {
+            totalMillis += runOnce(factory.createQueue());
+        }
+
+        long tasks = (long) NOF_PRODUCERS * TASKS_PER_PRODUCER * RUNS_PER_BENCHMARK;
+        System.out.println(String.format("%s: %d producers, %d consumers, %d tasks, %dms, %.0f tasks/s", name,
+            NOF_PRODUCERS, NOF_CONSUMERS, tasks, totalMillis, tasks * 1000.0 / totalMillis));
+    }
+
+    private long runOnce(final BlockingQueue<BatchReferringRunnable<?>> queue) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch consumed = new CountDownLatch(NOF_PRODUCERS * TASKS_PER_PRODUCER);
+
+        //a single batch that is ready all the time, so that the readiness checks are exercised
+        final BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(NOF_PRODUCERS * TASKS_PER_PRODUCER,
+            TimeUnit.NANOSECONDS, 0, 0);
+
+        Thread[] producers = new Thread[NOF_PRODUCERS];
+        for (int i = 0; i < NOF_PRODUCERS; ++i) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    BatchReferringRunnable<?>[] tasks = new BatchReferringRunnable<?>[TASKS_PER_PRODUCER];
+                    for (int t = 0; t < TASKS_PER_PRODUCER; ++t) {
+                        tasks[t] = executor.newTaskFor(NOOP, null, batchRecord, null, BatchExecutor.now());
+                    }
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (BatchReferringRunnable<?> t : tasks) {
+                        queue.offer(t);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        Thread[] consumers = new Thread[NOF_CONSUMERS];
+        for (int i = 0; i < NOF_CONSUMERS; ++i) {
+            consumers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (true) {
+                            queue.take();
+                            //ThreadPoolExecutor queries the queue like this, too
+                            queue.isEmpty();
+                            consumed.countDown();
+                        }
+                    } catch (InterruptedException e) {
+                        //we're done
+                    }
+                }
+            });
+            consumers[i].setDaemon(true);
+            consumers[i].start();
+        }
+
+        long startTime = System.currentTimeMillis();
+        start.countDown();
+        consumed.await();
+        long duration = System.currentTimeMillis() - startTime;
+
+        for (Thread t : consumers) {
+            t.interrupt();
+        }
+
+        return duration;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class SimulatedBatchExecutorTest {
+
+    public void testBatchSpreadOverSimulatedHour() throws Exception {
+        SimulatedBatchExecutor ex = new SimulatedBatchExecutor(1);
+        try {
+            List<AsyncTask<Void>> tasks = new ArrayList<AsyncTask<Void>>();
+            for (int i = 0; i < 3600; ++i) {
+                tasks.add(ex.newTask(100, TimeUnit.MILLISECONDS));
+            }
+            
+            List<Future<Void>> futures = ex.invokeAllAsyncWithin(tasks, 1, TimeUnit.HOURS);
+            
+            ex.advance(30, TimeUnit.MINUTES);
+            int done = countDone(futures);
+            assert done > 1500 && done < 2100 : "About half of the tasks should have finished after half an hour but " + done + " did.";
+            
+            ex.advance(35, TimeUnit.MINUTES);
+            done = countDone(futures);
+            assert done == futures.size() : "All the tasks should have finished after an hour but only " + done + " did.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testVirtualWorkersLimitConcurrency() throws Exception {
+        SimulatedBatchExecutor ex = new SimulatedBatchExecutor(4);
+        try {
+            List<AsyncTask<Void>> tasks = new ArrayList<AsyncTask<Void>>();
+            for (int i = 0; i < 100; ++i) {
+                tasks.add(ex.newTask(1, TimeUnit.SECONDS));
+            }
+            
+            List<Future<Void>> futures = ex.invokeAllAsyncWithin(tasks, 0, TimeUnit.SECONDS);
+            
+            ex.advance(10, TimeUnit.SECONDS);
+            assert ex.getNofBusyWorkers() == 4 : "All the workers should be busy but " + ex.getNofBusyWorkers() + " are.";
+            
+            ex.advance(14, TimeUnit.SECONDS);
+            assert countDone(futures) < futures.size() : "The tasks can't have finished before 25s.";
+            
+            ex.advance(2, TimeUnit.SECONDS);
+            assert countDone(futures) == futures.size() : "The tasks should have finished in 25s.";
+            assert ex.getElapsedTime(TimeUnit.SECONDS) == 26 : "Unexpected virtual time " + ex.getElapsedTime(TimeUnit.SECONDS);
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testDayLongBatchOfMillionElements() throws Exception {
+        final SimulatedBatchExecutor ex = new SimulatedBatchExecutor(1);
+        try {
+            ex.setPacingGranularity(1, TimeUnit.MINUTES);
+            
+            final int nofElements = 1000000;
+            final AtomicInteger wakeUps = new AtomicInteger();
+            final Runnable element = new Runnable() {
+                private long lastRun = -1;
+                
+                @Override
+                public void run() {
+                    long now = ex.getElapsedTime(TimeUnit.NANOSECONDS);
+                    if (now != lastRun) {
+                        wakeUps.incrementAndGet();
+                        lastRun = now;
+                    }
+                }
+            };
+            
+            //the elements are only created as they're pulled, so the batch takes a constant amount of memory
+            Iterator<Runnable> elements = new Iterator<Runnable>() {
+                private int pulled;
+                
+                @Override
+                public boolean hasNext() {
+                    return pulled < nofElements;
+                }
+                
+                @Override
+                public Runnable next() {
+                    ++pulled;
+                    return element;
+                }
+                
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            
+            BatchHandle batch = ex.submitWithPreferedDuration(elements, nofElements, 24, TimeUnit.HOURS);
+            
+            ex.advance(12, TimeUnit.HOURS);
+            int finished = batch.getNofFinishedElements();
+            assert finished > nofElements * 0.4 && finished < nofElements * 0.6 : "About half of the elements should have finished after 12 hours but " + finished + " did.";
+            
+            ex.advance(12, TimeUnit.HOURS);
+            ex.advance(10, TimeUnit.MINUTES);
+            assert batch.isDone() : "The batch should have finished in a day but only " + batch.getNofFinishedElements() + " elements did.";
+            assert wakeUps.get() < 2 * 24 * 60 : "The batch should have run in bursts about once a minute but woke up " + wakeUps.get() + " times.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    public void testSimulationDoesNotAffectOtherExecutors() throws Exception {
+        SimulatedBatchExecutor sim = new SimulatedBatchExecutor(1);
+        BatchExecutor ex = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+        try {
+            sim.advance(1, TimeUnit.HOURS);
+            
+            assert ex.getClock() == BatchExecutor.SYSTEM_CLOCK : "The executor should keep the system clock.";
+            
+            List<Runnable> tasks = new ArrayList<Runnable>();
+            for (int i = 0; i < 5; ++i) {
+                tasks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+            }
+            
+            //the pacing of the batch would stall if it used the virtual time of the simulation
+            for (Future<?> f : ex.executeAllWithin(tasks, 100, TimeUnit.MILLISECONDS)) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+            
+            assert sim.getElapsedTime(TimeUnit.HOURS) == 1 : "The virtual time should only move with the simulation.";
+        } finally {
+            ex.shutdownNow();
+            sim.shutdownNow();
+        }
+    }
+    
+    public void testTerminatesWithoutWorkers() throws Exception {
+        SimulatedBatchExecutor ex = new SimulatedBatchExecutor(2);
+        try {
+            List<AsyncTask<Void>> tasks = new ArrayList<AsyncTask<Void>>();
+            for (int i = 0; i < 10; ++i) {
+                tasks.add(ex.newTask(1, TimeUnit.SECONDS));
+            }
+            List<Future<Void>> futures = ex.invokeAllAsyncWithin(tasks, 10, TimeUnit.SECONDS);
+            
+            final AtomicInteger ran = new AtomicInteger();
+            List<Runnable> elements = new ArrayList<Runnable>();
+            for (int i = 0; i < 10; ++i) {
+                elements.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.incrementAndGet();
+                    }
+                });
+            }
+            BatchHandle batch = ex.submitWithPreferedDuration(elements, 10, TimeUnit.SECONDS);
+            
+            assert ex.getPoolSize() == 0 : "No worker should have been started but there are " + ex.getPoolSize() + ".";
+            
+            ex.advance(1, TimeUnit.MINUTES);
+            assert countDone(futures) == futures.size() : "All the tasks should have finished.";
+            assert batch.isDone() && ran.get() == elements.size() : "All the elements should have run.";
+            
+            ex.shutdown();
+            assert ex.awaitTermination(1, TimeUnit.SECONDS) : "The executor should have terminated.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+    
+    private static int countDone(List<? extends Future<?>> futures) {
+        int ret = 0;
+        for (Future<?> f : futures) {
+            if (f.isDone()) {
+                ++ret;
+            }
+        }
+        
+        return ret;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+import metlos.executors.batch.BatchExecutor.CompactBatchRunnable;
+import metlos.executors.batch.BatchExecutor.TaskQueue;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class TaskCostModelTest {
+
+    private static class Task implements Runnable, TaskCostModel.KeyedTask {
+        private final String key;
+
+        Task(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getTaskKey() {
+            return key;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    public void testEstimatesUpdatedOnlyWithNewRound() {
+        TaskCostModel model = new TaskCostModel(null, 0.5, 10);
+        Task a = new Task("a");
+        Task b = new Task("b");
+
+        assert model.getWeight(a) == 1 : "The declared weight should be used when nothing is known";
+
+        model.record(a, 100);
+        model.record(b, 300);
+
+        assert Double.isNaN(model.getEstimatedDuration(a)) : "The measurements shouldn't be used before the next round";
+
+        model.startRound();
+
+        assert model.getEstimatedDuration(a) == 100 : "Unexpected estimate: " + model.getEstimatedDuration(a);
+        assert model.getWeight(b) == 300 : "Unexpected weight: " + model.getWeight(b);
+        assert model.getWeight(new Task("c")) == 200 : "An unknown task should get the average weight";
+
+        model.record(a, 200);
+        model.startRound();
+
+        assert model.getEstimatedDuration(a) == 150 : "Unexpected estimate: " + model.getEstimatedDuration(a);
+    }
+
+    public void testIdleTasksDiscarded() {
+        TaskCostModel model = new TaskCostModel(null, 0.5, 2);
+        Task a = new Task("a");
+        Task b = new Task("b");
+
+        model.record(a, 100);
+        model.record(b, 100);
+        model.startRound();
+
+        for (int i = 0; i < 3; ++i) {
+            model.record(a, 100);
+            model.startRound();
+        }
+
+        assert model.size() == 1 : "The idle task should have been discarded";
+        assert !Double.isNaN(model.getEstimatedDuration(a)) : "The active task should have been kept";
+    }
+
+    public void testPersistence() throws Exception {
+        File file = File.createTempFile("task-cost-model", ".bin");
+        file.delete();
+        try {
+            TaskCostModel model = new TaskCostModel(file);
+            for (int i = 0; i < 100; ++i) {
+                model.record(new Task("task-" + i), i * 1000);
+            }
+            model.startRound();
+
+            assert file.exists() : "The model should have been saved";
+
+            TaskCostModel loaded = new TaskCostModel(file);
+            assert loaded.size() == 100 : "All the estimates should have been loaded";
+            for (int i = 0; i < 100; ++i) {
+                Task t = new Task("task-" + i);
+                assert loaded.getEstimatedDuration(t) == model.getEstimatedDuration(t) : "Unexpected estimate for task "
+                    + i;
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testRepeatedBatchFeedsModel() throws Exception {
+        final CountDownLatch secondRoundStarted = new CountDownLatch(1);
+        final int nofTasks = 10;
+
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < nofTasks; ++i) {
+            tasks.add(new Task("task-" + i));
+        }
+
+        TaskCostModel model = new TaskCostModel() {
+            private int rounds;
+
+            @Override
+            public synchronized void startRound() {
+                super.startRound();
+                if (++rounds == 2) {
+                    secondRoundStarted.countDown();
+                }
+            }
+        };
+
+        BatchExecutor ex = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+        try {
+            ex.submitWithPreferedDurationAndFixedDelay(tasks, 0, 100, 10, TimeUnit.MILLISECONDS,
+                ex.getPacingStrategy(), model);
+
+            assert secondRoundStarted.await(5, TimeUnit.SECONDS) : "The batch should have been repeated";
+            assert model.size() == nofTasks : "All the tasks should have been measured";
+            for (Runnable t : tasks) {
+                assert !Double.isNaN(model.getEstimatedDuration(t)) : "The task " + t + " should have an estimate";
+            }
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+
+    public void testLearnedCostsDriveIdealFinishTimesOfCompactBatch() throws Exception {
+        TaskCostModel model = new TaskCostModel(null, 0.5, 10);
+        Task a = new Task("a");
+        Task b = new Task("b");
+        model.record(a, 100);
+        model.record(b, 300);
+        model.startRound();
+
+        Runnable[] elements = new Runnable[] { a, b, a };
+        BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(3, TimeUnit.NANOSECONDS, 1000, 0);
+        batchRecord.costModel = model;
+        batchRecord.initWeights(elements);
+
+        BatchExecutor ex = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+        try {
+            long start = batchRecord.startTimeNanos;
+            CompactBatchRunnable task = ex.new CompactBatchRunnable(elements, batchRecord, null, start, 1000 / 3);
+
+            TaskQueue<BatchReferringRunnable<?>> q = new TaskQueue<BatchReferringRunnable<?>>();
+            q.offer(task);
+
+            assert q.poll() == task : "The first element should have been handed out";
+            assert task.getIdealFinishTimeNanos() == start + 200 : "The second element should follow the cheap first one closely but its ideal finish time is "
+                + (task.getIdealFinishTimeNanos() - start) + "ns after the start.";
+
+            assert q.poll() == task : "The second element should have been handed out";
+            assert task.getIdealFinishTimeNanos() == start + 800 : "The third element should follow the expensive second one late but its ideal finish time is "
+                + (task.getIdealFinishTimeNanos() - start) + "ns after the start.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+}
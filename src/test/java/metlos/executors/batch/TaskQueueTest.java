@@ -0,0 +1,105 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+import metlos.executors.batch.BatchExecutor.TaskQueue;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class TaskQueueTest {
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private BatchExecutor executor;
+
+    @BeforeClass
+    public void createExecutor() {
+        executor = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    public void testTimedPollHoldsBackTasks() throws Exception {
+        TaskQueue<BatchReferringRunnable<?>> q = new TaskQueue<BatchReferringRunnable<?>>();
+
+        BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(1, TimeUnit.MILLISECONDS, 0, 200);
+        BatchReferringRunnable<?> task = executor.newTaskFor(NOOP, null, batchRecord, null, BatchExecutor.now());
+        q.offer(task);
+
+        assert q.poll(10, TimeUnit.MILLISECONDS) == null : "The task shouldn't be ready yet";
+        assert q.poll(5, TimeUnit.SECONDS) == task : "The task should have been handed out once ready";
+    }
+
+    public void testAllWaitingThreadsGetTasks() throws Exception {
+        final TaskQueue<BatchReferringRunnable<?>> q = new TaskQueue<BatchReferringRunnable<?>>();
+        int nofThreads = 10;
+
+        BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(nofThreads, TimeUnit.MILLISECONDS, 0, 100);
+        for (int i = 0; i < nofThreads; ++i) {
+            q.offer(executor.newTaskFor(NOOP, null, batchRecord, null, BatchExecutor.now() + i));
+        }
+
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(nofThreads);
+        for (int i = 0; i < nofThreads; ++i) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (q.take() != null) {
+                            taken.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        //ignore
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        assert done.await(5, TimeUnit.SECONDS) : "All the threads should have gotten a task.";
+        assert taken.get() == nofThreads : "Each thread should have taken a task.";
+        assert q.isEmpty() : "The queue should be empty";
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class TimingWheelQueueTest {
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private BatchExecutor executor;
+
+    @BeforeClass
+    public void createExecutor() {
+        executor = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    public void testElementsReturnedInTickOrder() {
+        long tick = TimeUnit.MILLISECONDS.toNanos(1);
+        TimingWheelQueue<BatchReferringRunnable<?>> q = new TimingWheelQueue<BatchReferringRunnable<?>>(1,
+            TimeUnit.MILLISECONDS);
+
+        Random rnd = new Random(42);
+        long now = BatchExecutor.now();
+
+        //spread the tasks so that all the levels and the overflow get used
+        long[] spans = { 100, 50000, 10000000, 3000000000L, 100000000000L };
+        int nofTasks = 0;
+        for (long span : spans) {
+            for (int i = 0; i < 200; ++i) {
+                q.add(newTask(now + (long) (rnd.nextDouble() * span * tick)));
+                ++nofTasks;
+            }
+        }
+
+        assert q.size() == nofTasks : "All the tasks should be in the queue";
+
+        long previousTick = Long.MIN_VALUE;
+        int polled = 0;
+        BatchReferringRunnable<?> t;
+        while ((t = q.poll()) != null) {
+            long thisTick = t.getIdealFinishTimeNanos() / tick;
+            assert thisTick >= previousTick : "Tasks returned out of order: " + thisTick + " after " + previousTick;
+            previousTick = thisTick;
+            ++polled;
+        }
+
+        assert polled == nofTasks : "All the tasks should have been returned but only " + polled + " were.";
+        assert q.isEmpty() : "The queue should be empty";
+    }
+
+    public void testLateElementsReturnedFirst() {
+        TimingWheelQueue<BatchReferringRunnable<?>> q = new TimingWheelQueue<BatchReferringRunnable<?>>();
+
+        long now = BatchExecutor.now();
+        BatchReferringRunnable<?> future = newTask(now + TimeUnit.SECONDS.toNanos(10));
+        BatchReferringRunnable<?> late = newTask(now - TimeUnit.SECONDS.toNanos(10));
+
+        q.add(future);
+        q.add(late);
+
+        assert q.poll() == late : "The late task should be returned first";
+        assert q.poll() == future : "The future task should be returned last";
+    }
+
+    public void testRemoval() {
+        TimingWheelQueue<BatchReferringRunnable<?>> q = new TimingWheelQueue<BatchReferringRunnable<?>>();
+
+        long now = BatchExecutor.now();
+        List<BatchReferringRunnable<?>> tasks = new ArrayList<BatchReferringRunnable<?>>();
+        for (int i = 0; i < 10; ++i) {
+            BatchReferringRunnable<?> t = newTask(now + TimeUnit.MINUTES.toNanos(i * 10));
+            tasks.add(t);
+            q.add(t);
+        }
+
+        assert q.remove(tasks.get(5)) : "The task should have been removed";
+        assert !q.contains(tasks.get(5)) : "The removed task should no longer be in the queue";
+        assert q.size() == 9 : "The queue should contain 9 tasks";
+
+        for (int i = 0; i < 10; ++i) {
+            if (i != 5) {
+                assert q.poll() == tasks.get(i) : "Unexpected task at position " + i;
+            }
+        }
+    }
+
+    private BatchReferringRunnable<?> newTask(long idealFinishTime) {
+        return executor.newTaskFor(NOOP, null, null, null, idealFinishTime);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+
+package metlos.executors.batch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import metlos.executors.batch.BatchExecutor.BatchRecord;
+import metlos.executors.batch.BatchExecutor.BatchReferringRunnable;
+import metlos.executors.batch.BatchExecutor.CompactBatchRunnable;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class WorkStealingTaskQueueTest {
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private BatchExecutor executor;
+
+    @BeforeClass
+    public void createExecutor() {
+        executor = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    public void testIdleWorkerStealsTransferredTasks() throws Exception {
+        final WorkStealingTaskQueue<BatchReferringRunnable<?>> q = new WorkStealingTaskQueue<BatchReferringRunnable<?>>();
+
+        BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(5, TimeUnit.MILLISECONDS, 0, 0);
+        List<BatchReferringRunnable<?>> tasks = new ArrayList<BatchReferringRunnable<?>>();
+        for (int i = 0; i < 5; ++i) {
+            BatchReferringRunnable<?> task = executor.newTaskFor(NOOP, null, batchRecord, null, i);
+            tasks.add(task);
+            q.offer(task);
+        }
+
+        assert q.poll() == tasks.get(0) : "The first task should have been handed out first";
+        assert q.size() == 4 : "The rest of the tasks should still be in the queue";
+
+        final AtomicReference<BatchReferringRunnable<?>> stolen = new AtomicReference<BatchReferringRunnable<?>>();
+        Thread thief = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stolen.set(q.poll());
+            }
+        });
+        thief.start();
+        thief.join(5000);
+
+        assert stolen.get() == tasks.get(4) : "The other worker should have stolen the last transferred task";
+        assert q.poll() == tasks.get(1) : "The owner should continue with the next task of its deque";
+    }
+
+    public void testTasksOfPausedBatchReturnedToTimekeeper() throws Exception {
+        WorkStealingTaskQueue<BatchReferringRunnable<?>> q = new WorkStealingTaskQueue<BatchReferringRunnable<?>>();
+
+        BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(3, TimeUnit.MILLISECONDS, 0, 0);
+        for (int i = 0; i < 3; ++i) {
+            q.offer(executor.newTaskFor(NOOP, null, batchRecord, null, i));
+        }
+
+        assert q.poll() != null : "The first task should have been handed out";
+
+        batchRecord.paused = true;
+
+        assert q.poll() == null : "No task of a paused batch should be handed out";
+        assert q.size() == 2 : "The tasks of the paused batch should have stayed in the queue";
+
+        batchRecord.paused = false;
+        q.batchReadinessChanged(batchRecord);
+
+        assert q.poll() != null && q.poll() != null : "The tasks should be handed out once the batch is resumed";
+        assert q.isEmpty() : "The queue should be empty";
+    }
+
+    public void testExecutorRunsAllTasks() throws Exception {
+        BatchExecutor ex = new BatchExecutor(4, 4, 0, TimeUnit.SECONDS, Executors.defaultThreadFactory(),
+            BatchExecutor.DEFAULT_REJECTED_EXECUTION_HANDLER, new WorkStealingTaskQueue<BatchReferringRunnable<?>>()) {
+        };
+        try {
+            final AtomicInteger counter = new AtomicInteger();
+            List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 200; ++i) {
+                tasks.add(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return counter.incrementAndGet();
+                    }
+                });
+            }
+
+            for (Future<Integer> f : ex.invokeAllWithin(tasks, 200, TimeUnit.MILLISECONDS)) {
+                f.get(5, TimeUnit.SECONDS);
+            }
+
+            assert counter.get() == 200 : "All the tasks should have run but only " + counter.get() + " did.";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+
+    public void testElementsOfCompactTaskTransferred() throws Exception {
+        final WorkStealingTaskQueue<BatchReferringRunnable<?>> q = new WorkStealingTaskQueue<BatchReferringRunnable<?>>();
+
+        BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(5, TimeUnit.MILLISECONDS, 0, 0);
+        CompactBatchRunnable task = executor.new CompactBatchRunnable(new Runnable[] { NOOP, NOOP, NOOP, NOOP, NOOP },
+            batchRecord, null, 0, 1);
+        q.offer(task);
+
+        assert q.poll() == task : "The compact task should have been handed out";
+        assert q.size() == 4 : "The rest of the elements should have been moved to the deque";
+
+        final AtomicReference<BatchReferringRunnable<?>> stolen = new AtomicReference<BatchReferringRunnable<?>>();
+        Thread thief = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stolen.set(q.poll());
+            }
+        });
+        thief.start();
+        thief.join(5000);
+
+        assert stolen.get() == task : "The other worker should have stolen an element of the compact task";
+
+        for (int i = 0; i < 3; ++i) {
+            assert q.poll() == task : "The element " + i + " should have been handed out from the deque";
+        }
+        assert q.poll() == null : "All the elements should have been handed out";
+        assert q.isEmpty() : "The queue should be empty";
+    }
+
+    public void testElementsOfCompactTaskOfPausedBatchReturnedToTimekeeper() throws Exception {
+        WorkStealingTaskQueue<BatchReferringRunnable<?>> q = new WorkStealingTaskQueue<BatchReferringRunnable<?>>();
+
+        BatchRecord batchRecord = BatchExecutor.createNewBatchRecord(5, TimeUnit.MILLISECONDS, 0, 0);
+        CompactBatchRunnable task = executor.new CompactBatchRunnable(new Runnable[] { NOOP, NOOP, NOOP, NOOP, NOOP },
+            batchRecord, null, 0, 1);
+        q.offer(task);
+
+        assert q.poll() == task : "The compact task should have been handed out";
+
+        batchRecord.paused = true;
+
+        assert q.poll() == null : "No element of a paused batch should be handed out";
+        assert q.size() == 1 : "The compact task should have been returned to the queue once";
+
+        batchRecord.paused = false;
+        q.batchReadinessChanged(batchRecord);
+
+        for (int i = 0; i < 4; ++i) {
+            assert q.poll() == task : "The element " + i + " should have been handed out after the batch resumed";
+        }
+        assert q.poll() == null : "No element should have been handed out twice";
+        assert q.isEmpty() : "The queue should be empty";
+    }
+
+    public void testExecutorTransfersElementsOfCompactBatches() throws Exception {
+        final AtomicInteger transferred = new AtomicInteger();
+        WorkStealingTaskQueue<BatchReferringRunnable<?>> q = new WorkStealingTaskQueue<BatchReferringRunnable<?>>() {
+            @Override
+            protected int drainReady(BatchRecord batchRecord, Collection<? super BatchReferringRunnable<?>> c,
+                int maxElements) {
+                int n = super.drainReady(batchRecord, c, maxElements);
+                transferred.addAndGet(n);
+                return n;
+            }
+        };
+
+        BatchExecutor ex = new BatchExecutor(1, 1, 0, TimeUnit.SECONDS, Executors.defaultThreadFactory(),
+            BatchExecutor.DEFAULT_REJECTED_EXECUTION_HANDLER, q) {
+        };
+        try {
+            final AtomicIntegerArray runs = new AtomicIntegerArray(100);
+            List<Runnable> elements = new ArrayList<Runnable>();
+            for (int i = 0; i < runs.length(); ++i) {
+                final int idx = i;
+                elements.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        runs.incrementAndGet(idx);
+                    }
+                });
+            }
+
+            BatchHandle handle = ex.submitWithPreferedDuration(elements, 0, TimeUnit.MILLISECONDS);
+            assert handle.await(5, TimeUnit.SECONDS) : "The batch should be done";
+
+            for (int i = 0; i < runs.length(); ++i) {
+                assert runs.get(i) == 1 : "The element " + i + " should have run exactly once but ran " + runs.get(i)
+                    + " times.";
+            }
+            assert transferred.get() > 0 : "The elements of the compact batch should have been moved to the deque";
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * RHQ Management Platform
+ * Copyright (C) 2005-2012 Red Hat, Inc.
+ * All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package metlos.executors.batch.pacing;
+
+import org.testng.annotations.Test;
+
+/**
+ *
+ *
+ * @author Lukas Krejci
+ */
+@Test
+public class PacingStrategyTest {
+
+    private static final long MS = 1000000;
+
+    private static class Progress implements BatchProgress {
+        int nofElements;
+        int finished;
+        double totalWeight;
+        double finishedWeight;
+        long cumulativeExecutionTime;
+        long startTime;
+        long finishTime;
+
+        Progress(int nofElements, long startTime, long finishTime) {
+            this.nofElements = nofElements;
+            this.totalWeight = nofElements;
+            this.startTime = startTime;
+            this.finishTime = finishTime;
+        }
+
+        long finish(Pacer pacer, long duration, long now) {
+            return finish(pacer, duration, 1, now);
+        }
+
+        long finish(Pacer pacer, long duration, double weight, long now) {
+            ++finished;
+            finishedWeight += weight;
+            cumulativeExecutionTime += duration;
+            return pacer.getNextStartTime(this, duration, weight, 1, now);
+        }
+
+        void unfinish(long duration) {
+            --finished;
+            finishedWeight -= 1;
+            cumulativeExecutionTime -= duration;
+        }
+
+        @Override
+        public int getNofElements() {
+            return nofElements;
+        }
+
+        @Override
+        public int getNofFinishedElements() {
+            return finished;
+        }
+
+        @Override
+        public double getTotalWeight() {
+            return totalWeight;
+        }
+
+        @Override
+        public double getFinishedWeight() {
+            return finishedWeight;
+        }
+
+        @Override
+        public long getCumulativeExecutionTime() {
+            return cumulativeExecutionTime;
+        }
+
+        @Override
+        public long getStartTime() {
+            return startTime;
+        }
+
+        @Override
+        public long getFinishTime() {
+            return finishTime;
+        }
+    }
+
+    public void testAverageSpreadsRemainingTimeEvenly() {
+        Pacer pacer = AveragePacingStrategy.INSTANCE.newPacer();
+        Progress progress = new Progress(11, 0, 1000 * MS);
+
+        long next = progress.finish(pacer, 10 * MS, 100 * MS);
+
+        //900ms for the remaining 10 elements, each taking 10ms
+        assert next == 180 * MS : "Unexpected next start time: " + next;
+    }
+
+    public void testNothingLeftToPace() {
+        Pacer pacer = AveragePacingStrategy.INSTANCE.newPacer();
+        Progress progress = new Progress(1, 0, 1000 * MS);
+
+        long next = progress.finish(pacer, 10 * MS, 100 * MS);
+
+        assert next == 100 * MS : "The batch is finished, so nothing should be held back: " + next;
+    }
+
+    public void testWeightsUsedForEstimates() {
+        Pacer pacer = AveragePacingStrategy.INSTANCE.newPacer();
+
+        //one heavy element taking 100ms and 10 light ones, each expected to take 1ms
+        Progress progress = new Progress(11, 0, 1000 * MS);
+        progress.totalWeight = 110;
+
+        long next = progress.finish(pacer, 100 * MS, 100, 100 * MS);
+
+        //900ms for the remaining 10 elements, each taking 1ms
+        assert next == 189 * MS : "Unexpected next start time: " + next;
+    }
+
+    public void testEwmaFollowsRecentExecutionTimes() {
+        Pacer average = AveragePacingStrategy.INSTANCE.newPacer();
+        Pacer ewma = new EwmaPacingStrategy(0.5).newPacer();
+
+        Progress averageProgress = new Progress(100, 0, 10000 * MS);
+        Progress ewmaProgress = new Progress(100, 0, 10000 * MS);
+
+        long now = 0;
+        long averageNext = 0;
+        long ewmaNext = 0;
+        for (int i = 0; i < 20; ++i) {
+            long duration = i < 15 ? MS : 50 * MS;
+            now += duration;
+            averageNext = averageProgress.finish(average, duration, now);
+            ewmaNext = ewmaProgress.finish(ewma, duration, now);
+        }
+
+        //the elements recently got slower, so the ewma should leave a smaller gap
+        assert ewmaNext < averageNext : "EWMA should have reacted to the slower elements: " + ewmaNext + " >= "
+            + averageNext;
+    }
+
+    public void testPercentileIgnoresOutliers() {
+        Pacer average = AveragePacingStrategy.INSTANCE.newPacer();
+        Pacer median = new PercentilePacingStrategy().newPacer();
+
+        Progress averageProgress = new Progress(100, 0, 10000 * MS);
+        Progress medianProgress = new Progress(100, 0, 10000 * MS);
+
+        long now = 0;
+        long averageNext = 0;
+        long medianNext = 0;
+        for (int i = 0; i < 20; ++i) {
+            long duration = i == 10 ? 2000 * MS : MS;
+            now += duration;
+            averageNext = averageProgress.finish(average, duration, now);
+            medianNext = medianProgress.finish(median, duration, now);
+        }
+
+        long idealGap = (10000 * MS - now) / 80;
+        assert Math.abs(medianNext - now - (idealGap - MS)) < MS : "The median should have ignored the outlier";
+        assert medianNext > averageNext : "The average should have been skewed by the outlier";
+    }
+
+    public void testPidCorrectsLag() {
+        Pacer average = AveragePacingStrategy.INSTANCE.newPacer();
+        Pacer pid = new PidPacingStrategy().newPacer();
+
+        //the batch should be half done after 500ms but only 10% is
+        Progress behind = new Progress(100, 0, 1000 * MS);
+        behind.finished = 9;
+        behind.finishedWeight = 9;
+        behind.cumulativeExecutionTime = 9 * MS;
+
+        long averageNext = behind.finish(average, MS, 500 * MS);
+        behind.unfinish(MS);
+        long pidNext = behind.finish(pid, MS, 500 * MS);
+
+        assert pidNext < averageNext : "The PID pacer should speed up a late batch";
+
+        //the batch should be 10% done after 100ms but it already is half done
+        Progress ahead = new Progress(100, 0, 1000 * MS);
+        ahead.finished = 49;
+        ahead.finishedWeight = 49;
+        ahead.cumulativeExecutionTime = 49 * MS;
+
+        averageNext = ahead.finish(average, MS, 100 * MS);
+        ahead.unfinish(MS);
+        pidNext = ahead.finish(new PidPacingStrategy().newPacer(), MS, 100 * MS);
+
+        assert pidNext > averageNext : "The PID pacer should slow down a batch running ahead";
+    }
+}